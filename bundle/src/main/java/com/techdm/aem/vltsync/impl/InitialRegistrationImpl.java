@@ -18,21 +18,29 @@ package com.techdm.aem.vltsync.impl;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.NotFileFilter;
 import org.apache.commons.io.filefilter.RegexFileFilter;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.PropertyUnbounded;
@@ -42,6 +50,12 @@ import org.osgi.framework.ServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.techdm.aem.vltsync.impl.sync.SyncConfig;
+import com.techdm.aem.vltsync.impl.sync.SyncFilter;
+import com.techdm.aem.vltsync.impl.sync.SyncIndex;
+import com.techdm.aem.vltsync.impl.sync.SyncMode;
+import com.techdm.aem.vltsync.impl.sync.SyncTransfer;
+
 import aQute.bnd.annotation.component.Deactivate;
 
 /**
@@ -58,8 +72,14 @@ public class InitialRegistrationImpl {
 	/* Default value for overwrite.config.files property. */
 	private static final boolean DEFAULT_OVERWRITE_CONFIG_FILES = false;
 
+	/* Default value for sync.once.bulk property. */
+	private static final boolean DEFAULT_SYNC_ONCE_BULK = false;
+
+	/* Separates the rules of a filter root: spaces followed by + or -. */
+	private static final Pattern RULE_SEPARATOR = Pattern.compile("\\s+(?=[+-])");
+
 	/* Default value for sync.once.expected.time property. */
-	private static final long DEFAULT_SYNC_ONCE_EXPECTED_TIME = 3000;
+	protected static final long DEFAULT_SYNC_ONCE_EXPECTED_TIME = 3000;
 		
 	/**
 	 * Value for empty sync-once. @see <a href=
@@ -86,7 +106,14 @@ public class InitialRegistrationImpl {
 	 */
 	protected static final String SYNC_ONCE_FS2JCR = "FS2JCR";
 
-	@Property(label = "Filter Roots", description = "JCR paths to be added as roots in the filter file.[Required]", unbounded = PropertyUnbounded.ARRAY)
+	/**
+	 * Value for MERGE sync-once: both sides are compared item by item and the
+	 * missing or newer items are transferred in both directions (embedded sync
+	 * engine only).
+	 */
+	protected static final String SYNC_ONCE_MERGE = "MERGE";
+
+	@Property(label = "Filter Roots", description = "JCR paths to be added as roots in the filter file, each one optionally followed by include (+pattern) and exclude (-pattern) rules, each one preceded by a space (e.g. /content/dam -.*/jcr:content/renditions(/.*)?). Roots covered by a root without rules are left out.[Required]", unbounded = PropertyUnbounded.ARRAY)
 	protected static final String PROP_FILTER_ROOTS = "filter.roots";
 
 	@Property(label = "Local Path", description = "Filesystem local path to be added as sync root.[Required]")
@@ -97,10 +124,22 @@ public class InitialRegistrationImpl {
 					@PropertyOption(name = SYNC_ONCE_DISABLED, value = ""),
 					@PropertyOption(name = SYNC_ONCE_AUTO, value = "Auto detect"),
 					@PropertyOption(name = SYNC_ONCE_FS2JCR, value = "Filesystem to JCR"),
-					@PropertyOption(name = SYNC_ONCE_JCR2FS, value = "JCR to Filesystem") })
+					@PropertyOption(name = SYNC_ONCE_JCR2FS, value = "JCR to Filesystem"),
+					@PropertyOption(name = SYNC_ONCE_MERGE, value = "Merge (newer items win)") })
 	protected static final String PROP_SYNC_ONCE_TYPE = "sync.once.type";
 
-	@Property(label = "Sync Once Expected Time", longValue = DEFAULT_SYNC_ONCE_EXPECTED_TIME, description = "How many milliseconds"
+	@Property(label = "Sync Once Merge Tie Break", value = SYNC_ONCE_FS2JCR, description = "Side that wins a"
+			+ " merge when both items have the same modification time.[Optional] [Default: " + SYNC_ONCE_FS2JCR
+			+ "]", options = { @PropertyOption(name = SYNC_ONCE_FS2JCR, value = "Filesystem"),
+					@PropertyOption(name = SYNC_ONCE_JCR2FS, value = "JCR") })
+	protected static final String PROP_SYNC_ONCE_MERGE_TIE_BREAK = "sync.once.merge.tie.break";
+
+	@Property(label = "Sync Once Bulk", boolValue = DEFAULT_SYNC_ONCE_BULK, description = "Transfer a whole"
+			+ " FS2JCR or JCR2FS sync-once as a FileVault import or export, instead of item by item? Only the"
+			+ " embedded sync engine understands it.[Optional] [Default: " + DEFAULT_SYNC_ONCE_BULK + "]")
+	protected static final String PROP_SYNC_ONCE_BULK = "sync.once.bulk";
+
+	@Property(label = "Sync Once Expected Time", longValue = DEFAULT_SYNC_ONCE_EXPECTED_TIME, description = "At most, how many milliseconds"
 			+ " a sync-once operation would take?[Optional] [Default: " + DEFAULT_SYNC_ONCE_EXPECTED_TIME + "]")
 	protected static final String PROP_SYNC_ONCE_EXPECTED_TIME = "sync.once.expected.time";
 
@@ -111,75 +150,307 @@ public class InitialRegistrationImpl {
 	@Property(value = "Local path: {" + PROP_LOCAL_PATH + "}")
 	private static final String PROP_WEBCONSOLE_NAME_HINT = "webconsole.configurationFactory.nameHint";
 
+	/**
+	 * Preparation state of a registration.
+	 */
+	protected enum State {
+		/** Its local path is being prepared in background. */
+		PENDING,
+
+		/** Its local path is prepared and registered as sync root. */
+		READY,
+
+		/** Its local path couldn't be prepared. */
+		FAILED
+	}
+
 	/* Logger instance. */
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	@Reference
 	private ServiceSettingsImpl serviceSettings;
 
-	private String[] filterRoots = null;
+	/* Guards the settings below against the background preparation. */
+	private final Object lock = new Object();
 
-	private File localDir = null;
+	private volatile State state = null;
 
-	private Boolean overwriteConfigFiles = null;
+	/* Incremented whenever a scheduled preparation becomes outdated. */
+	private int generation = 0;
 
-	private String syncOnceType = null;
+	/* Serializes the disk I/O of the preparations, without holding the lock. */
+	private final Object ioLock = new Object();
 
-	private Boolean willSyncOnce = null;
+	/* The latest settings. */
+	private Settings settings = null;
+
+	/* The settings whose files were last written (guarded by ioLock). */
+	private Settings applied = null;
+
+	/* The local path currently registered as sync root, if any. */
+	private File registeredDir = null;
 
 	@Activate
 	protected void activate(final Map<String, Object> props) throws ServiceException {
 		logger.debug("activate(): props = {}", props);
 
-		this.filterRoots = PropertiesUtil.toStringArray(props.get(PROP_FILTER_ROOTS), null);
-		if (this.filterRoots == null) {
-			throw new ServiceException(PROP_FILTER_ROOTS + " is mandatory!");
+		synchronized (this.lock) {
+			this.settings = readProperties(props);
+			startPreparation(this.settings, props);
 		}
+	}
 
-		final String localDirValue = StringUtils.trim(PropertiesUtil.toString(props.get(PROP_LOCAL_PATH), null));
-		if (localDirValue == null) {
-			throw new ServiceException(PROP_LOCAL_PATH + " is mandatory!");
+	/**
+	 * Apply the new settings in place: the sync root stays registered and, at
+	 * most, one settings change is emitted.
+	 */
+	@Modified
+	protected void modified(final Map<String, Object> props) throws ServiceException {
+		logger.debug("modified(): props = {}", props);
+
+		synchronized (this.lock) {
+			if (this.state != State.READY) {
+				/* Not registered (yet) or failed: just start over. */
+				this.settings = readProperties(props);
+				startPreparation(this.settings, props);
+			} else {
+				modifyInPlace(props);
+			}
 		}
+	}
 
-		this.localDir = new File(localDirValue);
-		this.overwriteConfigFiles = PropertiesUtil.toBoolean(props.get(PROP_OVERWRITE_CONFIG_FILES),
-				DEFAULT_OVERWRITE_CONFIG_FILES);
+	private void modifyInPlace(final Map<String, Object> props) throws ServiceException {
+		final Settings previous = this.settings;
+		final Settings settings = readProperties(props);
+		this.settings = settings;
+
+		if (!settings.localDir.equals(previous.localDir)) {
+			/*
+			 * Another directory: prepared in background, then it replaces the
+			 * previous sync root.
+			 */
+			startPreparation(settings, props);
+			return;
+		}
 
-		this.syncOnceType = PropertiesUtil.toString(props.get(PROP_SYNC_ONCE_TYPE), SYNC_ONCE_DISABLED);
+		/* The same directory: its files are updated in background. */
+		final int modification = ++this.generation;
+		final Map<String, Object> modificationProps = new HashMap<String, Object>(props);
+		this.serviceSettings.execute(new Runnable() {
+			public void run() {
+				modify(modification, settings, modificationProps);
+			}
+		});
+	}
 
-		generateFiles();
+	/*
+	 * Update the files of the registered local path, as the preparation does:
+	 * only the settings changed since the files were last written are
+	 * applied. If they can't be written, the registration fails (and the next
+	 * configuration prepares it again).
+	 */
+	private void modify(final int modification, final Settings settings, final Map<String, Object> props) {
+		synchronized (this.ioLock) {
+			if (isOutdated(modification, settings)) {
+				return;
+			}
 
-		Long expectedSyncOnceTime = null;
-		if (this.willSyncOnce) {
-			expectedSyncOnceTime = PropertiesUtil.toLong(props.get(PROP_SYNC_ONCE_EXPECTED_TIME),
-					DEFAULT_SYNC_ONCE_EXPECTED_TIME);
+			final boolean syncOnceRequested;
+			try {
+				syncOnceRequested = updateFiles(this.applied, settings);
+				this.applied = settings;
+			} catch (IOException e) {
+				synchronized (this.lock) {
+					if (modification == this.generation) {
+						logger.error("modify(): unable to update " + settings.localDir, e);
+						this.state = State.FAILED;
+					}
+				}
+				return;
+			}
+
+			synchronized (this.lock) {
+				if (isOutdated(modification, settings)) {
+					return;
+				}
+
+				if (syncOnceRequested) {
+					/*
+					 * The sync root is already registered: this just lets the
+					 * settings wait for the new sync-once.
+					 */
+					try {
+						this.serviceSettings.addSyncRoot(settings.localDir,
+								getExpectedSyncOnceTime(settings, props));
+					} catch (RuntimeException e) {
+						logger.error("modify(): unable to register " + settings.localDir, e);
+						this.state = State.FAILED;
+					}
+				} else {
+					logger.debug("modify(): no settings change for {}", settings.localDir);
+				}
+			}
 		}
+	}
 
-		this.serviceSettings.addSyncRoot(this.localDir, expectedSyncOnceTime);
+	/*
+	 * Write only the files affected by the changed settings. Returns true if a
+	 * new sync-once has been requested.
+	 */
+	private boolean updateFiles(final Settings previous, final Settings settings) throws IOException {
+		final boolean overwriteChanged = settings.overwriteConfigFiles != previous.overwriteConfigFiles;
+		boolean filterWritten = false;
+		boolean syncOnceRequested = false;
+		if (overwriteChanged || !Arrays.equals(settings.filterRoots, previous.filterRoots)) {
+			filterWritten = generateWorkspaceFilterFile(settings);
+		}
+		if (overwriteChanged || !StringUtils.equals(settings.syncOnceType, previous.syncOnceType)
+				|| (SYNC_ONCE_MERGE.equals(settings.syncOnceType)
+						&& !StringUtils.equals(settings.mergeTieBreak, previous.mergeTieBreak))
+				|| settings.syncOnceBulk != previous.syncOnceBulk) {
+			syncOnceRequested = generateConfigPropertyFile(settings) && settings.willSyncOnce;
+		}
+		if (filterWritten && !syncOnceRequested) {
+			generateDeltaSyncOnce(settings, previous.filterRoots);
+		}
+		return syncOnceRequested;
 	}
 
 	@Deactivate
 	protected void deactivate() {
 		logger.debug("deactivate()");
-		if (this.localDir != null) {
-			this.serviceSettings.removeSyncRoot(this.localDir);
+		synchronized (this.lock) {
+			/* A pending preparation won't register anything. */
+			this.generation++;
+			if (this.registeredDir != null) {
+				this.serviceSettings.removeSyncRoot(this.registeredDir);
+			}
+
+			this.settings = null;
+			this.registeredDir = null;
+			this.state = null;
 		}
+	}
+
+	/**
+	 * @return the preparation state of this registration or null if it is not
+	 *         active
+	 */
+	protected State getState() {
+		return this.state;
+	}
 
-		this.filterRoots = null;
-		this.localDir = null;
-		this.overwriteConfigFiles = null;
-		this.syncOnceType = null;
-		this.willSyncOnce = null;
+	/*
+	 * Prepare the local path (directories and vlt sync config files) in
+	 * background, so slow disks don't hold the activation thread, and register
+	 * it as sync root once it is ready (in place of the previous local path,
+	 * if it is still registered).
+	 */
+	private void startPreparation(final Settings settings, final Map<String, Object> props) {
+		final int preparation = ++this.generation;
+		final Map<String, Object> preparationProps = new HashMap<String, Object>(props);
+		this.state = State.PENDING;
+
+		this.serviceSettings.execute(new Runnable() {
+			public void run() {
+				prepare(preparation, settings, preparationProps);
+			}
+		});
+	}
+
+	/*
+	 * The files are written holding only the I/O lock: reconfigurations and
+	 * deactivations just make the preparation outdated, without waiting for
+	 * the disk.
+	 */
+	private void prepare(final int preparation, final Settings settings, final Map<String, Object> props) {
+		synchronized (this.ioLock) {
+			if (isOutdated(preparation, settings)) {
+				return;
+			}
+
+			try {
+				generateFiles(settings);
+				this.applied = settings;
+			} catch (RuntimeException e) {
+				synchronized (this.lock) {
+					if (preparation == this.generation) {
+						logger.error("prepare(): unable to prepare " + settings.localDir, e);
+						this.state = State.FAILED;
+					}
+				}
+				return;
+			}
+
+			synchronized (this.lock) {
+				if (isOutdated(preparation, settings)) {
+					return;
+				}
+
+				try {
+					if (this.registeredDir != null && !this.registeredDir.equals(settings.localDir)) {
+						this.serviceSettings.updateSyncRoot(this.registeredDir, settings.localDir,
+								getExpectedSyncOnceTime(settings, props));
+					} else {
+						this.serviceSettings.addSyncRoot(settings.localDir,
+								getExpectedSyncOnceTime(settings, props));
+					}
+					this.registeredDir = settings.localDir;
+					this.state = State.READY;
+					logger.debug("prepare(): {} is ready", settings.localDir);
+				} catch (RuntimeException e) {
+					logger.error("prepare(): unable to register " + settings.localDir, e);
+					this.state = State.FAILED;
+				}
+			}
+		}
 	}
 
-	private void generateFiles() throws IllegalStateException {
+	private boolean isOutdated(final int preparation, final Settings settings) {
+		synchronized (this.lock) {
+			if (preparation != this.generation) {
+				logger.debug("isOutdated(): preparation of {} is outdated", settings.localDir);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private Settings readProperties(final Map<String, Object> props) throws ServiceException {
+		final String[] filterRoots = PropertiesUtil.toStringArray(props.get(PROP_FILTER_ROOTS), null);
+		if (filterRoots == null) {
+			throw new ServiceException(PROP_FILTER_ROOTS + " is mandatory!");
+		}
+
+		final String localDirValue = StringUtils.trim(PropertiesUtil.toString(props.get(PROP_LOCAL_PATH), null));
+		if (localDirValue == null) {
+			throw new ServiceException(PROP_LOCAL_PATH + " is mandatory!");
+		}
+
+		return new Settings(filterRoots, new File(localDirValue),
+				PropertiesUtil.toBoolean(props.get(PROP_OVERWRITE_CONFIG_FILES), DEFAULT_OVERWRITE_CONFIG_FILES),
+				PropertiesUtil.toString(props.get(PROP_SYNC_ONCE_TYPE), SYNC_ONCE_DISABLED),
+				PropertiesUtil.toString(props.get(PROP_SYNC_ONCE_MERGE_TIE_BREAK), SYNC_ONCE_FS2JCR),
+				PropertiesUtil.toBoolean(props.get(PROP_SYNC_ONCE_BULK), DEFAULT_SYNC_ONCE_BULK));
+	}
+
+	private Long getExpectedSyncOnceTime(final Settings settings, final Map<String, Object> props) {
+		Long expectedSyncOnceTime = null;
+		if (settings.willSyncOnce) {
+			expectedSyncOnceTime = PropertiesUtil.toLong(props.get(PROP_SYNC_ONCE_EXPECTED_TIME),
+					DEFAULT_SYNC_ONCE_EXPECTED_TIME);
+		}
+		return expectedSyncOnceTime;
+	}
+
+	private void generateFiles(final Settings settings) throws IllegalStateException {
 		logger.debug("generateFiles()");
 
 		try {
-			this.localDir.mkdirs();
+			settings.localDir.mkdirs();
 
-			logger.debug("generateFiles(): Generating vlt sync config files at {}", this.localDir);
-			generateVltSyncConfigFiles();
+			logger.debug("generateFiles(): Generating vlt sync config files at {}", settings.localDir);
+			generateVltSyncConfigFiles(settings);
 
 		} catch (IOException e) {
 			logger.error("generateFiles()", e);
@@ -187,64 +458,145 @@ public class InitialRegistrationImpl {
 		}
 	}
 
-	private void generateVltSyncConfigFiles() throws IOException {
-		generateWorkspaceFilterFile();
-		generateConfigPropertyFile();
+	private void generateVltSyncConfigFiles(final Settings settings) throws IOException {
+		generateWorkspaceFilterFile(settings);
+		generateConfigPropertyFile(settings);
 	}
 
-	private void generateConfigPropertyFile() throws IOException {
+	/*
+	 * Also tells (in settings.willSyncOnce) whether a sync-once will happen.
+	 */
+	private boolean generateConfigPropertyFile(final Settings settings) throws IOException {
 		final String configPropertyFilename = ".vlt-sync-config.properties";
-		final List<String> existentConfig = getExistentPaths(configPropertyFilename);
+		final List<String> existentConfig = getExistentPaths(settings.localDir, configPropertyFilename);
 
 		/*
 		 * Don't overwrite the file if it already exists. Allowing the user to
 		 * create or change .vlt-sync-config.properties guarantees a finer
 		 * control over VTL sync service behavior.
 		 */
-		if (existentConfig.isEmpty() || this.overwriteConfigFiles) {
-			logger.debug("generateConfigPropertyFile(): writing {} at {}", configPropertyFilename, this.localDir);
-
-			this.willSyncOnce = Boolean.TRUE;
-			final File[] localDirContents = getLocalDirContents();
+		boolean written = false;
+		settings.willSyncOnce = null;
+		if (existentConfig.isEmpty() || settings.overwriteConfigFiles) {
+			logger.debug("generateConfigPropertyFile(): writing {} at {}", configPropertyFilename,
+					settings.localDir);
+
+			settings.willSyncOnce = Boolean.TRUE;
+			final File[] localDirContents = getLocalDirContents(settings.localDir);
+			final boolean merge = SYNC_ONCE_MERGE.equals(settings.syncOnceType);
 			final String syncOnce;
 
-			if (SYNC_ONCE_AUTO.equals(this.syncOnceType)) {
+			if (merge && !this.serviceSettings.isEmbedded()) {
+				/* The VLT Sync Service doesn't understand it. */
+				logger.warn("generateConfigPropertyFile(): {} requires the embedded sync engine, no sync-once"
+						+ " requested at {}", SYNC_ONCE_MERGE, settings.localDir);
+				syncOnce = SYNC_ONCE_DISABLED;
+				settings.willSyncOnce = Boolean.FALSE;
+			} else if (SYNC_ONCE_AUTO.equals(settings.syncOnceType) && this.serviceSettings.isEmbedded()
+					&& new File(settings.localDir, SyncIndex.FILENAME).isFile()) {
+				/*
+				 * Warm restart: the embedded sync engine only transfers what
+				 * differs from its index (the VLT Sync Service doesn't read it).
+				 */
+				logger.debug("generateConfigPropertyFile(): {} has a sync index", settings.localDir);
+				syncOnce = SYNC_ONCE_DISABLED;
+				settings.willSyncOnce = Boolean.FALSE;
+			} else if (SYNC_ONCE_AUTO.equals(settings.syncOnceType)) {
 				syncOnce = (localDirContents == null || localDirContents.length == 0) ? SYNC_ONCE_JCR2FS
 						: SYNC_ONCE_FS2JCR;
 			} else {
-				syncOnce = this.syncOnceType;
+				syncOnce = settings.syncOnceType;
 			}
 
-			PrintWriter writer = null;
-			try {
-				writer = new PrintWriter(new FileWriter(new File(this.localDir, configPropertyFilename)));
-				writer.println("disabled=false");
-				writer.println("sync-once=" + syncOnce);
-			} finally {
-				IOUtils.closeQuietly(writer);
+			final StringWriter content = new StringWriter();
+			final PrintWriter writer = new PrintWriter(content);
+			writer.println("disabled=false");
+			writer.println("sync-once=" + syncOnce);
+			if (merge) {
+				if (settings.willSyncOnce) {
+					writer.println("merge-tie-break=" + settings.mergeTieBreak);
+				}
+			} else if (settings.syncOnceBulk) {
+				writer.println("sync-once-bulk=true");
 			}
+			writer.close();
+
+			written = writeIfChanged(new File(settings.localDir, configPropertyFilename), content.toString());
 		} else {
 			if (logger.isDebugEnabled()) {
-				logger.debug("generateConfigPropertyFile(): {} already contains {}!", this.localDir, existentConfig);
+				logger.debug("generateConfigPropertyFile(): {} already contains {}!", settings.localDir,
+						existentConfig);
 			}
 		}
 
-		if (this.willSyncOnce == null) {
+		if (settings.willSyncOnce == null) {
 			/* Check if the existent file has a sync-once instruction. */
 			Properties props = new Properties();
-			props.load(new FileReader(new File(this.localDir, configPropertyFilename)));
+			props.load(new FileReader(new File(settings.localDir, configPropertyFilename)));
 			String syncOnceValue = props.getProperty("sync-once");
-			this.willSyncOnce = StringUtils.isNotEmpty(syncOnceValue);
+			settings.willSyncOnce = StringUtils.isNotEmpty(syncOnceValue);
 		}
+
+		return written;
 	}
 
-	private void generateWorkspaceFilterFile() throws IOException {
+	/*
+	 * Request a sync-once limited to the added filter roots (the removed ones
+	 * are dropped from the pending requests). Only the embedded sync engine
+	 * understands it.
+	 */
+	private void generateDeltaSyncOnce(final Settings settings, final String[] previousFilterRoots)
+			throws IOException {
+		if (SYNC_ONCE_DISABLED.equals(settings.syncOnceType)) {
+			return;
+		}
+
+		final Set<String> addedRoots = new LinkedHashSet<String>(getRootPaths(settings.filterRoots));
+		addedRoots.removeAll(getRootPaths(previousFilterRoots));
+		final Set<String> removedRoots = new LinkedHashSet<String>(getRootPaths(previousFilterRoots));
+		removedRoots.removeAll(getRootPaths(settings.filterRoots));
+
+		final SyncConfig config = new SyncConfig(settings.localDir);
+		config.reloadIfModified();
+		final Map<String, SyncMode> syncOncePaths = config.getSyncOncePaths();
+
+		for (Iterator<String> i = syncOncePaths.keySet().iterator(); i.hasNext();) {
+			final String path = i.next();
+			for (String removedRoot : removedRoots) {
+				if (SyncFilter.isAncestorOrSelf(removedRoot, path)) {
+					i.remove();
+					break;
+				}
+			}
+		}
+
+		final SyncTransfer transfer = new SyncTransfer(settings.localDir);
+		for (String addedRoot : addedRoots) {
+			final SyncMode mode;
+			if (SYNC_ONCE_AUTO.equals(settings.syncOnceType)) {
+				final String[] contents = transfer.toFile(addedRoot).list();
+				mode = (contents == null || contents.length == 0) ? SyncMode.JCR2FS : SyncMode.FS2JCR;
+			} else {
+				mode = SyncMode.fromString(settings.syncOnceType);
+			}
+			if (mode != null) {
+				syncOncePaths.put(addedRoot, mode);
+			}
+		}
+
+		if (!syncOncePaths.equals(config.getSyncOncePaths())) {
+			logger.debug("generateDeltaSyncOnce(): syncOncePaths = {}", syncOncePaths);
+			config.setSyncOncePaths(syncOncePaths);
+		}
+	}
+
+	private boolean generateWorkspaceFilterFile(final Settings settings) throws IOException {
 		final String workspaceFilterFilename = ".vlt-sync-filter.xml";
 		final String defaultWorkspaceFilterFilename = "META-INF/vault/filter.xml";
 
-		final List<String> existentFilter = getExistentPaths(workspaceFilterFilename);
-		final List<String> existentDefaultFilter = getExistentPaths(defaultWorkspaceFilterFilename,
-				"../" + defaultWorkspaceFilterFilename);
+		final List<String> existentFilter = getExistentPaths(settings.localDir, workspaceFilterFilename);
+		final List<String> existentDefaultFilter = getExistentPaths(settings.localDir,
+				defaultWorkspaceFilterFilename, "../" + defaultWorkspaceFilterFilename);
 
 		/*-
 		 * To make this component compatible with other VLT commands, such
@@ -256,43 +608,108 @@ public class InitialRegistrationImpl {
 		 * already created/configured file!
 		 * 
 		 */
-		if (existentDefaultFilter.isEmpty() && (existentFilter.isEmpty() || this.overwriteConfigFiles)) {
-			logger.debug("generateWorkspaceFilterFile(): writing {} at {}", workspaceFilterFilename, this.localDir);
+		if (existentDefaultFilter.isEmpty() && (existentFilter.isEmpty() || settings.overwriteConfigFiles)) {
+			logger.debug("generateWorkspaceFilterFile(): writing {} at {}", workspaceFilterFilename,
+					settings.localDir);
+
+			final StringWriter content = new StringWriter();
+			final PrintWriter writer = new PrintWriter(content);
+			writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			writer.println("<workspaceFilter version=\"1.0\">");
+			for (String[] filterRoot : getFilterRoots(settings.filterRoots)) {
+				if (filterRoot.length == 1) {
+					writer.println("\t<filter root=\"" + StringEscapeUtils.escapeXml(filterRoot[0]) + "\"/>");
+					continue;
+				}
 
-			PrintWriter writer = null;
-			try {
-				writer = new PrintWriter(new FileWriter(new File(localDir, workspaceFilterFilename)));
-				writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-				writer.println("<workspaceFilter version=\"1.0\">");
-				for (String path : this.filterRoots) {
-					writer.println("\t<filter root=\"" + path + "\"/>");
+				writer.println("\t<filter root=\"" + StringEscapeUtils.escapeXml(filterRoot[0]) + "\">");
+				for (int i = 1; i < filterRoot.length; i++) {
+					writer.println("\t\t<" + (filterRoot[i].startsWith("+") ? "include" : "exclude") + " pattern=\""
+							+ StringEscapeUtils.escapeXml(filterRoot[i].substring(1)) + "\"/>");
 				}
-				writer.println("</workspaceFilter>");
-			} finally {
-				IOUtils.closeQuietly(writer);
+				writer.println("\t</filter>");
 			}
+			writer.println("</workspaceFilter>");
+			writer.close();
+
+			return writeIfChanged(new File(settings.localDir, workspaceFilterFilename), content.toString());
 		} else {
 			if (logger.isDebugEnabled()) {
 				final List<String> filters = new ArrayList<String>(existentFilter);
 				filters.addAll(existentDefaultFilter);
 
-				logger.debug("generateWorkspaceFilterFile(): {} already contains {}!", this.localDir, filters);
+				logger.debug("generateWorkspaceFilterFile(): {} already contains {}!", settings.localDir, filters);
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * The filter roots split into their paths and rules, without the ones
+	 * covered by a root without rules declared before them (FileVault only
+	 * applies the first covering filter set, so they would never apply).
+	 * Only the tokens starting with + or - are rules: the rest of the value,
+	 * spaces included, is the path.
+	 */
+	protected static List<String[]> getFilterRoots(final String[] filterRoots) {
+		final List<String[]> parsed = new ArrayList<String[]>();
+		for (String filterRoot : filterRoots) {
+			final String[] tokens = RULE_SEPARATOR.split(StringUtils.trimToEmpty(filterRoot));
+			if (tokens[0].length() == 0) {
+				continue;
+			}
+			parsed.add(tokens);
+		}
+
+		final List<String[]> collapsed = new ArrayList<String[]>();
+		for (int i = 0; i < parsed.size(); i++) {
+			final String[] filterRoot = parsed.get(i);
+			boolean covered = false;
+			for (int j = 0; j < i && !covered; j++) {
+				final String[] other = parsed.get(j);
+				covered = other.length == 1 && SyncFilter.isAncestorOrSelf(other[0], filterRoot[0]);
 			}
+			if (!covered) {
+				collapsed.add(filterRoot);
+			}
+		}
+		return collapsed;
+	}
+
+	private static List<String> getRootPaths(final String[] filterRoots) {
+		final List<String> paths = new ArrayList<String>();
+		for (String[] filterRoot : getFilterRoots(filterRoots)) {
+			paths.add(filterRoot[0]);
 		}
+		return paths;
 	}
 
-	private File[] getLocalDirContents() {
+	/*
+	 * Leave the file untouched (including its modification time, which is
+	 * watched by the VLT Sync Service) when it already has that content.
+	 */
+	private boolean writeIfChanged(final File file, final String content) throws IOException {
+		if (file.isFile() && content.equals(FileUtils.readFileToString(file))) {
+			logger.debug("writeIfChanged(): {} is up to date", file);
+			return false;
+		}
+
+		FileUtils.writeStringToFile(file, content);
+		return true;
+	}
+
+	private File[] getLocalDirContents(final File localDir) {
 		FileFilter fileFilter = new NotFileFilter(new RegexFileFilter("^.vlt-sync.+$"));
-		File[] localDirContents = this.localDir.listFiles(fileFilter);
+		File[] localDirContents = localDir.listFiles(fileFilter);
 
 		return localDirContents;
 	}
 
-	private List<String> getExistentPaths(final String... relativePaths) {
+	private List<String> getExistentPaths(final File localDir, final String... relativePaths) {
 		List<String> existentPaths = new ArrayList<String>();
 
 		for (String path : relativePaths) {
-			final File file = new File(this.localDir, path);
+			final File file = new File(localDir, path);
 			if (file.exists()) {
 				existentPaths.add(path);
 			}
@@ -301,4 +718,36 @@ public class InitialRegistrationImpl {
 		return existentPaths;
 	}
 
+	/*
+	 * The settings of a registration, so that a preparation can work on them
+	 * without holding the lock.
+	 */
+	private static class Settings {
+
+		private final String[] filterRoots;
+
+		private final File localDir;
+
+		private final boolean overwriteConfigFiles;
+
+		private final String syncOnceType;
+
+		private final String mergeTieBreak;
+
+		private final boolean syncOnceBulk;
+
+		/* Will a sync-once happen? Read from the config file once written. */
+		private Boolean willSyncOnce = null;
+
+		private Settings(final String[] filterRoots, final File localDir, final boolean overwriteConfigFiles,
+				final String syncOnceType, final String mergeTieBreak, final boolean syncOnceBulk) {
+			this.filterRoots = filterRoots;
+			this.localDir = localDir;
+			this.overwriteConfigFiles = overwriteConfigFiles;
+			this.syncOnceType = syncOnceType;
+			this.mergeTieBreak = mergeTieBreak;
+			this.syncOnceBulk = syncOnceBulk;
+		}
+	}
+
 }
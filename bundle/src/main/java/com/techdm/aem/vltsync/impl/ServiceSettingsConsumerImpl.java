@@ -17,23 +17,45 @@ package com.techdm.aem.vltsync.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.event.jobs.Job;
 import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.techdm.aem.vltsync.impl.sync.SyncConfig;
+
 /*-
  * Vault Sync Service doesn't behave very well if it is restarted during
  * the first sync (sync-once operation):
@@ -42,9 +64,12 @@ import org.slf4j.LoggerFactory;
  * at
  * org.apache.jackrabbit.oak.jcr.delegate.SessionDelegate.checkAlive(SessionDelegate.java:290)"
  * 
- * Which may result in an incomplete synchronization. That's why we try to
- * sleep a few moments before changing its configuration and restarting
- * it indirectly.
+ * Which may result in an incomplete synchronization. That's why we hold
+ * the next configuration change until the sync-once is over (or, at most,
+ * until its expected time has elapsed) before restarting it indirectly.
+ * The job thread doesn't wait: the change is queued and applied later by a
+ * delayed task. Meanwhile, its job is kept alive (processed asynchronously),
+ * so a restart before the change is applied runs the job again.
  * 
  * However, this won't cover all the possibilities. The service can be in the middle of a
  * regular sync (which is undetectable) when we change its configuration.
@@ -59,9 +84,19 @@ import org.slf4j.LoggerFactory;
  * @author Daniel Henrique Alves Lima
  *
  */
-@Component
-@Service(value = { JobConsumer.class })
-public class ServiceSettingsConsumerImpl implements JobConsumer {
+@Component(metatype = true, label = "TechDM - VLT Sync Service Settings Consumer", description = "Component for"
+		+ " processing the changes of VLT Sync Service settings")
+@Service(value = { ServiceSettingsConsumerImpl.class, JobConsumer.class, ConfigurationListener.class })
+public class ServiceSettingsConsumerImpl implements JobConsumer, ConfigurationListener {
+
+	/* Default value for batch.window property. */
+	private static final long DEFAULT_BATCH_WINDOW = 0;
+
+	/* Default value for sync.once.check.interval property. */
+	private static final long DEFAULT_SYNC_ONCE_CHECK_INTERVAL = 500;
+
+	/* Default value for sync.once.completion.pattern property. */
+	private static final String DEFAULT_SYNC_ONCE_COMPLETION_PATTERN = "(?i)sync.?once.*(completed|done|finished)";
 
 	/** The Queue being observed by this consumer. */
 	protected static final String TOPIC_NAME = "com/techdm/aem/vltsync/impl/ServiceSettings";
@@ -70,7 +105,7 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 	private static final String PROP_TOPICS = JobConsumer.PROPERTY_TOPICS;
 
 	/**
-	 * Action (sync root added or sync root removed) to process.
+	 * Action (sync root added, removed or updated) to process.
 	 */
 	protected static final String KEY_ACTION = "action";
 
@@ -80,8 +115,13 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 	protected static final String KEY_SYNC_ROOT = "syncRoot";
 
 	/**
-	 * Time (in milliseconds) that this consumer should wait before executing
-	 * the next operation.
+	 * Sync root being replaced (by an update).
+	 */
+	protected static final String KEY_PREVIOUS_SYNC_ROOT = "previousSyncRoot";
+
+	/**
+	 * Maximum time (in milliseconds) that this consumer should wait for the
+	 * sync-once before executing the next operation.
 	 */
 	protected static final String KEY_EXPECTED_SYNC_TIME = "expectedSyncTime";
 
@@ -95,6 +135,26 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 	 */
 	protected static final String ACTION_REMOVE = "removeSyncRoot";
 
+	/**
+	 * Action of replacing a sync root by another one (with a single change).
+	 */
+	protected static final String ACTION_UPDATE = "updateSyncRoot";
+
+	@Property(label = "Batch Window", longValue = DEFAULT_BATCH_WINDOW, description = "How many milliseconds"
+			+ " to wait for further sync root changes before updating the VLT Sync Service? Zero disables"
+			+ " batching.[Optional] [Default: " + DEFAULT_BATCH_WINDOW + "]")
+	protected static final String PROP_BATCH_WINDOW = "batch.window";
+
+	@Property(label = "Sync Once Check Interval", longValue = DEFAULT_SYNC_ONCE_CHECK_INTERVAL, description = "How"
+			+ " many milliseconds between two checks of a running sync-once?[Optional] [Default: "
+			+ DEFAULT_SYNC_ONCE_CHECK_INTERVAL + "]")
+	protected static final String PROP_SYNC_ONCE_CHECK_INTERVAL = "sync.once.check.interval";
+
+	@Property(label = "Sync Once Completion Pattern", value = DEFAULT_SYNC_ONCE_COMPLETION_PATTERN, description = "Regular"
+			+ " expression matching the end-of-sync line of .vlt-sync.log. Leave it empty to check only"
+			+ " .vlt-sync-config.properties.[Optional] [Default: " + DEFAULT_SYNC_ONCE_COMPLETION_PATTERN + "]")
+	protected static final String PROP_SYNC_ONCE_COMPLETION_PATTERN = "sync.once.completion.pattern";
+
 	/** VLT Sync Service Persistent ID. */
 	protected static final String SERVICE_PID = "org.apache.jackrabbit.vault.sync.impl.VaultSyncServiceImpl";
 
@@ -104,6 +164,12 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 	/** VLT Sync Service Property: root folders. */
 	protected static final String PROP_SYNCROOTS = "vault.sync.syncroots";
 
+	/**
+	 * Sync roots added through the initial registrations, kept along with the
+	 * VLT Sync Service properties. The other ones were set by hand.
+	 */
+	protected static final String PROP_REGISTERED_SYNCROOTS = "techdm.vltsync.registered.syncroots";
+
 	/* Logger instance. */
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -111,30 +177,109 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 	@Reference
 	private ConfigurationAdmin configAdmin;
 
-	private long sleepTimeBeforeNextUpdate = 0;
+	private long batchWindow = DEFAULT_BATCH_WINDOW;
+
+	private long syncOnceCheckInterval = DEFAULT_SYNC_ONCE_CHECK_INTERVAL;
+
+	private Pattern syncOnceCompletionPattern = null;
+
+	private ScheduledExecutorService executor = null;
+
+	/* Guards all the mutable state below. */
+	private final Object lock = new Object();
+
+	/* Requests received through the in-memory queue, in arrival order. */
+	private final List<Map<String, Object>> queuedRequests = new ArrayList<Map<String, Object>>();
+
+	/* Pending changes (sync root -> added?), in arrival order. */
+	private final Map<String, Boolean> pendingChanges = new LinkedHashMap<String, Boolean>();
 
-	private long lastUpdateTime = System.currentTimeMillis() - sleepTimeBeforeNextUpdate;
+	/* Jobs of the pending changes, acknowledged once they are applied. */
+	private final List<JobConsumer.AsyncHandler> pendingJobs = new ArrayList<JobConsumer.AsyncHandler>();
+
+	/* Expected sync time of the pending additions. */
+	private final Map<String, Long> pendingSyncOnceTimes = new LinkedHashMap<String, Long>();
+
+	private ScheduledFuture<?> pendingFlush = null;
+
+	/* Sync-once operations started by the last update. */
+	private final List<SyncOnceCompletionDetector> runningSyncOnces = new ArrayList<SyncOnceCompletionDetector>();
+
+	/* Upper bound for the running sync-once operations. */
+	private long syncOnceDeadline = 0;
+
+	/* Incremented whenever the VLT Sync Service configuration changes. */
+	private volatile long configurationVersion = 0;
+
+	/* Cached VLT Sync Service configuration and its version. */
+	private Configuration cachedConfiguration = null;
+
+	private Dictionary<String, Object> cachedProperties = null;
+
+	private long cachedConfigurationVersion = -1;
+
+	@Activate
+	protected void activate(final Map<String, Object> props) {
+		logger.debug("activate(): props = {}", props);
+		this.batchWindow = PropertiesUtil.toLong(props.get(PROP_BATCH_WINDOW), DEFAULT_BATCH_WINDOW);
+		this.syncOnceCheckInterval = PropertiesUtil.toLong(props.get(PROP_SYNC_ONCE_CHECK_INTERVAL),
+				DEFAULT_SYNC_ONCE_CHECK_INTERVAL);
+
+		final String completionPattern = PropertiesUtil.toString(props.get(PROP_SYNC_ONCE_COMPLETION_PATTERN),
+				DEFAULT_SYNC_ONCE_COMPLETION_PATTERN);
+		this.syncOnceCompletionPattern = StringUtils.isNotBlank(completionPattern)
+				? Pattern.compile(completionPattern) : null;
+
+		this.executor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		logger.debug("deactivate()");
+		synchronized (this.lock) {
+			if (this.executor != null) {
+				this.executor.shutdownNow();
+				this.executor = null;
+			}
+		}
+
+		/* Don't lose the changes still waiting to be applied. */
+		processQueuedRequests();
+		try {
+			flushPendingChanges(true);
+		} catch (IllegalStateException e) {
+			logger.error("deactivate(): pending changes were not applied", e);
+			synchronized (this.lock) {
+				/* Their jobs will be retried. */
+				for (JobConsumer.AsyncHandler handler : this.pendingJobs) {
+					handler.failed();
+				}
+				this.pendingJobs.clear();
+			}
+		}
+	}
 
 	/**
 	 * Process a configuration update of the VLT Sync Service.
 	 * 
+	 * @return OK once the update is applied or ASYNC while it is held (by the
+	 *         batch window or by a running sync-once)
 	 */
 	public JobResult process(Job job) {
 		logger.debug("process(): job = {}", job);
+		final JobConsumer.AsyncHandler handler = (JobConsumer.AsyncHandler) job
+				.getProperty(JobConsumer.PROPERTY_JOB_ASYNC_HANDLER);
 		try {
-			final String action = job.getProperty(KEY_ACTION, String.class);
-			final File syncRoot = job.getProperty(KEY_SYNC_ROOT, File.class);
-
-			if (ACTION_ADD.equals(action)) {
-				final Long expectedSyncTime = job.getProperty(KEY_EXPECTED_SYNC_TIME, Long.class);
-				addSyncRoot(syncRoot, expectedSyncTime);
-			} else if (ACTION_REMOVE.equals(action)) {
-				removeSyncRoot(syncRoot);
-			} else {
-				throw new IllegalArgumentException("process(): Unknown action " + action);
+			synchronized (this.lock) {
+				if (handle(job.getProperty(KEY_ACTION, String.class), job.getProperty(KEY_SYNC_ROOT, File.class),
+						job.getProperty(KEY_PREVIOUS_SYNC_ROOT, File.class),
+						job.getProperty(KEY_EXPECTED_SYNC_TIME, Long.class), handler != null)) {
+					return JobResult.OK;
+				}
+
+				this.pendingJobs.add(handler);
+				return JobResult.ASYNC;
 			}
-
-			return JobResult.OK;
 		} catch (IllegalStateException e) {
 			logger.error("process(): recoverable error", e);
 			return JobResult.FAILED;
@@ -144,6 +289,147 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 		}
 	}
 
+	/**
+	 * Queue a configuration update of the VLT Sync Service in memory: a
+	 * faster, but non-persistent, alternative to Sling Jobs. The changes lost
+	 * by a crash are recovered by {@link #reconcile()}.
+	 * 
+	 * @param props
+	 *            the same properties of a job
+	 */
+	protected void enqueue(final Map<String, Object> props) throws IllegalStateException {
+		logger.debug("enqueue(): props = {}", props);
+		synchronized (this.lock) {
+			final ScheduledExecutorService executor = this.executor;
+			if (executor == null) {
+				throw new IllegalStateException("Service settings consumer is not active");
+			}
+
+			this.queuedRequests.add(new HashMap<String, Object>(props));
+			executor.execute(new Runnable() {
+				public void run() {
+					processQueuedRequests();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Make the VLT Sync Service sync roots match the local paths of all the
+	 * initial registrations, with a single configuration update. Only the sync
+	 * roots added by the registrations are removed: the ones set by hand are
+	 * kept. Added roots still waiting for a sync-once are expected to take
+	 * their sync-once expected times.
+	 */
+	protected void reconcile() throws IllegalStateException {
+		final Set<String> syncRoots = new LinkedHashSet<String>();
+		final Map<String, Long> syncOnceTimes = new LinkedHashMap<String, Long>();
+		try {
+			final Configuration[] registrations = this.configAdmin.listConfigurations("("
+					+ ConfigurationAdmin.SERVICE_FACTORYPID + "=" + InitialRegistrationImpl.class.getName() + ")");
+			if (registrations != null) {
+				for (Configuration registration : registrations) {
+					final Dictionary<String, ?> properties = registration.getProperties();
+					final String localPath = properties != null ? StringUtils.trim(PropertiesUtil.toString(
+							properties.get(InitialRegistrationImpl.PROP_LOCAL_PATH), null)) : null;
+					if (StringUtils.isNotEmpty(localPath)) {
+						final File syncRoot = new File(localPath);
+						syncRoots.add(syncRoot.getAbsolutePath());
+						if (hasSyncOnce(syncRoot)) {
+							syncOnceTimes.put(syncRoot.getAbsolutePath(), PropertiesUtil.toLong(
+									properties.get(InitialRegistrationImpl.PROP_SYNC_ONCE_EXPECTED_TIME),
+									InitialRegistrationImpl.DEFAULT_SYNC_ONCE_EXPECTED_TIME));
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} catch (InvalidSyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+
+		synchronized (this.lock) {
+			final Dictionary<String, Object> properties = getProperties(getConfiguration());
+			final Set<String> currentSyncRoots = getSyncRoots(properties, PROP_SYNCROOTS);
+			final Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+			for (String syncRoot : getSyncRoots(properties, PROP_REGISTERED_SYNCROOTS)) {
+				if (!syncRoots.contains(syncRoot)) {
+					changes.put(syncRoot, Boolean.FALSE);
+				}
+			}
+			for (String syncRoot : syncRoots) {
+				changes.put(syncRoot, Boolean.TRUE);
+			}
+			/* The ones already there are not restarted. */
+			syncOnceTimes.keySet().removeAll(currentSyncRoots);
+
+			logger.info("reconcile(): syncRoots = {}, syncOnceTimes = {}", syncRoots, syncOnceTimes);
+			applyChanges(changes, syncOnceTimes);
+		}
+	}
+
+	/*
+	 * Is a sync-once still requested at .vlt-sync-config.properties?
+	 */
+	private boolean hasSyncOnce(final File syncRoot) throws IOException {
+		final SyncConfig config = new SyncConfig(syncRoot);
+		config.reloadIfModified();
+		return config.getSyncOnce() != null || !config.getSyncOncePaths().isEmpty();
+	}
+
+	private void processQueuedRequests() {
+		synchronized (this.lock) {
+			while (!this.queuedRequests.isEmpty()) {
+				final Map<String, Object> props = this.queuedRequests.remove(0);
+				final String action = (String) props.get(KEY_ACTION);
+				final File syncRoot = (File) props.get(KEY_SYNC_ROOT);
+				final File previousSyncRoot = (File) props.get(KEY_PREVIOUS_SYNC_ROOT);
+				final Long expectedSyncTime = (Long) props.get(KEY_EXPECTED_SYNC_TIME);
+
+				try {
+					handle(action, syncRoot, previousSyncRoot, expectedSyncTime, true);
+				} catch (IllegalStateException e) {
+					/* Keep it with the pending changes, which are retried. */
+					logger.error("processQueuedRequests(): recoverable error", e);
+					if (previousSyncRoot != null) {
+						queueChange(previousSyncRoot.getAbsolutePath(), false, null);
+					}
+					queueChange(syncRoot.getAbsolutePath(), !ACTION_REMOVE.equals(action), expectedSyncTime);
+				} catch (RuntimeException e) {
+					logger.error("processQueuedRequests(): UNRECOVERABLE error", e);
+				}
+			}
+		}
+	}
+
+	/*
+	 * @return true if the change has been applied, false if it has been queued
+	 */
+	private boolean handle(final String action, final File syncRoot, final File previousSyncRoot,
+			final Long expectedSyncTime, final boolean canWait) throws IllegalStateException {
+		if (ACTION_ADD.equals(action)) {
+			return submitChange(syncRoot, true, expectedSyncTime, canWait);
+		} else if (ACTION_REMOVE.equals(action)) {
+			return submitChange(syncRoot, false, null, canWait);
+		} else if (ACTION_UPDATE.equals(action)) {
+			return submitUpdate(previousSyncRoot, syncRoot, expectedSyncTime, canWait);
+		} else {
+			throw new IllegalArgumentException("process(): Unknown action " + action);
+		}
+	}
+
+	/**
+	 * Invalidate the cached VLT Sync Service configuration whenever it changes
+	 * (including our own updates).
+	 */
+	public void configurationEvent(final ConfigurationEvent event) {
+		if (SERVICE_PID.equals(event.getPid())) {
+			logger.debug("configurationEvent(): type = {}", event.getType());
+			this.configurationVersion++;
+		}
+	}
+
 	/**
 	 * Add the specified directory to the sync roots, enabling the service when
 	 * necessary.
@@ -155,18 +441,13 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 	 */
 	protected void addSyncRoot(final File syncRoot, final Long expectedSyncTime) throws IllegalStateException {
 		logger.debug("addSyncRoot(): syncRoot = {}, expectedSyncTime = {}", syncRoot, expectedSyncTime);
-		final Configuration configuration = getConfiguration();
-		final Dictionary<String, Object> properties = getProperties(configuration);
-
-		final Set<String> syncRoots = getSyncRoots(properties);
+		final String path = syncRoot.getAbsolutePath();
+		final Map<String, Long> syncOnceTimes = expectedSyncTime != null ? Collections.singletonMap(path,
+				expectedSyncTime) : Collections.<String, Long> emptyMap();
 
-		syncRoots.add(syncRoot.getAbsolutePath());
-		if (syncRoots.size() == 1) {
-			enableSync(properties);
+		synchronized (this.lock) {
+			applyChanges(Collections.singletonMap(path, Boolean.TRUE), syncOnceTimes);
 		}
-
-		properties.put(PROP_SYNCROOTS, syncRoots.toArray(new String[syncRoots.size()]));
-		update(configuration, properties, expectedSyncTime);
 	}
 
 	/**
@@ -178,19 +459,234 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 	 */
 	protected void removeSyncRoot(final File syncRoot) throws IllegalStateException {
 		logger.debug("removeSyncRoot(): syncRoot = {}", syncRoot);
+		synchronized (this.lock) {
+			applyChanges(Collections.singletonMap(syncRoot.getAbsolutePath(), Boolean.FALSE),
+					Collections.<String, Long> emptyMap());
+		}
+	}
+
+	/**
+	 * Apply all the pending changes (received during the batch window or while
+	 * waiting for a sync-once) with a single configuration update.
+	 * 
+	 * @param force
+	 *            apply them even if there is a sync-once still running
+	 */
+	protected void flushPendingChanges(final boolean force) throws IllegalStateException {
+		synchronized (this.lock) {
+			this.pendingFlush = null;
+			if (this.pendingChanges.isEmpty()) {
+				acknowledgePendingJobs();
+				return;
+			}
+
+			if (!force && isWaitingForSyncOnce()) {
+				logger.debug("flushPendingChanges(): sync-once still running");
+				scheduleFlush(this.syncOnceCheckInterval);
+				return;
+			}
+
+			final Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>(this.pendingChanges);
+			final Map<String, Long> syncOnceTimes = new LinkedHashMap<String, Long>(this.pendingSyncOnceTimes);
+			logger.debug("flushPendingChanges(): changes = {}, syncOnceTimes = {}", changes, syncOnceTimes);
+
+			try {
+				applyChanges(changes, syncOnceTimes);
+				this.pendingChanges.clear();
+				this.pendingSyncOnceTimes.clear();
+				acknowledgePendingJobs();
+			} catch (IllegalStateException e) {
+				/* Keep them and try again later. */
+				scheduleFlush(Math.max(this.batchWindow, this.syncOnceCheckInterval));
+				throw e;
+			}
+		}
+	}
+
+	private void acknowledgePendingJobs() {
+		for (JobConsumer.AsyncHandler handler : this.pendingJobs) {
+			handler.ok();
+		}
+		this.pendingJobs.clear();
+	}
+
+	/*
+	 * Can a change be applied right away? Otherwise, it has to wait for the
+	 * batch window or for the running sync-once operations.
+	 */
+	private boolean canApply(final boolean canWait) {
+		return !canWait || this.executor == null
+				|| (this.batchWindow <= 0 && this.pendingChanges.isEmpty() && !isWaitingForSyncOnce());
+	}
+
+	private boolean submitChange(final File syncRoot, final boolean add, final Long expectedSyncTime,
+			final boolean canWait) throws IllegalStateException {
+		synchronized (this.lock) {
+			if (canApply(canWait)) {
+				if (add) {
+					addSyncRoot(syncRoot, expectedSyncTime);
+				} else {
+					removeSyncRoot(syncRoot);
+				}
+				return true;
+			}
+
+			queueChange(syncRoot.getAbsolutePath(), add, expectedSyncTime);
+			return false;
+		}
+	}
+
+	private boolean submitUpdate(final File previousSyncRoot, final File syncRoot, final Long expectedSyncTime,
+			final boolean canWait) throws IllegalStateException {
+		final String previousPath = previousSyncRoot.getAbsolutePath();
+		final String path = syncRoot.getAbsolutePath();
+
+		synchronized (this.lock) {
+			if (canApply(canWait)) {
+				final Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+				changes.put(previousPath, Boolean.FALSE);
+				changes.put(path, Boolean.TRUE);
+				final Map<String, Long> syncOnceTimes = expectedSyncTime != null ? Collections.singletonMap(path,
+						expectedSyncTime) : Collections.<String, Long> emptyMap();
+
+				applyChanges(changes, syncOnceTimes);
+				return true;
+			}
+
+			queueChange(previousPath, false, null);
+			queueChange(path, true, expectedSyncTime);
+			return false;
+		}
+	}
+
+	private void queueChange(final String syncRoot, final boolean add, final Long expectedSyncTime) {
+		logger.debug("queueChange(): syncRoot = {}, add = {}", syncRoot, add);
+
+		/* The last change of a given root wins (and goes to the end). */
+		this.pendingChanges.remove(syncRoot);
+		this.pendingChanges.put(syncRoot, add);
+		this.pendingSyncOnceTimes.remove(syncRoot);
+		if (add && expectedSyncTime != null) {
+			this.pendingSyncOnceTimes.put(syncRoot, expectedSyncTime);
+		}
+
+		if (this.pendingFlush == null) {
+			scheduleFlush(this.batchWindow > 0 ? this.batchWindow : this.syncOnceCheckInterval);
+		}
+	}
+
+	private void scheduleFlush(final long delay) {
+		final ScheduledExecutorService executor = this.executor;
+		if (executor == null || executor.isShutdown()) {
+			return;
+		}
+
+		this.pendingFlush = executor.schedule(new Runnable() {
+			public void run() {
+				try {
+					flushPendingChanges(false);
+				} catch (RuntimeException e) {
+					logger.error("flushPendingChanges(): error", e);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean isWaitingForSyncOnce() {
+		if (this.runningSyncOnces.isEmpty()) {
+			return false;
+		}
+
+		if (System.currentTimeMillis() >= this.syncOnceDeadline) {
+			logger.info("isWaitingForSyncOnce(): expected sync time is over for {} sync root(s)",
+					this.runningSyncOnces.size());
+			this.runningSyncOnces.clear();
+			return false;
+		}
+
+		for (Iterator<SyncOnceCompletionDetector> i = this.runningSyncOnces.iterator(); i.hasNext();) {
+			final SyncOnceCompletionDetector detector = i.next();
+			if (detector.isCompleted()) {
+				logger.debug("isWaitingForSyncOnce(): {} is done", detector.getSyncRoot());
+				i.remove();
+			}
+		}
+
+		return !this.runningSyncOnces.isEmpty();
+	}
+
+	private void applyChanges(final Map<String, Boolean> changes, final Map<String, Long> syncOnceTimes)
+			throws IllegalStateException {
 		final Configuration configuration = getConfiguration();
 		final Dictionary<String, Object> properties = getProperties(configuration);
 
-		final Set<String> syncRoots = getSyncRoots(properties);
+		final Set<String> syncRoots = getSyncRoots(properties, PROP_SYNCROOTS);
+		final Set<String> previousSyncRoots = new LinkedHashSet<String>(syncRoots);
+		final Set<String> registeredSyncRoots = getSyncRoots(properties, PROP_REGISTERED_SYNCROOTS);
+		final Set<String> previousRegisteredSyncRoots = new LinkedHashSet<String>(registeredSyncRoots);
+		final Object previousEnabled = properties.get(PROP_ENABLED);
+		for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+			/* Only the sync roots it adds are claimed: the ones set by hand aren't. */
+			final boolean present = syncRoots.contains(change.getKey());
+			applyChange(properties, syncRoots, change.getKey(), change.getValue());
+			if (change.getValue()) {
+				if (!present) {
+					registeredSyncRoots.add(change.getKey());
+				}
+			} else {
+				registeredSyncRoots.remove(change.getKey());
+			}
+		}
+		properties.put(PROP_REGISTERED_SYNCROOTS,
+				registeredSyncRoots.toArray(new String[registeredSyncRoots.size()]));
+
+		/* Start watching before the service gets a chance to write anything. */
+		final List<SyncOnceCompletionDetector> detectors = new ArrayList<SyncOnceCompletionDetector>();
+		long longestSyncTime = 0;
+		for (Map.Entry<String, Long> syncOnceTime : syncOnceTimes.entrySet()) {
+			detectors.add(new SyncOnceCompletionDetector(new File(syncOnceTime.getKey()),
+					this.syncOnceCompletionPattern));
+			longestSyncTime = Math.max(longestSyncTime, syncOnceTime.getValue());
+		}
+		final long deadline = System.currentTimeMillis() + longestSyncTime;
+
+		if (syncRoots.equals(previousSyncRoots) && registeredSyncRoots.equals(previousRegisteredSyncRoots)
+				&& ObjectUtils.equals(toBoolean(previousEnabled), toBoolean(properties.get(PROP_ENABLED)))) {
+			/*
+			 * Restarting the service wouldn't change a thing. But a sync-once
+			 * may still be requested through .vlt-sync-config.properties.
+			 */
+			logger.debug("applyChanges(): nothing to update, syncRoots = {}", syncRoots);
+			if (!detectors.isEmpty()) {
+				this.runningSyncOnces.addAll(detectors);
+				this.syncOnceDeadline = Math.max(this.syncOnceDeadline, deadline);
+			}
+			return;
+		}
+
+		update(configuration, properties);
 
-		syncRoots.remove(syncRoot.getAbsolutePath());
-		properties.put(PROP_SYNCROOTS, syncRoots.toArray(new String[syncRoots.size()]));
+		/* A restart interrupts the previous sync-once operations anyway. */
+		this.runningSyncOnces.clear();
+		this.runningSyncOnces.addAll(detectors);
+		this.syncOnceDeadline = deadline;
+	}
 
-		if (syncRoots.size() == 0) {
-			disableSync(properties);
+	private void applyChange(final Dictionary<String, Object> properties, final Set<String> syncRoots,
+			final String syncRoot, final boolean add) {
+		if (add) {
+			syncRoots.add(syncRoot);
+			if (syncRoots.size() == 1) {
+				enableSync(properties);
+			}
+		} else {
+			syncRoots.remove(syncRoot);
+			if (syncRoots.size() == 0) {
+				disableSync(properties);
+			}
 		}
 
-		update(configuration, properties, null);
+		properties.put(PROP_SYNCROOTS, syncRoots.toArray(new String[syncRoots.size()]));
 	}
 
 	private void enableSync(final Dictionary<String, Object> properties) {
@@ -203,23 +699,43 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 		properties.put(PROP_ENABLED, Boolean.FALSE);
 	}
 
+	private Boolean toBoolean(final Object enabled) {
+		return enabled != null ? PropertiesUtil.toBoolean(enabled, false) : null;
+	}
+
 	private Configuration getConfiguration() throws IllegalStateException {
+		final long version = this.configurationVersion;
+		if (this.cachedConfiguration != null && this.cachedConfigurationVersion == version) {
+			return this.cachedConfiguration;
+		}
+
 		try {
-			return this.configAdmin.getConfiguration(SERVICE_PID);
+			this.cachedConfiguration = this.configAdmin.getConfiguration(SERVICE_PID);
+			this.cachedProperties = null;
+			this.cachedConfigurationVersion = version;
+			return this.cachedConfiguration;
 		} catch (IOException e) {
+			this.cachedConfiguration = null;
 			throw new IllegalStateException(e);
 		}
 	}
 
 	@SuppressWarnings("unchecked")
 	private Dictionary<String, Object> getProperties(final Configuration configuration) {
-		Dictionary<String, Object> properties = configuration.getProperties();
-		return properties;
+		if (this.cachedProperties == null) {
+			Dictionary<String, Object> properties = configuration.getProperties();
+			if (properties == null) {
+				/* Never configured before. */
+				properties = new Hashtable<String, Object>();
+			}
+			this.cachedProperties = properties;
+		}
+		return this.cachedProperties;
 	}
 
-	private Set<String> getSyncRoots(final Dictionary<String, Object> properties) {
+	private Set<String> getSyncRoots(final Dictionary<String, Object> properties, final String key) {
 		final Set<String> syncRoots = new LinkedHashSet<String>();
-		String[] syncRootArray = PropertiesUtil.toStringArray(properties.get(PROP_SYNCROOTS));
+		String[] syncRootArray = PropertiesUtil.toStringArray(properties.get(key));
 		if (syncRootArray != null) {
 			syncRoots.addAll(Arrays.asList(syncRootArray));
 			syncRootArray = null;
@@ -228,12 +744,10 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 		return syncRoots;
 	}
 
-	private void update(final Configuration configuration, final Dictionary<String, Object> properties,
-			final Long timeToWaitBeforeNextUpdate) throws IllegalStateException {
+	private void update(final Configuration configuration, final Dictionary<String, Object> properties)
+			throws IllegalStateException {
 		logger.debug("update(): configuration = {}, properties = {}", configuration, properties);
 
-		waitBeforeUpdate(timeToWaitBeforeNextUpdate);
-
 		/*
 		 * Now, change its configuration!
 		 */
@@ -241,31 +755,14 @@ public class ServiceSettingsConsumerImpl implements JobConsumer {
 		try {
 			configuration.update(properties);
 		} catch (IOException e) {
+			/* Don't trust the cached (and already changed) properties anymore. */
+			this.cachedConfiguration = null;
 			throw new IllegalStateException(e);
+		} catch (IllegalStateException e) {
+			/* The configuration has been deleted in the meantime. */
+			this.cachedConfiguration = null;
+			throw e;
 		}
 	}
 
-	private void waitBeforeUpdate(final Long timeToWaitBeforeNextUpdate) {
-		final long timeBetweenCalls = System.currentTimeMillis() - this.lastUpdateTime;
-		final long remainingSleepTime = this.sleepTimeBeforeNextUpdate - timeBetweenCalls;
-
-		logger.debug("waitBeforeUpdate(): lastUpdateTime = {}, now = {}", this.lastUpdateTime,
-				System.currentTimeMillis());
-		logger.debug("waitBeforeUpdate(): sleepTimeBeforeNextUpdate = {}, remainingSleepTime = {}",
-				this.sleepTimeBeforeNextUpdate, remainingSleepTime);
-
-		if (remainingSleepTime > 0) {
-			logger.debug("waitBeforeUpdate(): sleeping for {} (ms)", remainingSleepTime);
-			Thread.yield();
-			try {
-				Thread.sleep(remainingSleepTime);
-			} catch (InterruptedException e) {
-			} finally {
-				logger.debug("waitBeforeUpdate(): waking up!", remainingSleepTime);
-			}
-		}
-		this.sleepTimeBeforeNextUpdate = timeToWaitBeforeNextUpdate != null ? timeToWaitBeforeNextUpdate : 0;
-		this.lastUpdateTime = System.currentTimeMillis();
-	}
-
 }
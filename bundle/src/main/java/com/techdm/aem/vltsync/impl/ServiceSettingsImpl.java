@@ -18,31 +18,144 @@ package com.techdm.aem.vltsync.impl;
 import java.io.File;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.event.jobs.JobManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.techdm.aem.vltsync.impl.sync.SyncEngineImpl;
+
 /**
  * Handles (reads and writes)
- * org.apache.jackrabbit.vault.sync.impl.VaultSyncServiceImpl settings.
+ * org.apache.jackrabbit.vault.sync.impl.VaultSyncServiceImpl settings or,
+ * alternatively, drives the embedded sync engine.
  * 
  * @author Daniel Henrique Alves Lima
  *
  */
 @Service(ServiceSettingsImpl.class)
-@Component
+@Component(metatype = true, label = "TechDM - VLT Sync Service Settings", description = "Component for"
+		+ " registering the sync roots")
 public class ServiceSettingsImpl {
 
+	/**
+	 * Sync roots are handled by the VLT Sync Service (changing its settings
+	 * restarts it).
+	 */
+	protected static final String SYNC_ENGINE_VAULT = "VAULT";
+
+	/**
+	 * Sync roots are handled by the embedded sync engine (each one of them is
+	 * started and stopped individually).
+	 */
+	protected static final String SYNC_ENGINE_EMBEDDED = "EMBEDDED";
+
+	@Property(label = "Sync Engine", value = SYNC_ENGINE_VAULT, description = "Engine responsible for the"
+			+ " sync roots.[Optional] [Default: " + SYNC_ENGINE_VAULT + "]", options = {
+					@PropertyOption(name = SYNC_ENGINE_VAULT, value = "VLT Sync Service"),
+					@PropertyOption(name = SYNC_ENGINE_EMBEDDED, value = "Embedded sync engine") })
+	protected static final String PROP_SYNC_ENGINE = "sync.engine";
+
+	/**
+	 * Settings changes are queued as Sling Jobs (persistent).
+	 */
+	protected static final String QUEUE_TYPE_JOB = "JOB";
+
+	/**
+	 * Settings changes are queued in memory (faster, but non-persistent: the
+	 * sync roots are reconciled with the registrations on startup).
+	 */
+	protected static final String QUEUE_TYPE_MEMORY = "MEMORY";
+
+	@Property(label = "Queue Type", value = QUEUE_TYPE_JOB, description = "How the changes of VLT Sync Service"
+			+ " settings are queued.[Optional] [Default: " + QUEUE_TYPE_JOB + "]", options = {
+					@PropertyOption(name = QUEUE_TYPE_JOB, value = "Sling Jobs"),
+					@PropertyOption(name = QUEUE_TYPE_MEMORY, value = "In memory") })
+	protected static final String PROP_QUEUE_TYPE = "queue.type";
+
+	/* Default value for preparation.threads property. */
+	private static final int DEFAULT_PREPARATION_THREADS = 2;
+
+	@Property(label = "Preparation Threads", intValue = DEFAULT_PREPARATION_THREADS, description = "How many"
+			+ " registrations can prepare their local paths at the same time?[Optional] [Default: "
+			+ DEFAULT_PREPARATION_THREADS + "]")
+	protected static final String PROP_PREPARATION_THREADS = "preparation.threads";
+
 	/* Logger instance. */
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	@Reference
 	private JobManager jobManager;
 
+	/* Only needed (and only started) by the embedded sync engine. */
+	@Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+	private volatile SyncEngineImpl syncEngine;
+
+	@Reference
+	private ServiceSettingsConsumerImpl settingsConsumer;
+
+	private String syncEngineType = SYNC_ENGINE_VAULT;
+
+	private String queueType = QUEUE_TYPE_JOB;
+
+	private ExecutorService executor = null;
+
+	@Activate
+	protected void activate(final Map<String, Object> props) {
+		logger.debug("activate(): props = {}", props);
+		this.syncEngineType = PropertiesUtil.toString(props.get(PROP_SYNC_ENGINE), SYNC_ENGINE_VAULT);
+		this.queueType = PropertiesUtil.toString(props.get(PROP_QUEUE_TYPE), QUEUE_TYPE_JOB);
+
+		final int preparationThreads = PropertiesUtil.toInteger(props.get(PROP_PREPARATION_THREADS),
+				DEFAULT_PREPARATION_THREADS);
+		this.executor = Executors.newFixedThreadPool(Math.max(1, preparationThreads));
+
+		if (!isEmbedded() && isInMemory()) {
+			/* Changes queued before a crash may have been lost. */
+			try {
+				this.settingsConsumer.reconcile();
+			} catch (IllegalStateException e) {
+				logger.error("activate(): unable to reconcile the sync roots", e);
+			}
+		}
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		logger.debug("deactivate()");
+		if (this.executor != null) {
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Run a (slow) registration task, such as the preparation of its local
+	 * path, in background. At most "preparation.threads" tasks run at once.
+	 * 
+	 * @param task
+	 *            task to run
+	 */
+	public void execute(final Runnable task) throws IllegalStateException {
+		final ExecutorService executor = this.executor;
+		if (executor == null) {
+			throw new IllegalStateException("Service settings are not active");
+		}
+		executor.execute(task);
+	}
+
 	/**
 	 * Add the specified directory to the sync roots, enabling the service when
 	 * necessary.
@@ -56,6 +169,12 @@ public class ServiceSettingsImpl {
 	public void addSyncRoot(final File syncRoot, Long expectedSyncTime) throws IllegalStateException {
 		logger.debug("addSyncRoot(): syncRoot = {}", syncRoot);
 
+		if (isEmbedded()) {
+			/* The engine itself knows when its sync-once is over. */
+			getSyncEngine().addSyncRoot(syncRoot);
+			return;
+		}
+
 		/*
 		 * Job manager doesn't like properties with null value, so we use
 		 * Hashtable here to assure that only non-null values will pass along.
@@ -67,7 +186,7 @@ public class ServiceSettingsImpl {
 			props.put(ServiceSettingsConsumerImpl.KEY_EXPECTED_SYNC_TIME, expectedSyncTime);
 		}
 
-		jobManager.addJob(ServiceSettingsConsumerImpl.TOPIC_NAME, props);
+		submit(props);
 	}
 
 	/**
@@ -80,6 +199,11 @@ public class ServiceSettingsImpl {
 	public void removeSyncRoot(final File syncRoot) throws IllegalStateException {
 		logger.debug("removeSyncRoot(): syncRoot = {}", syncRoot);
 
+		if (isEmbedded()) {
+			getSyncEngine().removeSyncRoot(syncRoot);
+			return;
+		}
+
 		/*
 		 * Job manager doesn't like properties with null value, so we use
 		 * Hashtable here to assure that only non-null values will pass along.
@@ -88,7 +212,72 @@ public class ServiceSettingsImpl {
 		props.put(ServiceSettingsConsumerImpl.KEY_ACTION, ServiceSettingsConsumerImpl.ACTION_REMOVE);
 		props.put(ServiceSettingsConsumerImpl.KEY_SYNC_ROOT, syncRoot);
 
-		jobManager.addJob(ServiceSettingsConsumerImpl.TOPIC_NAME, props);
+		submit(props);
+	}
+
+	/**
+	 * Replace a sync root by another one with a single settings change (the
+	 * service is never left without both of them).
+	 * 
+	 * @param previousSyncRoot
+	 *            directory to remove
+	 * @param syncRoot
+	 *            directory to add
+	 * @param expectedSyncTime
+	 *            the expected sync time as result of adding this directory or
+	 *            null if sync once won't occur.
+	 */
+	public void updateSyncRoot(final File previousSyncRoot, final File syncRoot, Long expectedSyncTime)
+			throws IllegalStateException {
+		logger.debug("updateSyncRoot(): previousSyncRoot = {}, syncRoot = {}", previousSyncRoot, syncRoot);
+
+		if (isEmbedded()) {
+			final SyncEngineImpl syncEngine = getSyncEngine();
+			syncEngine.removeSyncRoot(previousSyncRoot);
+			syncEngine.addSyncRoot(syncRoot);
+			return;
+		}
+
+		/*
+		 * Job manager doesn't like properties with null value, so we use
+		 * Hashtable here to assure that only non-null values will pass along.
+		 */
+		final Map<String, Object> props = new Hashtable<String, Object>();
+		props.put(ServiceSettingsConsumerImpl.KEY_ACTION, ServiceSettingsConsumerImpl.ACTION_UPDATE);
+		props.put(ServiceSettingsConsumerImpl.KEY_PREVIOUS_SYNC_ROOT, previousSyncRoot);
+		props.put(ServiceSettingsConsumerImpl.KEY_SYNC_ROOT, syncRoot);
+		if (expectedSyncTime != null) {
+			props.put(ServiceSettingsConsumerImpl.KEY_EXPECTED_SYNC_TIME, expectedSyncTime);
+		}
+
+		submit(props);
+	}
+
+	private void submit(final Map<String, Object> props) throws IllegalStateException {
+		if (isInMemory()) {
+			this.settingsConsumer.enqueue(props);
+		} else {
+			this.jobManager.addJob(ServiceSettingsConsumerImpl.TOPIC_NAME, props);
+		}
+	}
+
+	private SyncEngineImpl getSyncEngine() throws IllegalStateException {
+		final SyncEngineImpl syncEngine = this.syncEngine;
+		if (syncEngine == null) {
+			throw new IllegalStateException("Embedded sync engine is not available");
+		}
+		return syncEngine;
+	}
+
+	private boolean isInMemory() {
+		return QUEUE_TYPE_MEMORY.equals(this.queueType);
+	}
+
+	/**
+	 * @return true if the sync roots are handled by the embedded sync engine
+	 */
+	protected boolean isEmbedded() {
+		return SYNC_ENGINE_EMBEDDED.equals(this.syncEngineType);
 	}
 
 }
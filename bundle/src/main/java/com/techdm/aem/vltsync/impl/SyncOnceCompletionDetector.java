@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects the end of the sync-once operation of a single sync root: the VLT
+ * Sync Service clears the sync-once instruction of its
+ * .vlt-sync-config.properties and (optionally) writes an end-of-sync line to
+ * its .vlt-sync.log.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncOnceCompletionDetector {
+
+	/** Sync root config file. */
+	protected static final String CONFIG_FILENAME = ".vlt-sync-config.properties";
+
+	/** Sync root log file. */
+	protected static final String LOG_FILENAME = ".vlt-sync.log";
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File syncRoot;
+
+	private final Pattern completionPattern;
+
+	private long logOffset;
+
+	private boolean completionLogged = false;
+
+	/**
+	 * @param syncRoot
+	 *            sync root being watched
+	 * @param completionPattern
+	 *            the end-of-sync line to look for at .vlt-sync.log or null if
+	 *            only .vlt-sync-config.properties should be checked
+	 */
+	public SyncOnceCompletionDetector(final File syncRoot, final Pattern completionPattern) {
+		this.syncRoot = syncRoot;
+		this.completionPattern = completionPattern;
+
+		/* Only the lines written from now on matter. */
+		this.logOffset = getLogFile().length();
+		this.completionLogged = completionPattern == null;
+	}
+
+	public File getSyncRoot() {
+		return this.syncRoot;
+	}
+
+	/**
+	 * Is the sync-once operation completed?
+	 * 
+	 * @return true if the sync-once operation is over
+	 */
+	public boolean isCompleted() {
+		if (!this.completionLogged) {
+			this.completionLogged = scanLog();
+		}
+
+		final boolean completed = this.completionLogged && !isSyncOncePending();
+		logger.debug("isCompleted(): syncRoot = {}, completed = {}", this.syncRoot, completed);
+		return completed;
+	}
+
+	private boolean isSyncOncePending() {
+		final File configFile = new File(this.syncRoot, CONFIG_FILENAME);
+		if (!configFile.exists()) {
+			return false;
+		}
+
+		final Properties props = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(configFile);
+			props.load(in);
+		} catch (IOException e) {
+			/* It may be being written right now. Try again later. */
+			logger.debug("isSyncOncePending()", e);
+			return true;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+
+		return StringUtils.isNotBlank(props.getProperty("sync-once"));
+	}
+
+	private boolean scanLog() {
+		final File logFile = getLogFile();
+		final long length = logFile.length();
+		if (length < this.logOffset) {
+			/* Truncated or rotated. */
+			this.logOffset = 0;
+		}
+		if (length == this.logOffset) {
+			return false;
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(logFile, "r");
+			file.seek(this.logOffset);
+
+			final ByteArrayOutputStream line = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			long position = this.logOffset;
+			int read;
+			while ((read = file.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					position++;
+					if (buffer[i] == '\n') {
+						/* Only complete lines are consumed. */
+						this.logOffset = position;
+						if (this.completionPattern.matcher(line.toString("UTF-8")).find()) {
+							return true;
+						}
+						line.reset();
+					} else {
+						line.write(buffer[i]);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.debug("scanLog()", e);
+		} finally {
+			IOUtils.closeQuietly(file);
+		}
+
+		return false;
+	}
+
+	private File getLogFile() {
+		return new File(this.syncRoot, LOG_FILENAME);
+	}
+
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directories of the sync roots and pushes the changed paths to
+ * them, instead of waiting for the next full scan. Changes are coalesced: the
+ * paths of a sync root are only pushed after some quiet time, so that a save
+ * storm (an IDE saving through a temporary file and a rename, a formatter
+ * touching a file several times, ...) results in a single sync, which only
+ * looks at the net state of each path. Temporary and swap files are never
+ * pushed (see {@link SyncRoot#isIgnored(String)}), and neither are the files
+ * just written by the sync roots (see {@link SyncEchoes}). Edits of the config
+ * and filter files are pushed too, so a sync-once request doesn't wait for
+ * the next full sync.
+ * <p>
+ * When native watches run out (fs.inotify.max_user_watches, for instance),
+ * the remaining directories are polled instead, more often the more recently
+ * they changed, and the hottest polled directories periodically take the
+ * watches of the coldest watched ones.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class FsWatcher implements Runnable {
+
+	/*
+	 * A sync root that never gets quiet is still pushed after this many
+	 * debounce times.
+	 */
+	private static final int MAX_DELAY_FACTOR = 10;
+
+	/* Bounds of the polling interval of a directory without a watch. */
+	private static final long MIN_POLL_INTERVAL = 500;
+
+	private static final long MAX_POLL_INTERVAL = 60000;
+
+	/* How often the watches are re-balanced between directories. */
+	private static final long REBALANCE_INTERVAL = 10000;
+
+	/* Snapshot value of a subdirectory. */
+	private static final long DIRECTORY = -1;
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final Executor executor;
+
+	private final long debounce;
+
+	private final int queueSize;
+
+	private final int maxWatches;
+
+	private final WatchService watchService;
+
+	/* All the known directories (watched or polled), by path. */
+	private final Map<Path, WatchedDir> dirs = new HashMap<Path, WatchedDir>();
+
+	/* Watched directories, by key. */
+	private final Map<WatchKey, WatchedDir> watchedDirs = new HashMap<WatchKey, WatchedDir>();
+
+	/* Polled directories, by time of their next poll. */
+	private final PriorityQueue<WatchedDir> polledDirs = new PriorityQueue<WatchedDir>(11,
+			new Comparator<WatchedDir>() {
+				public int compare(final WatchedDir dir1, final WatchedDir dir2) {
+					return dir1.nextPoll < dir2.nextPoll ? -1 : (dir1.nextPoll == dir2.nextPoll ? 0 : 1);
+				}
+			});
+
+	/* Once some directory could not be watched, watches are re-balanced. */
+	private boolean watchLimitReached = false;
+
+	private long nextRebalance = 0;
+
+	/* Pending changes, by sync root. */
+	private final Map<SyncRoot, Changes> changes = new LinkedHashMap<SyncRoot, Changes>();
+
+	private Thread thread = null;
+
+	private long overflowCount = 0;
+
+	private long rescanCount = 0;
+
+	/**
+	 * @param executor
+	 *            the executor which will run the syncs of the changed paths
+	 * @param debounce
+	 *            quiet time (in milliseconds) before the changed paths of a
+	 *            sync root are pushed
+	 * @param queueSize
+	 *            how many changed paths can be held for each sync root; beyond
+	 *            that, their directories are rescanned instead
+	 * @param maxWatches
+	 *            how many directories can be watched natively (0 for as many as
+	 *            the operating system allows); the other ones are polled
+	 */
+	public FsWatcher(final Executor executor, final long debounce, final int queueSize, final int maxWatches)
+			throws IOException {
+		this.executor = executor;
+		this.debounce = Math.max(0, debounce);
+		this.queueSize = Math.max(1, queueSize);
+		this.maxWatches = Math.max(0, maxWatches);
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	public synchronized void start() {
+		if (this.thread == null) {
+			this.thread = new Thread(this, "vlt-sync-watcher");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+	}
+
+	public void close() {
+		logger.debug("close()");
+		synchronized (this) {
+			this.dirs.clear();
+			this.watchedDirs.clear();
+			this.polledDirs.clear();
+			this.changes.clear();
+			this.thread = null;
+		}
+		try {
+			this.watchService.close();
+		} catch (IOException e) {
+			logger.warn("close(): error while closing the watch service", e);
+		}
+	}
+
+	/**
+	 * Start watching all the directories of a sync root.
+	 * 
+	 * @param syncRoot
+	 *            sync root to watch
+	 */
+	public void register(final SyncRoot syncRoot) throws IOException {
+		logger.debug("register(): localDir = {}", syncRoot.getLocalDir());
+		if (!syncRoot.getLocalDir().isDirectory()) {
+			throw new FileNotFoundException(syncRoot.getLocalDir() + " is not a directory");
+		}
+		register(new WatchedDir(syncRoot, new SyncTransfer(syncRoot.getLocalDir()), syncRoot.getLocalDir()));
+	}
+
+	/**
+	 * Stop watching the directories of a sync root. Its pending changes are
+	 * discarded.
+	 * 
+	 * @param syncRoot
+	 *            sync root to forget
+	 */
+	public synchronized void unregister(final SyncRoot syncRoot) {
+		logger.debug("unregister(): localDir = {}", syncRoot.getLocalDir());
+		for (WatchedDir dir : new ArrayList<WatchedDir>(this.dirs.values())) {
+			if (dir.syncRoot == syncRoot) {
+				forget(dir);
+			}
+		}
+		this.changes.remove(syncRoot);
+	}
+
+	/*
+	 * Watch (or poll) a directory and its subdirectories.
+	 */
+	private void register(final WatchedDir dir) {
+		synchronized (this) {
+			if (!this.dirs.containsKey(dir.path)) {
+				this.dirs.put(dir.path, dir);
+				if (!watch(dir)) {
+					dir.snapshot = snapshot(dir.path.toFile());
+					dir.schedule(System.currentTimeMillis());
+					this.polledDirs.add(dir);
+					if (this.thread != null && this.thread != Thread.currentThread()) {
+						this.thread.interrupt();
+					}
+				}
+			}
+		}
+
+		final File[] children = dir.path.toFile().listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory() && !SyncRoot.isIgnored(child.getName())) {
+					register(dir.child(child));
+				}
+			}
+		}
+	}
+
+	private synchronized boolean watch(final WatchedDir dir) {
+		if (this.maxWatches > 0 && this.watchedDirs.size() >= this.maxWatches) {
+			this.watchLimitReached = true;
+			return false;
+		}
+
+		try {
+			dir.key = dir.path.register(this.watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+			final WatchedDir moved = this.watchedDirs.put(dir.key, dir);
+			if (moved != null && moved != dir) {
+				/* The watch follows a moved directory: its old path is gone. */
+				moved.key = null;
+				forget(moved);
+			}
+			return true;
+		} catch (IOException e) {
+			if (!this.watchLimitReached) {
+				logger.info("watch(): cannot watch {} ({}), polling it instead", dir.path, e.getMessage());
+			}
+			this.watchLimitReached = true;
+			return false;
+		}
+	}
+
+	private synchronized void forget(final WatchedDir dir) {
+		if (this.dirs.get(dir.path) == dir) {
+			this.dirs.remove(dir.path);
+		}
+		if (dir.key != null) {
+			if (this.watchedDirs.get(dir.key) == dir) {
+				dir.key.cancel();
+				this.watchedDirs.remove(dir.key);
+			}
+		} else {
+			this.polledDirs.remove(dir);
+		}
+	}
+
+	/*
+	 * Forget a removed (or moved) directory and its subdirectories: a watch
+	 * follows a moved directory, so its key alone doesn't tell it is gone.
+	 */
+	private synchronized void forgetTree(final Path path) {
+		if (!this.dirs.containsKey(path)) {
+			return;
+		}
+
+		for (WatchedDir dir : new ArrayList<WatchedDir>(this.dirs.values())) {
+			if (dir.path.startsWith(path)) {
+				forget(dir);
+			}
+		}
+	}
+
+	public void run() {
+		while (isRunning()) {
+			try {
+				final long wait = nextWakeUp();
+				final WatchKey key = wait < 0 ? this.watchService.take() : this.watchService.poll(wait,
+						TimeUnit.MILLISECONDS);
+				if (key != null) {
+					handle(key);
+				}
+				final long now = System.currentTimeMillis();
+				poll(now);
+				rebalance(now);
+				flush();
+			} catch (ClosedWatchServiceException e) {
+				logger.debug("run(): watch service closed");
+			} catch (InterruptedException e) {
+				/* Woken up: some directory started to be polled (or closed). */
+			}
+		}
+	}
+
+	private synchronized boolean isRunning() {
+		return this.thread == Thread.currentThread();
+	}
+
+	private void handle(final WatchKey key) {
+		final WatchedDir dir;
+		synchronized (this) {
+			dir = this.watchedDirs.get(key);
+		}
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (dir == null) {
+				continue;
+			}
+			dir.lastChange = System.currentTimeMillis();
+
+			if (event.kind() == OVERFLOW) {
+				/* Some events were lost: only this directory has to be rescanned. */
+				overflow(dir);
+				continue;
+			}
+
+			final File child = dir.path.resolve((Path) event.context()).toFile();
+			if (isIgnored(child.getName())) {
+				continue;
+			}
+			if (event.kind() == ENTRY_CREATE && child.isDirectory()) {
+				register(dir.child(child));
+			} else if (event.kind() == ENTRY_DELETE) {
+				forgetTree(child.toPath());
+			}
+			changed(dir.syncRoot, getChangedPath(dir, child));
+		}
+
+		if (!key.reset() && dir != null) {
+			/* Deleted directory. */
+			forget(dir);
+		}
+	}
+
+	/*
+	 * Compare the polled directories which are due with their snapshots.
+	 */
+	private void poll(final long now) {
+		final List<WatchedDir> due = new ArrayList<WatchedDir>();
+		synchronized (this) {
+			while (!this.polledDirs.isEmpty() && this.polledDirs.peek().nextPoll <= now) {
+				due.add(this.polledDirs.poll());
+			}
+		}
+
+		for (WatchedDir dir : due) {
+			if (poll(dir, now)) {
+				synchronized (this) {
+					dir.schedule(now);
+					this.polledDirs.add(dir);
+				}
+			}
+		}
+	}
+
+	/*
+	 * @return false if the directory is gone
+	 */
+	private boolean poll(final WatchedDir dir, final long now) {
+		final File file = dir.path.toFile();
+		if (!file.isDirectory()) {
+			synchronized (this) {
+				this.dirs.remove(dir.path);
+			}
+			changed(dir.syncRoot, dir.transfer.toPath(file));
+			return false;
+		}
+
+		final Map<String, Long> snapshot = snapshot(file);
+		final Set<String> names = new HashSet<String>(snapshot.keySet());
+		names.addAll(dir.snapshot.keySet());
+		for (String name : names) {
+			final Long previous = dir.snapshot.get(name);
+			final Long current = snapshot.get(name);
+			if (previous == null ? current != null : !previous.equals(current)) {
+				final File child = new File(file, name);
+				if (previous == null && current == DIRECTORY) {
+					register(dir.child(child));
+				}
+				changed(dir.syncRoot, getChangedPath(dir, child));
+				dir.lastChange = now;
+			}
+		}
+		dir.snapshot = snapshot;
+		return true;
+	}
+
+	/*
+	 * Control files are ignored, except for the config and filter files: a
+	 * sync-once request, for instance, shouldn't wait for the next full sync.
+	 */
+	private static boolean isIgnored(final String name) {
+		return SyncRoot.isIgnored(name) && !SyncConfig.FILENAME.equals(name) && !SyncFilter.FILENAME.equals(name);
+	}
+
+	/*
+	 * The JCR path of a changed file. A changed filter file stands for all the
+	 * filter roots (the root path), which are then compared again.
+	 */
+	private static String getChangedPath(final WatchedDir dir, final File child) {
+		return SyncFilter.FILENAME.equals(child.getName()) ? "/" : dir.transfer.toPath(child);
+	}
+
+	/*
+	 * Name and (modification time and size) signature of each child.
+	 */
+	private static Map<String, Long> snapshot(final File dir) {
+		final Map<String, Long> snapshot = new HashMap<String, Long>();
+		final File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (!isIgnored(child.getName())) {
+					snapshot.put(child.getName(), child.isDirectory() ? DIRECTORY : child.lastModified() * 31
+							+ child.length());
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Give the watches of the coldest watched directories to the hottest
+	 * polled ones.
+	 */
+	protected void rebalance(final long now) {
+		synchronized (this) {
+			if (!this.watchLimitReached || this.polledDirs.isEmpty() || now < this.nextRebalance) {
+				return;
+			}
+			this.nextRebalance = now + REBALANCE_INTERVAL;
+		}
+
+		final Comparator<WatchedDir> byLastChange = new Comparator<WatchedDir>() {
+			public int compare(final WatchedDir dir1, final WatchedDir dir2) {
+				return dir1.lastChange < dir2.lastChange ? -1 : (dir1.lastChange == dir2.lastChange ? 0 : 1);
+			}
+		};
+		final List<WatchedDir> polled;
+		final List<WatchedDir> watched;
+		synchronized (this) {
+			polled = new ArrayList<WatchedDir>(this.polledDirs);
+			watched = new ArrayList<WatchedDir>(this.watchedDirs.values());
+		}
+		Collections.sort(polled, Collections.reverseOrder(byLastChange));
+		Collections.sort(watched, byLastChange);
+
+		int swaps = 0;
+		for (int i = 0; i < polled.size() && i < watched.size(); i++) {
+			final WatchedDir hot = polled.get(i);
+			final WatchedDir cold = watched.get(i);
+			if (hot.lastChange <= cold.lastChange) {
+				break;
+			}
+
+			synchronized (this) {
+				cold.key.cancel();
+				this.watchedDirs.remove(cold.key);
+				cold.key = null;
+				cold.snapshot = snapshot(cold.path.toFile());
+				cold.schedule(now);
+				this.polledDirs.add(cold);
+
+				/* Catch up with what changed since its last poll. */
+				this.polledDirs.remove(hot);
+				if (!poll(hot, now)) {
+					continue;
+				}
+				if (!watch(hot)) {
+					hot.schedule(now);
+					this.polledDirs.add(hot);
+					break;
+				}
+			}
+			swaps++;
+		}
+		logger.debug("rebalance(): {} watches moved", swaps);
+	}
+
+	private synchronized void changed(final SyncRoot syncRoot, final String path) {
+		if (path == null) {
+			return;
+		}
+
+		final Changes pending = getChanges(syncRoot);
+		if (!pending.isCovered(path)) {
+			if (pending.paths.size() < this.queueSize) {
+				pending.paths.add(path);
+			} else {
+				this.overflowCount++;
+				markDirty(pending, SyncTransfer.getParentPath(path));
+			}
+		}
+	}
+
+	private void overflow(final WatchedDir dir) {
+		logger.info("overflow(): events lost at {}", dir.path);
+		synchronized (this) {
+			this.overflowCount++;
+			markDirty(getChanges(dir.syncRoot), dir.transfer.toPath(dir.path.toFile()));
+		}
+
+		/* Its new subdirectories may have been missed too. */
+		register(dir);
+	}
+
+	private Changes getChanges(final SyncRoot syncRoot) {
+		final long now = System.currentTimeMillis();
+		Changes pending = this.changes.get(syncRoot);
+		if (pending == null) {
+			pending = new Changes(now);
+			this.changes.put(syncRoot, pending);
+		}
+		pending.last = now;
+		return pending;
+	}
+
+	/*
+	 * Replace the pending paths of a directory by a rescan of its subtree,
+	 * going up while the queue is still full.
+	 */
+	private void markDirty(final Changes pending, final String path) {
+		String dirty = path;
+		while (true) {
+			Changes.getTree(pending.dirtyDirs, dirty).clear();
+			Changes.getTree(pending.paths, dirty).clear();
+			pending.dirtyDirs.add(dirty);
+			pending.paths.add(dirty);
+			if (pending.paths.size() <= this.queueSize || "/".equals(dirty)) {
+				break;
+			}
+			dirty = SyncTransfer.getParentPath(dirty);
+		}
+		this.rescanCount++;
+	}
+
+	/**
+	 * @return how many changed paths are waiting to be pushed
+	 */
+	public synchronized int getQueueDepth() {
+		int depth = 0;
+		for (Changes pending : this.changes.values()) {
+			depth += pending.paths.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return how many directories are watched natively
+	 */
+	public synchronized int getWatchedCount() {
+		return this.watchedDirs.size();
+	}
+
+	/**
+	 * @return how many directories are polled
+	 */
+	public synchronized int getPolledCount() {
+		return this.polledDirs.size();
+	}
+
+	/**
+	 * @return true if the specified directory is watched natively
+	 */
+	protected synchronized boolean isWatched(final File dir) {
+		final WatchedDir watchedDir = this.dirs.get(dir.toPath());
+		return watchedDir != null && watchedDir.key != null;
+	}
+
+	/**
+	 * @return how many times events were lost or didn't fit in the queue
+	 */
+	public synchronized long getOverflowCount() {
+		return this.overflowCount;
+	}
+
+	/**
+	 * @return how many directories were marked for a rescan of their subtrees
+	 */
+	public synchronized long getRescanCount() {
+		return this.rescanCount;
+	}
+
+	/*
+	 * How many milliseconds until the next sync root can be pushed or the next
+	 * directory has to be polled (-1 if there is nothing to do).
+	 */
+	private synchronized long nextWakeUp() {
+		long next = -1;
+		final long now = System.currentTimeMillis();
+		for (Changes pending : this.changes.values()) {
+			final long wait = Math.max(1, pending.getDeadline(this.debounce) - now);
+			next = next < 0 ? wait : Math.min(next, wait);
+		}
+		if (!this.polledDirs.isEmpty()) {
+			final long wait = Math.max(1, this.polledDirs.peek().nextPoll - now);
+			next = next < 0 ? wait : Math.min(next, wait);
+		}
+		return next;
+	}
+
+	/**
+	 * Push the changed paths of the quiet sync roots.
+	 */
+	protected void flush() {
+		final long now = System.currentTimeMillis();
+		final Map<SyncRoot, List<String>> quiet = new LinkedHashMap<SyncRoot, List<String>>();
+		synchronized (this) {
+			for (Iterator<Map.Entry<SyncRoot, Changes>> i = this.changes.entrySet().iterator(); i.hasNext();) {
+				final Map.Entry<SyncRoot, Changes> entry = i.next();
+				if (entry.getValue().getDeadline(this.debounce) <= now) {
+					quiet.put(entry.getKey(), new ArrayList<String>(entry.getValue().paths));
+					i.remove();
+				}
+			}
+		}
+
+		for (final Map.Entry<SyncRoot, List<String>> entry : quiet.entrySet()) {
+			logger.debug("flush(): {} changed paths at {}", entry.getValue().size(), entry.getKey().getLocalDir());
+			this.executor.execute(new Runnable() {
+				public void run() {
+					/* The writes of the sync root itself don't need a sync. */
+					final List<String> paths = new ArrayList<String>();
+					for (String path : entry.getValue()) {
+						if (!entry.getKey().isFsEcho(path)) {
+							paths.add(path);
+						}
+					}
+					if (!paths.isEmpty() && entry.getKey().isStarted()) {
+						entry.getKey().sync(paths);
+					}
+				}
+			});
+		}
+	}
+
+	/*
+	 * The changed paths of a sync root, since its last push.
+	 */
+	private static class Changes {
+
+		private final SortedSet<String> paths = new TreeSet<String>();
+
+		/* Directories whose whole subtrees will be rescanned. */
+		private final SortedSet<String> dirtyDirs = new TreeSet<String>();
+
+		private final long first;
+
+		private long last;
+
+		private Changes(final long first) {
+			this.first = first;
+			this.last = first;
+		}
+
+		private boolean isCovered(final String path) {
+			for (String current = path; true; current = SyncTransfer.getParentPath(current)) {
+				if (this.dirtyDirs.contains(current)) {
+					return true;
+				}
+				if ("/".equals(current)) {
+					return false;
+				}
+			}
+		}
+
+		/* A view of the descendants of a path. */
+		private static SortedSet<String> getTree(final SortedSet<String> paths, final String path) {
+			final String prefix = path.endsWith("/") ? path : path + "/";
+			return paths.subSet(prefix, prefix.substring(0, prefix.length() - 1) + '0');
+		}
+
+		private long getDeadline(final long debounce) {
+			return Math.min(this.last + debounce, this.first + debounce * MAX_DELAY_FACTOR);
+		}
+	}
+
+	/*
+	 * A directory of a sync root, either watched natively or polled.
+	 */
+	private static class WatchedDir {
+
+		private final SyncRoot syncRoot;
+
+		private final SyncTransfer transfer;
+
+		private final Path path;
+
+		/* Native watch, or null if polled. */
+		private WatchKey key = null;
+
+		private long lastChange;
+
+		private long nextPoll = 0;
+
+		private Map<String, Long> snapshot = Collections.emptyMap();
+
+		private WatchedDir(final SyncRoot syncRoot, final SyncTransfer transfer, final File dir) {
+			this.syncRoot = syncRoot;
+			this.transfer = transfer;
+			this.path = dir.toPath();
+			/* Directories get modified when their children are added or removed. */
+			this.lastChange = dir.lastModified();
+		}
+
+		/* The more recent the last change, the sooner the next poll. */
+		private void schedule(final long now) {
+			this.nextPoll = now
+					+ Math.min(MAX_POLL_INTERVAL, Math.max(MIN_POLL_INTERVAL, (now - this.lastChange) / 4));
+		}
+
+		private WatchedDir child(final File dir) {
+			return new WatchedDir(this.syncRoot, this.transfer, dir);
+		}
+	}
+
+}
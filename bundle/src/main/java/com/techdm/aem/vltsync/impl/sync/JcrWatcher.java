@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.apache.jackrabbit.api.observation.JackrabbitEventFilter;
+import org.apache.jackrabbit.api.observation.JackrabbitObservationManager;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Observes the filter roots of the sync roots and pushes the changed JCR paths
+ * to them, instead of waiting for the next full scan. Events are batched for a
+ * time window and collapsed by folder or file; the changes made by the sync
+ * roots themselves (see {@link SyncEchoes}) are skipped.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class JcrWatcher {
+
+	/* Observed event types. */
+	protected static final int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED
+			| Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final SlingRepository repository;
+
+	private final ScheduledExecutorService executor;
+
+	private final long window;
+
+	/* Active listeners, by sync root. */
+	private final Map<SyncRoot, Listener> listeners = new LinkedHashMap<SyncRoot, Listener>();
+
+	/**
+	 * @param repository
+	 *            the repository to observe
+	 * @param executor
+	 *            the executor which will run the syncs of the changed paths
+	 * @param window
+	 *            time (in milliseconds) during which events are batched
+	 */
+	public JcrWatcher(final SlingRepository repository, final ScheduledExecutorService executor, final long window) {
+		this.repository = repository;
+		this.executor = executor;
+		this.window = Math.max(0, window);
+	}
+
+	/**
+	 * Start observing the filter roots of a sync root (as soon as they are
+	 * known, and again whenever they change).
+	 * 
+	 * @param syncRoot
+	 *            sync root to observe
+	 */
+	public void register(final SyncRoot syncRoot) {
+		register(syncRoot, null);
+	}
+
+	/**
+	 * Start observing the filter roots of a sync root (as soon as they are
+	 * known, and again whenever they change).
+	 * 
+	 * @param syncRoot
+	 *            sync root to observe
+	 * @param onFailure
+	 *            callback to run whenever its filter roots cannot be observed
+	 *            (or null)
+	 */
+	public void register(final SyncRoot syncRoot, final Runnable onFailure) {
+		logger.debug("register(): localDir = {}", syncRoot.getLocalDir());
+		final Listener listener;
+		synchronized (this.listeners) {
+			if (this.listeners.containsKey(syncRoot)) {
+				return;
+			}
+			listener = new Listener(syncRoot, onFailure);
+			this.listeners.put(syncRoot, listener);
+		}
+
+		syncRoot.setFilterListener(new Runnable() {
+			public void run() {
+				listener.listen();
+			}
+		});
+		listener.listen();
+	}
+
+	/**
+	 * Stop observing the filter roots of a sync root.
+	 * 
+	 * @param syncRoot
+	 *            sync root to forget
+	 */
+	public void unregister(final SyncRoot syncRoot) {
+		logger.debug("unregister(): localDir = {}", syncRoot.getLocalDir());
+		final Listener listener;
+		synchronized (this.listeners) {
+			listener = this.listeners.remove(syncRoot);
+		}
+
+		if (listener != null) {
+			syncRoot.setFilterListener(null);
+			listener.close();
+		}
+	}
+
+	public void close() {
+		logger.debug("close()");
+		final List<SyncRoot> syncRoots;
+		synchronized (this.listeners) {
+			syncRoots = new ArrayList<SyncRoot>(this.listeners.keySet());
+		}
+		for (SyncRoot syncRoot : syncRoots) {
+			unregister(syncRoot);
+		}
+	}
+
+	/**
+	 * Collect the folders or files affected by an event.
+	 * 
+	 * @param session
+	 *            a session
+	 * @param event
+	 *            an event (or an event journal entry)
+	 * @param paths
+	 *            where to add the affected paths
+	 */
+	protected static void addSyncPaths(final Session session, final Event event, final Set<String> paths)
+			throws RepositoryException {
+		String path = event.getPath();
+		if ((event.getType() & (Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED)) != 0) {
+			path = SyncTransfer.getParentPath(path);
+		}
+		paths.add(SyncTransfer.getSyncPath(session, path));
+
+		final Object source = event.getType() == Event.NODE_MOVED ? event.getInfo().get("srcAbsPath") : null;
+		if (source instanceof String) {
+			paths.add(SyncTransfer.getSyncPath(session, (String) source));
+		}
+	}
+
+	/**
+	 * @return the common ancestor of some paths
+	 */
+	protected static String getCommonAncestor(final List<String> paths) {
+		String ancestor = paths.get(0);
+		for (String path : paths) {
+			while (!SyncFilter.isAncestorOrSelf(ancestor, path)) {
+				ancestor = SyncTransfer.getParentPath(ancestor);
+			}
+		}
+		return ancestor;
+	}
+
+	/*
+	 * The observation listener of a sync root.
+	 */
+	protected class Listener implements EventListener {
+
+		private final SyncRoot syncRoot;
+
+		private final Runnable onFailure;
+
+		private Session session = null;
+
+		/* Observed filter roots. */
+		private List<String> roots = Collections.emptyList();
+
+		/* Changed paths of the current window. */
+		private final Set<String> paths = new LinkedHashSet<String>();
+
+		private boolean scheduled = false;
+
+		private boolean closed = false;
+
+		protected Listener(final SyncRoot syncRoot, final Runnable onFailure) {
+			this.syncRoot = syncRoot;
+			this.onFailure = onFailure;
+		}
+
+		/**
+		 * Observe the current filter roots of the sync root.
+		 */
+		protected synchronized void listen() {
+			final List<String> roots = this.syncRoot.getFilterRoots();
+			if (this.closed || roots.equals(this.roots)) {
+				return;
+			}
+			logger.debug("listen(): roots = {}", roots);
+
+			try {
+				if (this.session == null) {
+					this.session = repository.loginAdministrative(null);
+				}
+				final ObservationManager observationManager = this.session.getWorkspace().getObservationManager();
+				if (!this.roots.isEmpty()) {
+					observationManager.removeEventListener(this);
+				}
+				this.roots = roots;
+				if (roots.isEmpty()) {
+					return;
+				}
+
+				if (observationManager instanceof JackrabbitObservationManager) {
+					final JackrabbitEventFilter filter = new JackrabbitEventFilter().setEventTypes(EVENT_TYPES)
+							.setAbsPath(roots.get(0)).setIsDeep(true);
+					if (roots.size() > 1) {
+						filter.setAdditionalPaths(roots.subList(1, roots.size()).toArray(new String[0]));
+					}
+					((JackrabbitObservationManager) observationManager).addEventListener(this, filter);
+				} else {
+					/* Paths outside the filter roots are ignored by the sync root. */
+					observationManager.addEventListener(this, EVENT_TYPES, getCommonAncestor(roots), true, null,
+							null, false);
+				}
+			} catch (RepositoryException e) {
+				logger.warn("listen(): cannot observe " + roots + ", relying on the sync poll interval only", e);
+				if (this.onFailure != null) {
+					this.onFailure.run();
+				}
+			}
+		}
+
+		protected synchronized void close() {
+			this.closed = true;
+			if (this.session != null) {
+				try {
+					this.session.getWorkspace().getObservationManager().removeEventListener(this);
+				} catch (RepositoryException e) {
+					logger.warn("close(): error while removing the listener", e);
+				}
+				this.session.logout();
+				this.session = null;
+			}
+			this.paths.clear();
+		}
+
+		public void onEvent(final EventIterator events) {
+			final Set<String> changed = new LinkedHashSet<String>();
+			synchronized (this) {
+				if (this.session == null) {
+					return;
+				}
+
+				try {
+					this.session.refresh(true);
+					while (events.hasNext()) {
+						final Event event = events.nextEvent();
+						if (SyncRoot.USER_DATA.equals(event.getUserData())) {
+							/* Made by a sync root. */
+							continue;
+						}
+
+						addSyncPaths(this.session, event, changed);
+					}
+					for (Iterator<String> i = changed.iterator(); i.hasNext();) {
+						if (this.syncRoot.isJcrEcho(this.session, i.next())) {
+							/* Written by a sync root, whose user data was lost. */
+							i.remove();
+						}
+					}
+				} catch (RepositoryException e) {
+					logger.warn("onEvent(): error while reading the events of " + this.syncRoot.getLocalDir(), e);
+				}
+			}
+			changed(changed);
+		}
+
+		private synchronized void changed(final Set<String> changed) {
+			if (changed.isEmpty() || this.closed) {
+				return;
+			}
+
+			this.paths.addAll(changed);
+			if (!this.scheduled) {
+				this.scheduled = true;
+				executor.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, window, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Push the paths changed during the window.
+		 */
+		protected void flush() {
+			final List<String> changed;
+			synchronized (this) {
+				changed = new ArrayList<String>(this.paths);
+				this.paths.clear();
+				this.scheduled = false;
+			}
+
+			if (!changed.isEmpty() && this.syncRoot.isStarted()) {
+				logger.debug("flush(): {} changed paths at {}", changed.size(), this.syncRoot.getLocalDir());
+				this.syncRoot.sync(changed);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How many changes are saved at once, tuned from the latency of the previous
+ * saves (additive increase, multiplicative decrease). A single edit is still
+ * saved on its own, at the end of its sync cycle: batches only kick in during
+ * bursts (a git checkout, for instance), so they don't flood the commit queue
+ * of the repository.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SaveBatch {
+
+	/** Smallest batch size. */
+	public static final int MIN_SIZE = 16;
+
+	/** Largest batch size. */
+	public static final int MAX_SIZE = 4096;
+
+	/* Added to the batch size after a save within the target latency. */
+	private static final int INCREASE = MIN_SIZE;
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final long targetLatency;
+
+	private int size = MIN_SIZE;
+
+	/**
+	 * @param targetLatency
+	 *            how many milliseconds a save should take, at most
+	 */
+	public SaveBatch(final long targetLatency) {
+		this.targetLatency = targetLatency;
+	}
+
+	/**
+	 * @return how many unsaved changes trigger a save
+	 */
+	public synchronized int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Tune the batch size from a save.
+	 * 
+	 * @param changes
+	 *            how many changes have been saved
+	 * @param latency
+	 *            how many milliseconds the save took
+	 */
+	public synchronized void saved(final int changes, final long latency) {
+		final int previousSize = this.size;
+		if (latency > this.targetLatency) {
+			this.size = Math.max(MIN_SIZE, this.size / 2);
+		} else if (changes >= this.size) {
+			/* Only a full batch tells the size can grow. */
+			this.size = Math.min(MAX_SIZE, this.size + INCREASE);
+		}
+
+		if (this.size != previousSize) {
+			logger.debug("saved(): changes = {}, latency = {}, size = {}",
+					new Object[] { changes, latency, this.size });
+		}
+	}
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived JCR sessions of a sync root, reused across sync cycles: a pooled
+ * session is just refreshed, instead of logging in again (and warming up its
+ * permissions and caches). Sessions left idle for too long are logged out, and
+ * so are the ones released after an error.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SessionPool {
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final SlingRepository repository;
+
+	private final long maxIdle;
+
+	/* Idle sessions, the most recently released first. */
+	private final LinkedList<IdleSession> idle = new LinkedList<IdleSession>();
+
+	private boolean closed = false;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long invalidations = 0;
+
+	private long loginTime = 0;
+
+	/**
+	 * @param repository
+	 *            the repository to log in to
+	 * @param maxIdle
+	 *            how many milliseconds a session can stay idle before being
+	 *            logged out
+	 */
+	public SessionPool(final SlingRepository repository, final long maxIdle) {
+		this.repository = repository;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return an idle session (refreshed, discarding any pending change) or a
+	 *         new one
+	 */
+	public Session acquire() throws RepositoryException {
+		Session session;
+		while ((session = poll()) != null) {
+			try {
+				session.refresh(false);
+				synchronized (this) {
+					this.hits++;
+				}
+				return session;
+			} catch (RepositoryException e) {
+				logger.debug("acquire(): discarding {}: {}", session, e.getMessage());
+				invalidate(session);
+			}
+		}
+
+		final long start = System.currentTimeMillis();
+		session = this.repository.loginAdministrative(null);
+		final long latency = System.currentTimeMillis() - start;
+		synchronized (this) {
+			this.misses++;
+			this.loginTime += latency;
+		}
+		logger.debug("acquire(): logged in {} in {} ms", session, latency);
+		return session;
+	}
+
+	/**
+	 * Give a session back to the pool.
+	 * 
+	 * @param session
+	 *            a session acquired from this pool
+	 */
+	public void release(final Session session) {
+		synchronized (this) {
+			if (!this.closed && session.isLive()) {
+				for (IdleSession idleSession : this.idle) {
+					if (idleSession.session == session) {
+						return;
+					}
+				}
+				this.idle.addFirst(new IdleSession(session, System.currentTimeMillis()));
+				return;
+			}
+		}
+		session.logout();
+	}
+
+	/**
+	 * Log out a session that failed, instead of giving it back to the pool.
+	 * 
+	 * @param session
+	 *            a session acquired from this pool
+	 */
+	public void invalidate(final Session session) {
+		synchronized (this) {
+			this.invalidations++;
+		}
+		session.logout();
+	}
+
+	/**
+	 * Log out all the idle sessions. The sessions released from now on are
+	 * logged out at once.
+	 */
+	public void close() {
+		final List<IdleSession> sessions;
+		synchronized (this) {
+			this.closed = true;
+			sessions = new ArrayList<IdleSession>(this.idle);
+			this.idle.clear();
+		}
+		for (IdleSession idleSession : sessions) {
+			idleSession.session.logout();
+		}
+	}
+
+	/**
+	 * Log out the sessions which have been idle for too long.
+	 * 
+	 * @param now
+	 *            current time (in milliseconds)
+	 */
+	public void expire(final long now) {
+		final List<Session> expired = new ArrayList<Session>();
+		synchronized (this) {
+			for (Iterator<IdleSession> i = this.idle.iterator(); i.hasNext();) {
+				final IdleSession idleSession = i.next();
+				if (now - idleSession.since > this.maxIdle || !idleSession.session.isLive()) {
+					expired.add(idleSession.session);
+					i.remove();
+				}
+			}
+		}
+		for (Session session : expired) {
+			logger.debug("expire(): logging out {}", session);
+			session.logout();
+		}
+	}
+
+	public synchronized int getIdleCount() {
+		return this.idle.size();
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized long getInvalidations() {
+		return this.invalidations;
+	}
+
+	/**
+	 * @return how many milliseconds have been spent logging in
+	 */
+	public synchronized long getLoginTime() {
+		return this.loginTime;
+	}
+
+	/*
+	 * The most recently released session that is still alive, if any.
+	 */
+	private Session poll() {
+		expire(System.currentTimeMillis());
+		synchronized (this) {
+			return this.idle.isEmpty() ? null : this.idle.removeFirst().session;
+		}
+	}
+
+	private static class IdleSession {
+
+		private final Session session;
+
+		private final long since;
+
+		private IdleSession(final Session session, final long since) {
+			this.session = session;
+			this.since = since;
+		}
+
+	}
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads (and updates the sync-once instructions of) the
+ * .vlt-sync-config.properties of a sync root. @see <a href=
+ * "http://jackrabbit.apache.org/filevault/usage.html#a.vlt-sync-config.properties">.vlt-sync-config.properties</a>.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncConfig {
+
+	/** Name of the config file. */
+	public static final String FILENAME = ".vlt-sync-config.properties";
+
+	/** Property: is the sync disabled? */
+	protected static final String PROP_DISABLED = "disabled";
+
+	/** Property: sync-once instruction. */
+	protected static final String PROP_SYNC_ONCE = "sync-once";
+
+	/**
+	 * Property prefix: sync-once limited to some subtrees (for instance,
+	 * "sync-once.JCR2FS=/content/a,/content/b"). Only the embedded sync engine
+	 * understands it.
+	 */
+	protected static final String PROP_SYNC_ONCE_PATHS_PREFIX = PROP_SYNC_ONCE + ".";
+
+	/**
+	 * Property: side (FS2JCR or JCR2FS) that wins a MERGE when both items
+	 * have the same modification time but different contents.
+	 */
+	protected static final String PROP_MERGE_TIE_BREAK = "merge-tie-break";
+
+	/**
+	 * Property: should a whole FS2JCR or JCR2FS sync-once be transferred as a
+	 * FileVault import or export? Only the embedded sync engine understands
+	 * it.
+	 */
+	protected static final String PROP_SYNC_ONCE_BULK = "sync-once-bulk";
+
+	/** Property: log file name. */
+	protected static final String PROP_SYNC_LOG = "sync-log";
+
+	/* Default value for sync-log property. */
+	private static final String DEFAULT_SYNC_LOG = ".vlt-sync.log";
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File file;
+
+	private long lastModified = -1;
+
+	private boolean disabled = false;
+
+	private SyncMode syncOnce = null;
+
+	private SortedMap<String, SyncMode> syncOncePaths = new TreeMap<String, SyncMode>();
+
+	private SyncMode mergeTieBreak = SyncMode.FS2JCR;
+
+	private boolean syncOnceBulk = false;
+
+	private String syncLog = DEFAULT_SYNC_LOG;
+
+	public SyncConfig(final File localDir) {
+		this.file = new File(localDir, FILENAME);
+	}
+
+	/**
+	 * (Re)load the config file if it has been changed since the last load.
+	 * 
+	 * @return true if it has been reloaded
+	 */
+	public synchronized boolean reloadIfModified() throws IOException {
+		final long currentLastModified = this.file.lastModified();
+		if (currentLastModified == this.lastModified) {
+			return false;
+		}
+
+		final Properties props = new Properties();
+		if (this.file.exists()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(this.file);
+				props.load(in);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+
+		this.disabled = Boolean.parseBoolean(StringUtils.trim(props.getProperty(PROP_DISABLED)));
+		this.syncOnce = SyncMode.fromString(props.getProperty(PROP_SYNC_ONCE));
+		this.syncLog = StringUtils.defaultIfBlank(props.getProperty(PROP_SYNC_LOG), DEFAULT_SYNC_LOG);
+		this.mergeTieBreak = SyncMode.fromString(props.getProperty(PROP_MERGE_TIE_BREAK)) == SyncMode.JCR2FS
+				? SyncMode.JCR2FS : SyncMode.FS2JCR;
+		this.syncOnceBulk = Boolean.parseBoolean(StringUtils.trim(props.getProperty(PROP_SYNC_ONCE_BULK)));
+		this.syncOncePaths = new TreeMap<String, SyncMode>();
+		for (SyncMode mode : SyncMode.values()) {
+			for (String path : StringUtils.split(props.getProperty(PROP_SYNC_ONCE_PATHS_PREFIX + mode, ""), ',')) {
+				if (StringUtils.isNotBlank(path)) {
+					this.syncOncePaths.put(path.trim(), mode);
+				}
+			}
+		}
+		this.lastModified = currentLastModified;
+
+		if (StringUtils.isNotBlank(props.getProperty(PROP_SYNC_ONCE)) && this.syncOnce == null) {
+			logger.warn("reloadIfModified(): unknown sync-once {} at {}", props.getProperty(PROP_SYNC_ONCE),
+					this.file);
+		}
+		logger.debug("reloadIfModified(): file = {}, disabled = {}, syncOnce = {}, syncOncePaths = {}",
+				new Object[] { this.file, this.disabled, this.syncOnce, this.syncOncePaths });
+		return true;
+	}
+
+	/**
+	 * Clear the sync-once instructions, signaling that the sync-once is over.
+	 * All the other lines of the file are kept untouched.
+	 */
+	public synchronized void clearSyncOnce() throws IOException {
+		final Map<String, String> values = new LinkedHashMap<String, String>();
+		values.put(PROP_SYNC_ONCE, "");
+		for (SyncMode mode : SyncMode.values()) {
+			values.put(PROP_SYNC_ONCE_PATHS_PREFIX + mode, "");
+		}
+
+		write(values, false);
+		this.syncOnce = null;
+		this.syncOncePaths = new TreeMap<String, SyncMode>();
+	}
+
+	/**
+	 * Replace the subtrees waiting for a sync-once. All the other lines of the
+	 * file are kept untouched.
+	 * 
+	 * @param paths
+	 *            the sync-once direction of each subtree (JCR path)
+	 */
+	public synchronized void setSyncOncePaths(final Map<String, SyncMode> paths) throws IOException {
+		final Map<String, String> values = new LinkedHashMap<String, String>();
+		for (SyncMode mode : SyncMode.values()) {
+			final Set<String> modePaths = new LinkedHashSet<String>();
+			for (Map.Entry<String, SyncMode> path : paths.entrySet()) {
+				if (path.getValue() == mode) {
+					modePaths.add(path.getKey());
+				}
+			}
+			values.put(PROP_SYNC_ONCE_PATHS_PREFIX + mode, StringUtils.join(modePaths, ','));
+		}
+
+		write(values, true);
+		this.syncOncePaths = new TreeMap<String, SyncMode>(paths);
+	}
+
+	/*
+	 * Rewrite only the lines of the specified keys (appending the missing
+	 * ones, if requested).
+	 */
+	private void write(final Map<String, String> values, final boolean append) throws IOException {
+		final Map<String, String> remaining = new LinkedHashMap<String, String>(values);
+		final List<String> lines = new ArrayList<String>();
+		if (this.file.exists()) {
+			for (String line : FileUtils.readLines(this.file, "ISO-8859-1")) {
+				final String key = getKey(line);
+				if (remaining.containsKey(key)) {
+					lines.add(key + "=" + remaining.remove(key));
+				} else {
+					lines.add(line);
+				}
+			}
+		}
+
+		if (append) {
+			for (Map.Entry<String, String> value : remaining.entrySet()) {
+				lines.add(value.getKey() + "=" + value.getValue());
+			}
+		}
+
+		FileUtils.writeLines(this.file, "ISO-8859-1", lines, "\n");
+		this.lastModified = this.file.lastModified();
+	}
+
+	private static String getKey(final String line) {
+		final int index = StringUtils.indexOfAny(line, "=:");
+		return StringUtils.trim(index >= 0 ? line.substring(0, index) : line);
+	}
+
+	public synchronized boolean isDisabled() {
+		return this.disabled;
+	}
+
+	public synchronized SyncMode getSyncOnce() {
+		return this.syncOnce;
+	}
+
+	/**
+	 * @return the subtrees waiting for a sync-once (and their directions)
+	 */
+	public synchronized SortedMap<String, SyncMode> getSyncOncePaths() {
+		return new TreeMap<String, SyncMode>(this.syncOncePaths);
+	}
+
+	/**
+	 * @return the side (FS2JCR or JCR2FS) that wins a MERGE tie
+	 */
+	public synchronized SyncMode getMergeTieBreak() {
+		return this.mergeTieBreak;
+	}
+
+	public synchronized boolean isSyncOnceBulk() {
+		return this.syncOnceBulk;
+	}
+
+	public synchronized String getSyncLog() {
+		return this.syncLog;
+	}
+
+}
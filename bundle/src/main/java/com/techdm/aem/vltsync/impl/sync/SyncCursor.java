@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Point in time up to which all the changes of a sync root were processed,
+ * together with the filter roots it applies to. It is persisted next to the
+ * sync index, so a restart only looks for the JCR changes made after it.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncCursor {
+
+	/** Name of the cursor file. */
+	public static final String FILENAME = ".vlt-sync-cursor";
+
+	/* Properties of the cursor file. */
+	private static final String PROP_TIMESTAMP = "timestamp";
+
+	private static final String PROP_ROOTS = "roots";
+
+	private long timestamp = -1;
+
+	private List<String> roots = Collections.emptyList();
+
+	/**
+	 * @return the time (in milliseconds) up to which all the changes were
+	 *         processed, or -1 if unknown
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * @return the filter roots the timestamp applies to
+	 */
+	public List<String> getRoots() {
+		return this.roots;
+	}
+
+	/**
+	 * @param timestamp
+	 *            the time (in milliseconds) up to which all the changes were
+	 *            processed
+	 * @param roots
+	 *            the filter roots it applies to
+	 */
+	public void set(final long timestamp, final List<String> roots) {
+		this.timestamp = timestamp;
+		this.roots = roots;
+	}
+
+	/**
+	 * Replace the current cursor by the one stored at the specified file.
+	 * 
+	 * @param file
+	 *            cursor file
+	 * @return false if there is no valid cursor file
+	 */
+	public boolean load(final File file) throws IOException {
+		this.timestamp = -1;
+		this.roots = Collections.emptyList();
+		if (!file.isFile()) {
+			return false;
+		}
+
+		final Properties props = new Properties();
+		final InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		try {
+			this.timestamp = Long.parseLong(props.getProperty(PROP_TIMESTAMP, "-1"));
+		} catch (NumberFormatException e) {
+			throw new IOException("Corrupted cursor " + file, e);
+		}
+		final String roots = props.getProperty(PROP_ROOTS, "");
+		this.roots = roots.length() == 0 ? Collections.<String> emptyList() : Arrays.asList(StringUtils.split(
+				roots, ','));
+		return this.timestamp >= 0;
+	}
+
+	/**
+	 * Store the current cursor at the specified file. The file is replaced at
+	 * once, like the sync index.
+	 * 
+	 * @param file
+	 *            cursor file
+	 */
+	public void store(final File file) throws IOException {
+		final Properties props = new Properties();
+		props.setProperty(PROP_TIMESTAMP, String.valueOf(this.timestamp));
+		props.setProperty(PROP_ROOTS, StringUtils.join(this.roots, ','));
+
+		final File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		final OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Unable to replace " + file);
+			}
+		}
+	}
+
+}
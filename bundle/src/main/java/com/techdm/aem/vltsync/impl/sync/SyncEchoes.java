@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The writes recently made by a sync root, tagged by direction, so that the
+ * watchers can tell them from the changes of the users: a file written by a
+ * JCR2FS copy is reported back by the filesystem watcher, and a node written
+ * by a FS2JCR copy is reported back by the observation (whenever the session
+ * user data is not available). Such echoes don't need a sync cycle.
+ * <p>
+ * A path is only an echo while its current state is still the written one
+ * and its write is recent. Existing directories are never echoes: their
+ * entries don't tell their changes apart.
+ * 
+ * @author Daniel Henrique Alves Lima
+ * 
+ */
+public class SyncEchoes {
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final long ttl;
+
+	/* Recent writes, the oldest first. */
+	private final Map<String, Echo> echoes = new LinkedHashMap<String, Echo>();
+
+	private long suppressed = 0;
+
+	/**
+	 * @param ttl
+	 *            how many milliseconds a write can be echoed
+	 */
+	public SyncEchoes(final long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Remember a write.
+	 * 
+	 * @param path
+	 *            the written path
+	 * @param direction
+	 *            FS2JCR or JCR2FS
+	 * @param written
+	 *            the state left by the write or null for a removal
+	 */
+	public synchronized void put(final String path, final SyncMode direction, final SyncEntry written) {
+		final long now = System.currentTimeMillis();
+		expire(now);
+		this.echoes.remove(path);
+		this.echoes.put(path, new Echo(direction, written, now + this.ttl));
+	}
+
+	/**
+	 * Is a change reported by a watcher just the echo of a write?
+	 * 
+	 * @param path
+	 *            the changed path
+	 * @param direction
+	 *            the direction of the write it would echo: FS2JCR for a JCR
+	 *            change, JCR2FS for a filesystem one
+	 * @param current
+	 *            its current state or null if it no longer exists
+	 * @return true if it has been written in that direction, recently, and it
+	 *         hasn't changed since
+	 */
+	public synchronized boolean isEcho(final String path, final SyncMode direction, final SyncEntry current) {
+		expire(System.currentTimeMillis());
+		final Echo echo = this.echoes.get(path);
+		if (echo == null || echo.direction != direction) {
+			return false;
+		}
+
+		if ((current != null && current.isDirectory()) || SyncEntry.isChanged(current, echo.written)
+				|| (current != null && current.hasHash() && echo.written.hasHash()
+						&& current.getHash() != echo.written.getHash())) {
+			/* Changed again, after the write. */
+			this.echoes.remove(path);
+			return false;
+		}
+
+		logger.debug("isEcho(): {} {}", direction, path);
+		this.suppressed++;
+		return true;
+	}
+
+	/**
+	 * @return how many changes were found to be echoes
+	 */
+	public synchronized long getSuppressed() {
+		return this.suppressed;
+	}
+
+	/**
+	 * @return how many writes are remembered
+	 */
+	public synchronized int size() {
+		return this.echoes.size();
+	}
+
+	private void expire(final long now) {
+		for (Iterator<Echo> i = this.echoes.values().iterator(); i.hasNext();) {
+			if (i.next().expires > now) {
+				break;
+			}
+			i.remove();
+		}
+	}
+
+	private static class Echo {
+
+		private final SyncMode direction;
+
+		private final SyncEntry written;
+
+		private final long expires;
+
+		private Echo(final SyncMode direction, final SyncEntry written, final long expires) {
+			this.direction = direction;
+			this.written = written;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embedded sync engine: an alternative to the VLT Sync Service in which every
+ * sync root has its own timer. Sync roots are added and removed on the fly,
+ * without restarting (or rescanning) the other ones.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+@Component(metatype = true, label = "TechDM - VLT Sync Engine", description = "Embedded engine that keeps"
+		+ " the sync roots in sync with the JCR")
+@Service(SyncEngineImpl.class)
+public class SyncEngineImpl {
+
+	/*
+	 * Default value for sync.interval property: just a safety net, the
+	 * watchers push the changes as they happen.
+	 */
+	private static final long DEFAULT_SYNC_INTERVAL = 300000;
+
+	/* Default value for sync.poll.interval property. */
+	private static final long DEFAULT_SYNC_POLL_INTERVAL = 1000;
+
+	/* Default value for sync.threads property. */
+	private static final int DEFAULT_SYNC_THREADS = 2;
+
+	@Property(label = "Sync Interval", longValue = DEFAULT_SYNC_INTERVAL, description = "How many milliseconds"
+			+ " between two full comparisons of the same sync root? In between, the changes are pushed by the"
+			+ " filesystem and JCR watchers.[Optional] [Default: " + DEFAULT_SYNC_INTERVAL + "]")
+	protected static final String PROP_SYNC_INTERVAL = "sync.interval";
+
+	@Property(label = "Sync Poll Interval", longValue = DEFAULT_SYNC_POLL_INTERVAL, description = "How many"
+			+ " milliseconds between two syncs of a sync root whose filesystem isn't watched or whose JCR isn't"
+			+ " observed?[Optional] [Default: " + DEFAULT_SYNC_POLL_INTERVAL + "]")
+	protected static final String PROP_SYNC_POLL_INTERVAL = "sync.poll.interval";
+
+	@Property(label = "Sync Threads", intValue = DEFAULT_SYNC_THREADS, description = "How many sync roots can"
+			+ " be synchronized at the same time?[Optional] [Default: " + DEFAULT_SYNC_THREADS + "]")
+	protected static final String PROP_SYNC_THREADS = "sync.threads";
+
+	/* Default value for sync.once.parallelism property (one per processor). */
+	private static final int DEFAULT_SYNC_ONCE_PARALLELISM = 0;
+
+	@Property(label = "Sync Once Parallelism", intValue = DEFAULT_SYNC_ONCE_PARALLELISM, description = "How many"
+			+ " workers (each one with its own JCR session) can a FS2JCR or JCR2FS sync-once use (0 for one per"
+			+ " processor)?[Optional] [Default: " + DEFAULT_SYNC_ONCE_PARALLELISM + "]")
+	protected static final String PROP_SYNC_ONCE_PARALLELISM = "sync.once.parallelism";
+
+	/* Default value for save.latency property. */
+	protected static final long DEFAULT_SAVE_LATENCY = 100;
+
+	@Property(label = "Save Latency", longValue = DEFAULT_SAVE_LATENCY, description = "How many milliseconds"
+			+ " should a JCR save take, at most? During bursts, changes are saved in batches whose size is tuned"
+			+ " from it.[Optional] [Default: " + DEFAULT_SAVE_LATENCY + "]")
+	protected static final String PROP_SAVE_LATENCY = "save.latency";
+
+	/* Default value for fs.watch property. */
+	private static final boolean DEFAULT_FS_WATCH = true;
+
+	/* Default value for fs.watch.debounce property. */
+	private static final long DEFAULT_FS_WATCH_DEBOUNCE = 100;
+
+	@Property(label = "Watch Filesystem", boolValue = DEFAULT_FS_WATCH, description = "Should filesystem changes"
+			+ " be pushed as soon as they happen, instead of waiting for the next sync?[Optional] [Default: "
+			+ DEFAULT_FS_WATCH + "]")
+	protected static final String PROP_FS_WATCH = "fs.watch";
+
+	@Property(label = "Watch Debounce", longValue = DEFAULT_FS_WATCH_DEBOUNCE, description = "How many"
+			+ " milliseconds without new events before a changed path is pushed?[Optional] [Default: "
+			+ DEFAULT_FS_WATCH_DEBOUNCE + "]")
+	protected static final String PROP_FS_WATCH_DEBOUNCE = "fs.watch.debounce";
+
+	/* Default value for fs.watch.queue.size property. */
+	private static final int DEFAULT_FS_WATCH_QUEUE_SIZE = 10000;
+
+	@Property(label = "Watch Queue Size", intValue = DEFAULT_FS_WATCH_QUEUE_SIZE, description = "How many"
+			+ " changed paths can be held for each sync root? Beyond that, their directories are rescanned"
+			+ " instead.[Optional] [Default: " + DEFAULT_FS_WATCH_QUEUE_SIZE + "]")
+	protected static final String PROP_FS_WATCH_QUEUE_SIZE = "fs.watch.queue.size";
+
+	/* Default value for fs.watch.max.watches property. */
+	private static final int DEFAULT_FS_WATCH_MAX_WATCHES = 0;
+
+	@Property(label = "Watch Limit", intValue = DEFAULT_FS_WATCH_MAX_WATCHES, description = "How many"
+			+ " directories can be watched natively (0 for as many as the operating system allows)? The other"
+			+ " ones are polled.[Optional] [Default: " + DEFAULT_FS_WATCH_MAX_WATCHES + "]")
+	protected static final String PROP_FS_WATCH_MAX_WATCHES = "fs.watch.max.watches";
+
+	/* Default value for jcr.watch property. */
+	private static final boolean DEFAULT_JCR_WATCH = true;
+
+	/* Default value for jcr.watch.window property. */
+	private static final long DEFAULT_JCR_WATCH_WINDOW = 100;
+
+	@Property(label = "Observe JCR", boolValue = DEFAULT_JCR_WATCH, description = "Should JCR changes under the"
+			+ " filter roots be pushed as soon as they happen, instead of waiting for the next sync?[Optional]"
+			+ " [Default: " + DEFAULT_JCR_WATCH + "]")
+	protected static final String PROP_JCR_WATCH = "jcr.watch";
+
+	@Property(label = "Observation Window", longValue = DEFAULT_JCR_WATCH_WINDOW, description = "For how many"
+			+ " milliseconds are JCR events batched before being pushed?[Optional] [Default: "
+			+ DEFAULT_JCR_WATCH_WINDOW + "]")
+	protected static final String PROP_JCR_WATCH_WINDOW = "jcr.watch.window";
+
+	/* Default value for statistics.interval property. */
+	private static final long DEFAULT_STATISTICS_INTERVAL = 300000;
+
+	@Property(label = "Statistics Interval", longValue = DEFAULT_STATISTICS_INTERVAL, description = "How many"
+			+ " milliseconds between two logs of the engine statistics (0 disables them)?[Optional] [Default: "
+			+ DEFAULT_STATISTICS_INTERVAL + "]")
+	protected static final String PROP_STATISTICS_INTERVAL = "statistics.interval";
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Reference
+	private SlingRepository repository;
+
+	private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+	private long syncPollInterval = DEFAULT_SYNC_POLL_INTERVAL;
+
+	private int syncOnceParallelism = 1;
+
+	/* Shared by all the sync roots, since they all commit to the same repository. */
+	private SaveBatch saveBatch = null;
+
+	/* Settings of the engine, while it is active. */
+	private Map<String, Object> props = null;
+
+	/* Started along with the first sync root. */
+	private volatile ScheduledExecutorService executor = null;
+
+	private volatile FsWatcher watcher = null;
+
+	private volatile JcrWatcher jcrWatcher = null;
+
+	/* Active sync roots, by absolute path. */
+	private final Map<String, SyncRoot> syncRoots = new LinkedHashMap<String, SyncRoot>();
+
+	@Activate
+	protected void activate(final Map<String, Object> props) {
+		logger.debug("activate(): props = {}", props);
+		this.syncInterval = PropertiesUtil.toLong(props.get(PROP_SYNC_INTERVAL), DEFAULT_SYNC_INTERVAL);
+		this.syncPollInterval = PropertiesUtil.toLong(props.get(PROP_SYNC_POLL_INTERVAL), DEFAULT_SYNC_POLL_INTERVAL);
+		this.syncOnceParallelism = PropertiesUtil.toInteger(props.get(PROP_SYNC_ONCE_PARALLELISM),
+				DEFAULT_SYNC_ONCE_PARALLELISM);
+		if (this.syncOnceParallelism <= 0) {
+			this.syncOnceParallelism = Runtime.getRuntime().availableProcessors();
+		}
+
+		this.saveBatch = new SaveBatch(PropertiesUtil.toLong(props.get(PROP_SAVE_LATENCY), DEFAULT_SAVE_LATENCY));
+		synchronized (this.syncRoots) {
+			this.props = props;
+		}
+	}
+
+	/*
+	 * Start the threads and the watchers of the engine. It happens on the first
+	 * sync root, so that an engine which is not used (the VLT Sync Service
+	 * handles the sync roots) costs nothing. Called with the sync roots locked.
+	 */
+	private void start(final Map<String, Object> props) {
+		logger.debug("start()");
+		final int syncThreads = PropertiesUtil.toInteger(props.get(PROP_SYNC_THREADS), DEFAULT_SYNC_THREADS);
+		this.executor = Executors.newScheduledThreadPool(Math.max(1, syncThreads));
+
+		if (PropertiesUtil.toBoolean(props.get(PROP_FS_WATCH), DEFAULT_FS_WATCH)) {
+			try {
+				this.watcher = new FsWatcher(this.executor, PropertiesUtil.toLong(props.get(PROP_FS_WATCH_DEBOUNCE),
+						DEFAULT_FS_WATCH_DEBOUNCE), PropertiesUtil.toInteger(props.get(PROP_FS_WATCH_QUEUE_SIZE),
+						DEFAULT_FS_WATCH_QUEUE_SIZE), PropertiesUtil.toInteger(props.get(PROP_FS_WATCH_MAX_WATCHES),
+						DEFAULT_FS_WATCH_MAX_WATCHES));
+				this.watcher.start();
+			} catch (IOException e) {
+				logger.warn("start(): cannot watch the filesystem, relying on the sync poll interval only", e);
+				this.watcher = null;
+			}
+		}
+
+		if (PropertiesUtil.toBoolean(props.get(PROP_JCR_WATCH), DEFAULT_JCR_WATCH)) {
+			this.jcrWatcher = new JcrWatcher(this.repository, this.executor, PropertiesUtil.toLong(
+					props.get(PROP_JCR_WATCH_WINDOW), DEFAULT_JCR_WATCH_WINDOW));
+		}
+
+		final long statisticsInterval = PropertiesUtil.toLong(props.get(PROP_STATISTICS_INTERVAL),
+				DEFAULT_STATISTICS_INTERVAL);
+		if (statisticsInterval > 0) {
+			this.executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					logStatistics();
+				}
+			}, statisticsInterval, statisticsInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		logger.debug("deactivate()");
+		synchronized (this.syncRoots) {
+			for (SyncRoot syncRoot : this.syncRoots.values()) {
+				syncRoot.stop();
+			}
+			this.syncRoots.clear();
+			this.props = null;
+		}
+
+		if (this.watcher != null) {
+			this.watcher.close();
+			this.watcher = null;
+		}
+		if (this.jcrWatcher != null) {
+			this.jcrWatcher.close();
+			this.jcrWatcher = null;
+		}
+		if (this.executor != null) {
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Start synchronizing the specified directory. The other sync roots are
+	 * not affected.
+	 * 
+	 * @param localDir
+	 *            directory to add
+	 */
+	public void addSyncRoot(final File localDir) throws IllegalStateException {
+		logger.debug("addSyncRoot(): localDir = {}", localDir);
+		final String key = localDir.getAbsolutePath();
+
+		synchronized (this.syncRoots) {
+			if (this.props == null) {
+				throw new IllegalStateException("Sync engine is not active");
+			}
+			if (this.syncRoots.containsKey(key)) {
+				logger.debug("addSyncRoot(): {} is already being synchronized", key);
+				return;
+			}
+
+			if (this.executor == null) {
+				start(this.props);
+			}
+
+			final SyncRoot syncRoot = new SyncRoot(localDir, this.repository);
+			syncRoot.setParallelism(this.syncOnceParallelism);
+			syncRoot.setSaveBatch(this.saveBatch);
+			this.syncRoots.put(key, syncRoot);
+			/* Without the watchers, the timer has to pick the changes up. */
+			syncRoot.start(this.executor, watch(syncRoot) ? this.syncInterval
+					: Math.min(this.syncInterval, this.syncPollInterval));
+		}
+		logger.info("addSyncRoot(): {} added", key);
+	}
+
+	/**
+	 * Stop synchronizing the specified directory. The other sync roots are not
+	 * affected.
+	 * 
+	 * @param localDir
+	 *            directory to remove
+	 */
+	public void removeSyncRoot(final File localDir) {
+		logger.debug("removeSyncRoot(): localDir = {}", localDir);
+		final SyncRoot syncRoot;
+		synchronized (this.syncRoots) {
+			syncRoot = this.syncRoots.remove(localDir.getAbsolutePath());
+		}
+
+		if (syncRoot != null) {
+			final FsWatcher watcher = this.watcher;
+			if (watcher != null) {
+				watcher.unregister(syncRoot);
+			}
+			final JcrWatcher jcrWatcher = this.jcrWatcher;
+			if (jcrWatcher != null) {
+				jcrWatcher.unregister(syncRoot);
+			}
+			syncRoot.stop();
+			logger.info("removeSyncRoot(): {} removed", syncRoot.getLocalDir());
+		}
+	}
+
+	/*
+	 * @return true if both the filesystem and the JCR sides are watched (if the
+	 *         JCR side later turns out not to be observable, the sync root
+	 *         falls back to the poll interval)
+	 */
+	private boolean watch(final SyncRoot syncRoot) {
+		boolean watched = false;
+		if (this.watcher != null) {
+			try {
+				this.watcher.register(syncRoot);
+				watched = true;
+			} catch (IOException e) {
+				logger.warn("watch(): cannot watch " + syncRoot.getLocalDir()
+						+ ", relying on the sync poll interval only", e);
+				this.watcher.unregister(syncRoot);
+			}
+		}
+		if (this.jcrWatcher != null) {
+			this.jcrWatcher.register(syncRoot, new Runnable() {
+				public void run() {
+					/* Not observed: JCR changes would wait for the safety net. */
+					syncRoot.setInterval(Math.min(SyncEngineImpl.this.syncInterval,
+							SyncEngineImpl.this.syncPollInterval));
+				}
+			});
+		} else {
+			watched = false;
+		}
+		return watched;
+	}
+
+	/**
+	 * Log the statistics of the engine, while it has sync roots.
+	 */
+	protected void logStatistics() {
+		if (getSyncRoots().isEmpty()) {
+			return;
+		}
+		logger.info("logStatistics(): watch = {}, sessions = {}", getWatchStatistics(), getSessionStatistics());
+	}
+
+	/**
+	 * @return the filesystem watcher counters (queue.depth, overflows, rescans,
+	 *         watched.dirs and polled.dirs), unless the filesystem is not
+	 *         watched, and the changes skipped as echoes of the writes of the
+	 *         sync roots (echoes)
+	 */
+	public Map<String, Long> getWatchStatistics() {
+		final Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+		final FsWatcher watcher = this.watcher;
+		if (watcher != null) {
+			statistics.put("queue.depth", (long) watcher.getQueueDepth());
+			statistics.put("overflows", watcher.getOverflowCount());
+			statistics.put("rescans", watcher.getRescanCount());
+			statistics.put("watched.dirs", (long) watcher.getWatchedCount());
+			statistics.put("polled.dirs", (long) watcher.getPolledCount());
+		}
+
+		final List<SyncRoot> roots;
+		synchronized (this.syncRoots) {
+			roots = new ArrayList<SyncRoot>(this.syncRoots.values());
+		}
+		long echoes = 0;
+		for (SyncRoot syncRoot : roots) {
+			echoes += syncRoot.getEchoes().getSuppressed();
+		}
+		statistics.put("echoes", echoes);
+		return statistics;
+	}
+
+	/**
+	 * @return the session pool statistics, summed over all the sync roots
+	 *         (hits, misses, invalidations, login time and idle sessions)
+	 */
+	public Map<String, Long> getSessionStatistics() {
+		final List<SyncRoot> roots;
+		synchronized (this.syncRoots) {
+			roots = new ArrayList<SyncRoot>(this.syncRoots.values());
+		}
+
+		long hits = 0;
+		long misses = 0;
+		long invalidations = 0;
+		long loginTime = 0;
+		long idle = 0;
+		for (SyncRoot syncRoot : roots) {
+			final SessionPool sessionPool = syncRoot.getSessionPool();
+			hits += sessionPool.getHits();
+			misses += sessionPool.getMisses();
+			invalidations += sessionPool.getInvalidations();
+			loginTime += sessionPool.getLoginTime();
+			idle += sessionPool.getIdleCount();
+		}
+
+		final Map<String, Long> statistics = new LinkedHashMap<String, Long>();
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("invalidations", invalidations);
+		statistics.put("login.time", loginTime);
+		statistics.put("idle", idle);
+		return statistics;
+	}
+
+	/**
+	 * @return the directories being synchronized
+	 */
+	public Set<File> getSyncRoots() {
+		final List<SyncRoot> roots;
+		synchronized (this.syncRoots) {
+			roots = new ArrayList<SyncRoot>(this.syncRoots.values());
+		}
+
+		final Set<File> localDirs = new LinkedHashSet<File>();
+		for (SyncRoot syncRoot : roots) {
+			localDirs.add(syncRoot.getLocalDir());
+		}
+		return localDirs;
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+/**
+ * State of a synchronized item (file or folder) at one of the sides
+ * (filesystem or JCR).
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncEntry {
+
+	/** Hash value of an entry whose content hasn't been hashed. */
+	public static final long NO_HASH = -1;
+
+	private final boolean directory;
+
+	private final long lastModified;
+
+	private final long size;
+
+	private final long hash;
+
+	/**
+	 * @param directory
+	 *            is it a directory (folder)?
+	 * @param lastModified
+	 *            last modification time (ignored for directories)
+	 * @param size
+	 *            content length (ignored for directories)
+	 */
+	public SyncEntry(final boolean directory, final long lastModified, final long size) {
+		this(directory, lastModified, size, NO_HASH);
+	}
+
+	/**
+	 * @param directory
+	 *            is it a directory (folder)?
+	 * @param lastModified
+	 *            last modification time (ignored for directories)
+	 * @param size
+	 *            content length (ignored for directories)
+	 * @param hash
+	 *            content hash or {@link #NO_HASH} (ignored for directories)
+	 */
+	public SyncEntry(final boolean directory, final long lastModified, final long size, final long hash) {
+		this.directory = directory;
+		this.lastModified = directory ? 0 : lastModified;
+		this.size = directory ? 0 : size;
+		this.hash = directory ? NO_HASH : hash;
+	}
+
+	/**
+	 * @return a copy of this entry with the specified content hash
+	 */
+	public SyncEntry withHash(final long hash) {
+		return new SyncEntry(this.directory, this.lastModified, this.size, hash);
+	}
+
+	public boolean isDirectory() {
+		return this.directory;
+	}
+
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public long getHash() {
+		return this.hash;
+	}
+
+	public boolean hasHash() {
+		return this.hash != NO_HASH;
+	}
+
+	/**
+	 * Could both files have the same content, even though their modification
+	 * times differ? Only their hashes can tell.
+	 */
+	public boolean isCandidateForHash(final SyncEntry other) {
+		return other != null && !this.directory && !other.directory && this.size == other.size
+				&& this.lastModified != other.lastModified;
+	}
+
+	/**
+	 * Has an entry changed since it was indexed?
+	 * 
+	 * @param current
+	 *            current state or null if it no longer exists
+	 * @param indexed
+	 *            indexed state or null if it has never been indexed
+	 * @return true if they differ
+	 */
+	public static boolean isChanged(final SyncEntry current, final SyncEntry indexed) {
+		if (current == null || indexed == null) {
+			return current != indexed;
+		}
+		return !current.equals(indexed);
+	}
+
+	/*
+	 * The hash is left out: it is just a cached view of the content.
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof SyncEntry)) {
+			return false;
+		}
+
+		final SyncEntry other = (SyncEntry) obj;
+		return this.directory == other.directory && this.lastModified == other.lastModified
+				&& this.size == other.size;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = this.directory ? 1 : 0;
+		hash = 31 * hash + (int) (this.lastModified ^ (this.lastModified >>> 32));
+		hash = 31 * hash + (int) (this.size ^ (this.size >>> 32));
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return this.directory ? "dir" : "file(" + this.lastModified + ", " + this.size + ", " + this.hash + ")";
+	}
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the workspace filter of a sync root: its .vlt-sync-filter.xml or,
+ * when it doesn't exist, the default META-INF/vault/filter.xml.
+ * <p>
+ * Its filter sets are compiled into a tree of root path segments, so checking
+ * a path only walks its own segments and evaluates the include/exclude rules
+ * of the first declared set covering it, as FileVault does. Sets declared
+ * after a covering set without rules never apply and are dropped.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncFilter {
+
+	/** Name of the sync filter file. */
+	public static final String FILENAME = ".vlt-sync-filter.xml";
+
+	/* Default filter files, relative to the sync root. */
+	private static final String[] DEFAULT_FILENAMES = { "../META-INF/vault/filter.xml", "META-INF/vault/filter.xml" };
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File localDir;
+
+	private File file = null;
+
+	private long lastModified = -1;
+
+	private List<String> roots = Collections.emptyList();
+
+	/* Compiled filter sets, by root path segments. */
+	private RootNode rootNode = new RootNode();
+
+	public SyncFilter(final File localDir) {
+		this.localDir = localDir;
+	}
+
+	/**
+	 * (Re)load the filter file if it has been changed (or replaced) since the
+	 * last load.
+	 * 
+	 * @return true if it has been reloaded
+	 */
+	public synchronized boolean reloadIfModified() throws IOException {
+		final File currentFile = findFile();
+		final long currentLastModified = currentFile != null ? currentFile.lastModified() : -1;
+		if (ObjectUtils.equals(currentFile, this.file) && currentLastModified == this.lastModified) {
+			return false;
+		}
+
+		final List<String> roots = new ArrayList<String>();
+		final RootNode rootNode = new RootNode();
+		if (currentFile != null) {
+			final Document document = parse(currentFile);
+			final NodeList filters = document.getDocumentElement().getElementsByTagName("filter");
+			for (int i = 0; i < filters.getLength(); i++) {
+				final Element filter = (Element) filters.item(i);
+				final String root = normalize(filter.getAttribute("root"));
+				if (root != null) {
+					rootNode.add(root, new FilterSet(i, getRules(currentFile, filter)));
+				}
+			}
+			rootNode.collect(roots, Integer.MAX_VALUE, false);
+		}
+
+		this.file = currentFile;
+		this.lastModified = currentLastModified;
+		this.roots = Collections.unmodifiableList(roots);
+		this.rootNode = rootNode;
+		logger.debug("reloadIfModified(): file = {}, roots = {}", currentFile, roots);
+		return true;
+	}
+
+	/**
+	 * @return the filter file in use or null if there is none
+	 */
+	public synchronized File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * @return the filter roots (JCR paths), without the ones below a root
+	 *         without rules (whose traversal already visits them)
+	 */
+	public synchronized List<String> getRoots() {
+		return this.roots;
+	}
+
+	/**
+	 * Is the specified JCR path covered by this filter?
+	 * 
+	 * @param path
+	 *            JCR path
+	 * @return true if it is one of the roots or one of their descendants,
+	 *         included by the rules of the first declared root covering it
+	 */
+	public synchronized boolean contains(final String path) {
+		return matches(path, false);
+	}
+
+	/**
+	 * Does a folder have to be traversed? An excluded folder is skipped along
+	 * with its descendants, unless some include rule may match them.
+	 * 
+	 * @param path
+	 *            JCR path of a folder
+	 * @return true if it is covered by this filter or some of its descendants
+	 *         may be
+	 */
+	public synchronized boolean isTraversed(final String path) {
+		return matches(path, true);
+	}
+
+	/*
+	 * Walk the segments of the path down the compiled roots, looking for the
+	 * first declared set covering it.
+	 */
+	private boolean matches(final String path, final boolean descendants) {
+		FilterSet first = null;
+		RootNode node = this.rootNode;
+		int start = 1;
+		while (node != null) {
+			for (FilterSet set : node.sets) {
+				if (first == null || set.order < first.order) {
+					first = set;
+				}
+			}
+			if (start >= path.length()) {
+				break;
+			}
+
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			node = node.children.get(path.substring(start, end));
+			start = end + 1;
+		}
+		return first != null && first.contains(path, descendants);
+	}
+
+	/**
+	 * @param ancestor
+	 *            JCR path
+	 * @param path
+	 *            JCR path
+	 * @return true if path is equal to or a descendant of ancestor
+	 */
+	public static boolean isAncestorOrSelf(final String ancestor, final String path) {
+		if ("/".equals(ancestor)) {
+			return true;
+		}
+		return path.equals(ancestor) || path.startsWith(ancestor + "/");
+	}
+
+	private File findFile() {
+		final File syncFilter = new File(this.localDir, FILENAME);
+		if (syncFilter.exists()) {
+			return syncFilter;
+		}
+
+		for (String filename : DEFAULT_FILENAMES) {
+			final File defaultFilter = new File(this.localDir, filename);
+			if (defaultFilter.exists()) {
+				return defaultFilter;
+			}
+		}
+
+		return null;
+	}
+
+	private Document parse(final File file) throws IOException {
+		try {
+			final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setExpandEntityReferences(false);
+			final DocumentBuilder builder = factory.newDocumentBuilder();
+			return builder.parse(file);
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e.getMessage());
+		} catch (SAXException e) {
+			throw new IOException("Invalid filter " + file + ": " + e.getMessage());
+		}
+	}
+
+	/*
+	 * The include and exclude rules of a filter set, in order.
+	 */
+	private static List<Rule> getRules(final File file, final Element filter) throws IOException {
+		final List<Rule> rules = new ArrayList<Rule>();
+		final NodeList children = filter.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			if (!(children.item(i) instanceof Element)) {
+				continue;
+			}
+
+			final Element child = (Element) children.item(i);
+			final boolean include = "include".equals(child.getTagName());
+			if (include || "exclude".equals(child.getTagName())) {
+				try {
+					rules.add(new Rule(include, Pattern.compile(child.getAttribute("pattern"))));
+				} catch (PatternSyntaxException e) {
+					throw new IOException("Invalid filter " + file + ": " + e.getMessage());
+				}
+			}
+		}
+		return rules;
+	}
+
+	private static String normalize(final String root) {
+		String path = StringUtils.trimToNull(root);
+		if (path == null) {
+			return null;
+		}
+
+		while (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		return path;
+	}
+
+	/*
+	 * A segment of the filter roots, with the filter sets rooted at it.
+	 */
+	private static class RootNode {
+
+		private final Map<String, RootNode> children = new LinkedHashMap<String, RootNode>();
+
+		private String path = null;
+
+		private final List<FilterSet> sets = new ArrayList<FilterSet>();
+
+		private void add(final String root, final FilterSet set) {
+			RootNode node = this;
+			for (String segment : StringUtils.split(root, '/')) {
+				RootNode child = node.children.get(segment);
+				if (child == null) {
+					child = new RootNode();
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+			node.path = root;
+			node.sets.add(set);
+		}
+
+		/*
+		 * Drop the sets declared after the first covering set without rules
+		 * (includeAll is its order) and collect the roots which aren't below
+		 * one (covered). Returns true if nothing is left in this subtree.
+		 */
+		private boolean collect(final List<String> roots, final int includeAll, final boolean covered) {
+			int currentIncludeAll = includeAll;
+			for (FilterSet set : this.sets) {
+				if (set.rules.isEmpty()) {
+					currentIncludeAll = Math.min(currentIncludeAll, set.order);
+				}
+			}
+			for (Iterator<FilterSet> i = this.sets.iterator(); i.hasNext();) {
+				if (i.next().order > currentIncludeAll) {
+					i.remove();
+				}
+			}
+
+			if (this.path != null && !covered && !this.sets.isEmpty()) {
+				roots.add(this.path);
+			}
+			for (Iterator<RootNode> i = this.children.values().iterator(); i.hasNext();) {
+				if (i.next().collect(roots, currentIncludeAll, covered || currentIncludeAll < Integer.MAX_VALUE)) {
+					i.remove();
+				}
+			}
+			return this.sets.isEmpty() && this.children.isEmpty();
+		}
+	}
+
+	/*
+	 * A filter set: its rules, in the order it was declared.
+	 */
+	private static class FilterSet {
+
+		private final int order;
+
+		/* An empty list includes all. */
+		private final List<Rule> rules;
+
+		private FilterSet(final int order, final List<Rule> rules) {
+			this.order = order;
+			this.rules = rules;
+		}
+
+		private boolean contains(final String path, final boolean descendants) {
+			if (this.rules.isEmpty()) {
+				return true;
+			}
+
+			/* As FileVault does: the last matching rule wins. */
+			boolean included = !this.rules.get(0).include;
+			for (Rule rule : this.rules) {
+				if (rule.pattern.matcher(path).matches()) {
+					included = rule.include;
+				}
+			}
+			if (included) {
+				return true;
+			}
+
+			if (descendants) {
+				for (Rule rule : this.rules) {
+					/* Could a longer path match it? */
+					final Matcher matcher = rule.pattern.matcher(path + "/");
+					if (rule.include && (matcher.matches() || matcher.hitEnd())) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Rule {
+
+		private final boolean include;
+
+		private final Pattern pattern;
+
+		private Rule(final boolean include, final Pattern pattern) {
+			this.include = include;
+			this.pattern = pattern;
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * State of both sides (filesystem and JCR) of every synchronized item as of
+ * the last sync, indexed by JCR path. It is persisted next to
+ * .vlt-sync-config.properties, so a restart only transfers what has changed
+ * in the meantime.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncIndex {
+
+	/** Name of the index file. */
+	public static final String FILENAME = ".vlt-sync-index";
+
+	/* First line of the index file. */
+	private static final String HEADER = "# vlt-sync-index 1";
+
+	/* Encoding of the index file. */
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * The last synchronized state of an item.
+	 */
+	public static class Entry {
+
+		private final SyncEntry fs;
+
+		private final SyncEntry jcr;
+
+		public Entry(final SyncEntry fs, final SyncEntry jcr) {
+			this.fs = fs;
+			this.jcr = jcr;
+		}
+
+		public SyncEntry getFs() {
+			return this.fs;
+		}
+
+		public SyncEntry getJcr() {
+			return this.jcr;
+		}
+
+		@Override
+		public String toString() {
+			return "{fs = " + this.fs + ", jcr = " + this.jcr + "}";
+		}
+
+	}
+
+	/* Sorted, so parents always come before their children. */
+	private final SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/* Has it been changed since the last load or store? */
+	private boolean dirty = false;
+
+	public synchronized Entry get(final String path) {
+		return this.entries.get(path);
+	}
+
+	public synchronized void put(final String path, final SyncEntry fs, final SyncEntry jcr) {
+		this.entries.put(path, new Entry(fs, jcr));
+		this.dirty = true;
+	}
+
+	public synchronized void remove(final String path) {
+		if (this.entries.remove(path) != null) {
+			this.dirty = true;
+		}
+	}
+
+	/**
+	 * Remove an item and all of its descendants.
+	 * 
+	 * @param path
+	 *            JCR path of the item
+	 */
+	public synchronized void removeTree(final String path) {
+		final String prefix = path.endsWith("/") ? path : path + "/";
+		remove(path);
+		for (Iterator<String> i = this.entries.tailMap(prefix).keySet().iterator(); i.hasNext();) {
+			if (!i.next().startsWith(prefix)) {
+				break;
+			}
+			i.remove();
+			this.dirty = true;
+		}
+	}
+
+	/**
+	 * @param path
+	 *            JCR path of the item
+	 * @return a snapshot of an item and all of its descendants
+	 */
+	public synchronized SortedMap<String, Entry> getTree(final String path) {
+		final SortedMap<String, Entry> tree = new TreeMap<String, Entry>();
+		final String prefix = path.endsWith("/") ? path : path + "/";
+		if (this.entries.containsKey(path)) {
+			tree.put(path, this.entries.get(path));
+		}
+		for (Map.Entry<String, Entry> entry : this.entries.tailMap(prefix).entrySet()) {
+			if (!entry.getKey().startsWith(prefix)) {
+				break;
+			}
+			tree.put(entry.getKey(), entry.getValue());
+		}
+		return tree;
+	}
+
+	/**
+	 * @return a snapshot of all the indexed items
+	 */
+	public synchronized SortedMap<String, Entry> getEntries() {
+		return new TreeMap<String, Entry>(this.entries);
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public synchronized void clear() {
+		this.dirty |= !this.entries.isEmpty();
+		this.entries.clear();
+	}
+
+	public synchronized void putAll(final Map<String, Entry> entries) {
+		this.entries.putAll(entries);
+		this.dirty = true;
+	}
+
+	public synchronized boolean isDirty() {
+		return this.dirty;
+	}
+
+	/**
+	 * Replace the current entries by the ones stored in the specified file. A
+	 * missing or unreadable file leaves the index empty.
+	 * 
+	 * @param file
+	 *            index file
+	 * @return true if the file has been loaded
+	 */
+	public synchronized boolean load(final File file) throws IOException {
+		this.entries.clear();
+		this.dirty = false;
+		if (!file.isFile()) {
+			return false;
+		}
+
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+		try {
+			if (!HEADER.equals(reader.readLine())) {
+				return false;
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split("\t", 3);
+				if (fields.length == 3) {
+					this.entries.put(fields[2], new Entry(parse(fields[0]), parse(fields[1])));
+				}
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			this.entries.clear();
+			throw new IOException("Corrupted index " + file, e);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Store the current entries at the specified file. The file is replaced
+	 * at once, so a crash never leaves a partial index behind.
+	 * 
+	 * @param file
+	 *            index file
+	 */
+	public synchronized void store(final File file) throws IOException {
+		final File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), ENCODING));
+		try {
+			writer.write(HEADER);
+			writer.write('\n');
+			for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+				writer.write(format(entry.getValue().getFs()));
+				writer.write('\t');
+				writer.write(format(entry.getValue().getJcr()));
+				writer.write('\t');
+				writer.write(entry.getKey());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Unable to replace " + file);
+			}
+		}
+		this.dirty = false;
+	}
+
+	/* "-" (missing), "d" (directory) or "f,lastModified,size,hash" (file). */
+	private static String format(final SyncEntry entry) {
+		if (entry == null) {
+			return "-";
+		} else if (entry.isDirectory()) {
+			return "d";
+		}
+		return "f," + entry.getLastModified() + "," + entry.getSize() + "," + entry.getHash();
+	}
+
+	private static SyncEntry parse(final String value) {
+		if ("-".equals(value)) {
+			return null;
+		} else if ("d".equals(value)) {
+			return new SyncEntry(true, 0, 0);
+		}
+
+		final String[] fields = value.split(",");
+		if (fields.length != 4 || !"f".equals(fields[0])) {
+			throw new NumberFormatException("Invalid entry " + value);
+		}
+		return new SyncEntry(false, Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+	}
+
+}
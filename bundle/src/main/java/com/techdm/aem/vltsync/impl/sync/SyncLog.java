@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends the operations performed over a sync root to its log file
+ * (.vlt-sync.log by default).
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncLog {
+
+	/** Line written when a sync-once operation is over. */
+	public static final String SYNC_ONCE_COMPLETED = "Sync once completed.";
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File localDir;
+
+	private File file = null;
+
+	private PrintWriter writer = null;
+
+	public SyncLog(final File localDir) {
+		this.localDir = localDir;
+	}
+
+	/**
+	 * Log a message.
+	 * 
+	 * @param format
+	 *            message format (@see String#format(String, Object...))
+	 * @param args
+	 *            message arguments
+	 */
+	public synchronized void log(final String format, final Object... args) {
+		final String message = String.format(format, args);
+		logger.debug("log(): {}: {}", this.localDir, message);
+
+		if (this.writer != null) {
+			final SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.SSS");
+			this.writer.println(dateFormat.format(new Date()) + " " + message);
+			this.writer.flush();
+		}
+	}
+
+	/**
+	 * Open (or reopen, when its name has changed) the log file.
+	 * 
+	 * @param filename
+	 *            log file name, relative to the sync root
+	 */
+	public synchronized void open(final String filename) {
+		final File newFile = new File(this.localDir, filename);
+		if (newFile.equals(this.file) && this.writer != null) {
+			return;
+		}
+
+		close();
+		try {
+			this.writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(newFile, true), "UTF-8"));
+			this.file = newFile;
+		} catch (IOException e) {
+			logger.warn("open(): unable to write {}: {}", newFile, e.getMessage());
+		}
+	}
+
+	public synchronized void close() {
+		IOUtils.closeQuietly(this.writer);
+		this.writer = null;
+		this.file = null;
+	}
+
+}
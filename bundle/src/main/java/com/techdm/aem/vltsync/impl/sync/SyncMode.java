@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Direction of a sync-once operation. @see <a href=
+ * "http://jackrabbit.apache.org/filevault/usage.html#a.vlt-sync-config.properties">.vlt-sync-config.properties</a>.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public enum SyncMode {
+
+	/** The JCR content overwrites the filesystem one. */
+	JCR2FS,
+
+	/** The filesystem content overwrites the JCR one. */
+	FS2JCR,
+
+	/**
+	 * Both sides are compared item by item: missing or newer items are
+	 * transferred in both directions and nothing is deleted. Only the
+	 * embedded sync engine understands it.
+	 */
+	MERGE;
+
+	/**
+	 * Parse the value of a sync-once instruction.
+	 * 
+	 * @param value
+	 *            the sync-once value
+	 * @return the corresponding mode or null if it is empty or unknown
+	 */
+	public static SyncMode fromString(final String value) {
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+
+		try {
+			return valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
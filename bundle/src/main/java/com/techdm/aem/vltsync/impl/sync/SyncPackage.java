@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.vault.fs.Mounter;
+import org.apache.jackrabbit.vault.fs.api.PathFilterSet;
+import org.apache.jackrabbit.vault.fs.api.RepositoryAddress;
+import org.apache.jackrabbit.vault.fs.api.VaultFile;
+import org.apache.jackrabbit.vault.fs.api.VaultFileSystem;
+import org.apache.jackrabbit.vault.fs.api.VaultInputSource;
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.config.ConfigurationException;
+import org.apache.jackrabbit.vault.fs.config.DefaultMetaInf;
+import org.apache.jackrabbit.vault.fs.config.DefaultWorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.config.MetaInf;
+import org.apache.jackrabbit.vault.fs.config.VaultSettings;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.apache.jackrabbit.vault.fs.io.ImportOptions;
+import org.apache.jackrabbit.vault.fs.io.Importer;
+import org.apache.jackrabbit.vault.fs.io.PlatformExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulk transfer of the filter roots of a sync root through FileVault: the
+ * local tree is imported in a single pass (it is read in place, as if it were
+ * the jcr_root of a package, without building any zip) and the JCR content is
+ * exported straight to the local tree.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncPackage {
+
+	/* How many nodes an import saves at once. */
+	private static final int AUTO_SAVE_THRESHOLD = 1024;
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File localDir;
+
+	public SyncPackage(final File localDir) {
+		this.localDir = localDir;
+	}
+
+	/**
+	 * Replace the filter roots in the JCR with the local tree.
+	 * 
+	 * @param session
+	 *            the session used (and saved) by the import
+	 * @param filterFile
+	 *            the workspace filter or null to build one from the roots
+	 * @param roots
+	 *            the filter roots (JCR paths)
+	 */
+	public void importFromFs(final Session session, final File filterFile, final List<String> roots)
+			throws RepositoryException, IOException {
+		logger.debug("importFromFs(): localDir = {}, roots = {}", this.localDir, roots);
+		final WorkspaceFilter filter = getFilter(filterFile, roots);
+		final ImportOptions options = new ImportOptions();
+		options.setFilter(filter);
+		options.setAutoSaveThreshold(AUTO_SAVE_THRESHOLD);
+
+		final Archive archive = new LocalArchive(this.localDir, filter);
+		try {
+			archive.open(true);
+			final Importer importer = new Importer(options);
+			importer.run(archive, session.getRootNode());
+			if (importer.hasErrors()) {
+				throw new RepositoryException("Errors while importing " + this.localDir);
+			}
+		} catch (ConfigurationException e) {
+			throw new IOException(e);
+		} finally {
+			archive.close();
+		}
+		session.save();
+	}
+
+	/**
+	 * Replace the local tree of the filter roots with the JCR content.
+	 * 
+	 * @param session
+	 *            the session used by the export
+	 * @param filterFile
+	 *            the workspace filter or null to build one from the roots
+	 * @param roots
+	 *            the filter roots (JCR paths)
+	 */
+	public void exportToFs(final Session session, final File filterFile, final List<String> roots)
+			throws RepositoryException, IOException {
+		logger.debug("exportToFs(): localDir = {}, roots = {}", this.localDir, roots);
+		final VaultFileSystem fs;
+		try {
+			fs = Mounter.mount(null, getFilter(filterFile, roots),
+					new RepositoryAddress("/" + session.getWorkspace().getName() + "/"), "/", session);
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+
+		try {
+			final PlatformExporter exporter = new PlatformExporter(this.localDir);
+			exporter.setNoMetaInf(true);
+			exporter.setPruneMissing(true);
+			exporter.open();
+			try {
+				for (String root : roots) {
+					final VaultFile file = fs.getFile(root);
+					final String relPath = getRelativePath(root);
+					if (file == null || !file.isDirectory()) {
+						logger.info("exportToFs(): {} is not a folder", root);
+						continue;
+					}
+
+					new File(this.localDir, relPath).mkdirs();
+					exporter.export(file, relPath);
+				}
+			} finally {
+				exporter.close();
+			}
+		} finally {
+			fs.unmount();
+		}
+	}
+
+	/*
+	 * Platform path of a JCR path, relative to the sync root.
+	 */
+	private static String getRelativePath(final String path) {
+		final List<String> names = new ArrayList<String>();
+		for (String name : StringUtils.split(path, '/')) {
+			names.add(SyncTransfer.toPlatformName(name));
+		}
+		return StringUtils.join(names, '/');
+	}
+
+	private static WorkspaceFilter getFilter(final File filterFile, final List<String> roots) throws IOException {
+		final DefaultWorkspaceFilter filter = new DefaultWorkspaceFilter();
+		try {
+			if (filterFile != null) {
+				filter.load(filterFile);
+			} else {
+				for (String root : roots) {
+					filter.add(new PathFilterSet(root));
+				}
+			}
+		} catch (ConfigurationException e) {
+			throw new IOException(e);
+		}
+		return filter;
+	}
+
+	/**
+	 * The local tree of a sync root seen as a package: the sync root is its
+	 * jcr_root and the workspace filter is its only metadata. The names never
+	 * synchronized are left out.
+	 */
+	protected static class LocalArchive implements Archive {
+
+		/* Name of the jcr_root of a package. */
+		private static final String JCR_ROOT = "jcr_root";
+
+		private final File localDir;
+
+		private final WorkspaceFilter filter;
+
+		private LocalEntry jcrRoot = null;
+
+		protected LocalArchive(final File localDir, final WorkspaceFilter filter) {
+			this.localDir = localDir;
+			this.filter = filter;
+		}
+
+		public void open(final boolean strict) throws IOException {
+			if (!this.localDir.isDirectory()) {
+				throw new FileNotFoundException(this.localDir.getPath());
+			}
+			this.jcrRoot = new LocalEntry(JCR_ROOT, this.localDir);
+		}
+
+		public InputStream openInputStream(final Entry entry) throws IOException {
+			if (!(entry instanceof LocalEntry) || entry.isDirectory()) {
+				return null;
+			}
+			return new FileInputStream(((LocalEntry) entry).file);
+		}
+
+		public VaultInputSource getInputSource(final Entry entry) throws IOException {
+			if (!(entry instanceof LocalEntry) || entry.isDirectory()) {
+				return null;
+			}
+
+			final File file = ((LocalEntry) entry).file;
+			return new VaultInputSource() {
+
+				{
+					setSystemId(file.toURI().toString());
+				}
+
+				@Override
+				public InputStream getByteStream() {
+					try {
+						return new FileInputStream(file);
+					} catch (FileNotFoundException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+
+				@Override
+				public long getContentLength() {
+					return file.length();
+				}
+
+				@Override
+				public long getLastModified() {
+					return file.lastModified();
+				}
+
+			};
+		}
+
+		public Entry getJcrRoot() {
+			return this.jcrRoot;
+		}
+
+		public Entry getRoot() {
+			final LocalEntry jcrRoot = this.jcrRoot;
+			return new Entry() {
+
+				public String getName() {
+					return "";
+				}
+
+				public boolean isDirectory() {
+					return true;
+				}
+
+				public Collection<? extends Entry> getChildren() {
+					return Collections.singletonList(jcrRoot);
+				}
+
+				public Entry getChild(final String name) {
+					return JCR_ROOT.equals(name) ? jcrRoot : null;
+				}
+
+			};
+		}
+
+		public MetaInf getMetaInf() {
+			final DefaultMetaInf metaInf = new DefaultMetaInf();
+			metaInf.setFilter(this.filter);
+			metaInf.setSettings(VaultSettings.createDefault());
+			return metaInf;
+		}
+
+		public Entry getEntry(final String path) {
+			Entry entry = getRoot();
+			for (String name : StringUtils.split(path, '/')) {
+				if (entry == null) {
+					break;
+				}
+				entry = entry.getChild(name);
+			}
+			return entry;
+		}
+
+		public Archive getSubArchive(final String root, final boolean asJcrRoot) throws IOException {
+			throw new IOException("Sub archives are not supported: " + root);
+		}
+
+		public void close() {
+			this.jcrRoot = null;
+		}
+
+	}
+
+	/*
+	 * A file or directory of the local tree.
+	 */
+	private static class LocalEntry implements Archive.Entry {
+
+		private final String name;
+
+		private final File file;
+
+		private LocalEntry(final String name, final File file) {
+			this.name = name;
+			this.file = file;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public boolean isDirectory() {
+			return this.file.isDirectory();
+		}
+
+		public Collection<? extends Archive.Entry> getChildren() {
+			final List<LocalEntry> children = new ArrayList<LocalEntry>();
+			final String[] names = this.file.list();
+			if (names != null) {
+				for (String name : names) {
+					if (!SyncRoot.isIgnored(name)) {
+						children.add(new LocalEntry(name, new File(this.file, name)));
+					}
+				}
+			}
+			return children;
+		}
+
+		public Archive.Entry getChild(final String name) {
+			final File child = new File(this.file, name);
+			return SyncRoot.isIgnored(name) || !child.exists() ? null : new LocalEntry(name, child);
+		}
+
+	}
+
+}
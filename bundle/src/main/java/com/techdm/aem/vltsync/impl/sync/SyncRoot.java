@@ -0,0 +1,1396 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventJournal;
+import javax.jcr.observation.ObservationManager;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single sync root: a local directory kept in sync with the JCR paths of its
+ * workspace filter. Each sync root has its own timer, so it can be started
+ * and stopped without disturbing the other ones.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncRoot {
+
+	/* Filesystem names never synchronized. */
+	private static final List<String> IGNORED_NAMES = Arrays.asList(".vlt", ".vltignore", ".svn", ".git",
+			".DS_Store", "Thumbs.db", "META-INF");
+
+	/*
+	 * Temporary files of editors: vim swap and backup files (and its 4913 write
+	 * test), emacs lock and auto-save files and IntelliJ safe-write files.
+	 */
+	private static final Pattern TEMP_FILE = Pattern
+			.compile("\\..*\\.sw[a-p]|.*~|4913|\\.#.*|#.*#|.*___jb_(tmp|old)___");
+
+	/* FileVault serialization of the node properties of a folder. */
+	private static final String CONTENT_XML = ".content.xml";
+
+	/* FileVault escaped names of the cq: nodes (_cq_dialog, ...). */
+	private static final String CQ_PREFIX = "_cq_";
+
+	/* Control files prefix (.vlt-sync-config.properties, ...). */
+	private static final String CONTROL_FILE_PREFIX = ".vlt-sync";
+
+	/* The cursor is stored at least this often (in milliseconds). */
+	private static final long CURSOR_STORE_INTERVAL = 60000;
+
+	/* Idle sessions are logged out after this long (in milliseconds). */
+	private static final long SESSION_MAX_IDLE = 300000;
+
+	/* How long (in milliseconds) a write can be echoed by the watchers. */
+	private static final long ECHO_TTL = 30000;
+
+	/* User data of the sessions which write to the JCR. */
+	public static final String USER_DATA = "vlt-sync";
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File localDir;
+
+	private final SyncConfig config;
+
+	private final SyncFilter filter;
+
+	private final SyncLog syncLog;
+
+	private final SyncIndex index;
+
+	private final SyncTransfer transfer;
+
+	private final SessionPool sessionPool;
+
+	private final SyncPackage syncPackage;
+
+	private final SyncEchoes echoes;
+
+	/* Nodes left alone (neither files nor folders) already reported. */
+	private final Set<String> unsupportedNodes = Collections.synchronizedSet(new HashSet<String>());
+
+	private final File indexFile;
+
+	private final SyncCursor cursor;
+
+	private final File cursorFile;
+
+	/* Time of the last stored cursor. */
+	private long cursorStored = -1;
+
+	/* Has the first full sync (or catch-up) happened? */
+	private boolean caughtUp = false;
+
+	/* Serializes the sync cycles (timer and pushes of changed paths). */
+	private final Object syncLock = new Object();
+
+	private boolean indexLoaded = false;
+
+	private ScheduledFuture<?> timer = null;
+
+	/* Executor and interval of the timer. */
+	private ScheduledExecutorService executor = null;
+
+	private long interval = -1;
+
+	private volatile Runnable filterListener = null;
+
+	/* Changes not saved yet, by session. */
+	private final Map<Session, int[]> unsavedChanges = new WeakHashMap<Session, int[]>();
+
+	/* How many workers a sync-once can use. */
+	private int parallelism = 1;
+
+	/* How many changes are saved at once. */
+	private SaveBatch saveBatch = new SaveBatch(SyncEngineImpl.DEFAULT_SAVE_LATENCY);
+
+	public SyncRoot(final File localDir, final SlingRepository repository) {
+		this.localDir = localDir.getAbsoluteFile();
+		this.config = new SyncConfig(this.localDir);
+		this.filter = new SyncFilter(this.localDir);
+		this.syncLog = new SyncLog(this.localDir);
+		this.index = new SyncIndex();
+		this.transfer = new SyncTransfer(this.localDir);
+		this.syncPackage = new SyncPackage(this.localDir);
+		this.sessionPool = new SessionPool(repository, SESSION_MAX_IDLE);
+		this.echoes = new SyncEchoes(ECHO_TTL);
+		this.indexFile = new File(this.localDir, SyncIndex.FILENAME);
+		this.cursor = new SyncCursor();
+		this.cursorFile = new File(this.localDir, SyncCursor.FILENAME);
+	}
+
+	/**
+	 * @return the sessions used by the sync cycles of this root
+	 */
+	public SessionPool getSessionPool() {
+		return this.sessionPool;
+	}
+
+	/**
+	 * @return the recent writes of this root
+	 */
+	public SyncEchoes getEchoes() {
+		return this.echoes;
+	}
+
+	/**
+	 * @param path
+	 *            a JCR path whose file changed
+	 * @return true if the change is just the echo of a JCR2FS write
+	 */
+	public boolean isFsEcho(final String path) {
+		return this.echoes.isEcho(path, SyncMode.JCR2FS, this.transfer.getFsEntry(this.transfer.toFile(path)));
+	}
+
+	/**
+	 * @param session
+	 *            session which can read the changed node
+	 * @param path
+	 *            a JCR path whose node changed
+	 * @return true if the change is just the echo of a FS2JCR write
+	 */
+	public boolean isJcrEcho(final Session session, final String path) throws RepositoryException {
+		return this.echoes.isEcho(path, SyncMode.FS2JCR,
+				session.nodeExists(path) ? this.transfer.getJcrEntry(session.getNode(path)) : null);
+	}
+
+	public File getLocalDir() {
+		return this.localDir;
+	}
+
+	/**
+	 * @param parallelism
+	 *            how many workers (each one with its own session) a sync-once
+	 *            can use; 1 keeps it on the sync thread
+	 */
+	public void setParallelism(final int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @param saveBatch
+	 *            how many changes are saved at once (shared by the sync roots
+	 *            of the same repository)
+	 */
+	public void setSaveBatch(final SaveBatch saveBatch) {
+		this.saveBatch = saveBatch;
+	}
+
+	/**
+	 * @return the filter roots, as of the last sync
+	 */
+	public List<String> getFilterRoots() {
+		return this.filter.getRoots();
+	}
+
+	/**
+	 * @param filterListener
+	 *            callback to run whenever the filter roots change (or null)
+	 */
+	public void setFilterListener(final Runnable filterListener) {
+		this.filterListener = filterListener;
+	}
+
+	/**
+	 * Start the periodic sync of this root.
+	 * 
+	 * @param executor
+	 *            the executor which will run this root's timer
+	 * @param interval
+	 *            time (in milliseconds) between the end of a sync and the
+	 *            beginning of the next one
+	 */
+	public synchronized void start(final ScheduledExecutorService executor, final long interval) {
+		logger.debug("start(): localDir = {}, interval = {}", this.localDir, interval);
+		if (this.timer != null) {
+			return;
+		}
+
+		this.executor = executor;
+		schedule(0, interval);
+	}
+
+	/**
+	 * Change the interval of the periodic sync, if it is started. The next
+	 * sync happens after the new interval.
+	 * 
+	 * @param interval
+	 *            time (in milliseconds) between the end of a sync and the
+	 *            beginning of the next one
+	 */
+	public synchronized void setInterval(final long interval) {
+		logger.debug("setInterval(): localDir = {}, interval = {}", this.localDir, interval);
+		if (this.timer == null || interval == this.interval) {
+			return;
+		}
+
+		this.timer.cancel(false);
+		schedule(interval, interval);
+	}
+
+	private void schedule(final long delay, final long interval) {
+		this.interval = interval;
+		this.timer = this.executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sync();
+			}
+		}, delay, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the periodic sync of this root. A sync already in progress is
+	 * allowed to finish.
+	 */
+	public synchronized void stop() {
+		logger.debug("stop(): localDir = {}", this.localDir);
+		if (this.timer != null) {
+			this.timer.cancel(false);
+			this.timer = null;
+		}
+		this.sessionPool.close();
+		this.syncLog.close();
+	}
+
+	public synchronized boolean isStarted() {
+		return this.timer != null;
+	}
+
+	/**
+	 * Perform a single sync cycle: a sync-once operation, when requested by
+	 * .vlt-sync-config.properties, or a regular (bidirectional) sync.
+	 */
+	public void sync() {
+		sync(null);
+	}
+
+	/**
+	 * Perform a single sync cycle limited to some paths (and their
+	 * descendants), such as the ones reported by a filesystem watcher. A
+	 * pending sync-once still covers the whole sync root.
+	 * 
+	 * @param changedPaths
+	 *            the changed JCR paths or null for all of them
+	 */
+	public void sync(final Collection<String> changedPaths) {
+		synchronized (this.syncLock) {
+			try {
+				if (!this.indexLoaded) {
+					loadIndex();
+				}
+				this.config.reloadIfModified();
+				if (this.filter.reloadIfModified()) {
+					this.syncLog.open(this.config.getSyncLog());
+					this.syncLog.log("Filter roots: %s", this.filter.getRoots());
+					pruneIndex();
+					final Runnable filterListener = this.filterListener;
+					if (filterListener != null) {
+						filterListener.run();
+					}
+				}
+				this.syncLog.open(this.config.getSyncLog());
+
+				if (this.config.isDisabled()) {
+					logger.debug("sync(): {} is disabled", this.localDir);
+					return;
+				}
+
+				final Session session = this.sessionPool.acquire();
+				boolean failed = true;
+				try {
+					setUserData(session);
+					final SyncMode syncOnce = this.config.getSyncOnce();
+					final SortedMap<String, SyncMode> syncOncePaths = this.config.getSyncOncePaths();
+					final long start = System.currentTimeMillis();
+					boolean full = true;
+					if (syncOnce != null) {
+						syncOnce(session, syncOnce);
+					} else if (!syncOncePaths.isEmpty()) {
+						syncOnce(session, syncOncePaths);
+						full = false;
+					} else if (changedPaths == null) {
+						if (canCatchUp()) {
+							catchUp(session, this.cursor.getTimestamp());
+						} else {
+							syncChanges(session, this.filter.getRoots());
+						}
+					} else {
+						syncChanges(session, getScopes(changedPaths));
+						full = false;
+					}
+
+					if (full) {
+						/* Everything changed before the start has been processed. */
+						this.caughtUp = true;
+						this.cursor.set(start, this.filter.getRoots());
+					}
+					failed = false;
+				} finally {
+					if (failed) {
+						this.sessionPool.invalidate(session);
+					} else {
+						this.sessionPool.release(session);
+					}
+				}
+
+				final boolean indexChanged = this.index.isDirty();
+				if (indexChanged) {
+					this.index.store(this.indexFile);
+				}
+				storeCursor(indexChanged);
+			} catch (RepositoryException e) {
+				logger.error("sync(): error while syncing " + this.localDir, e);
+				this.syncLog.log("Error: %s", e.getMessage());
+			} catch (IOException e) {
+				logger.error("sync(): error while syncing " + this.localDir, e);
+				this.syncLog.log("Error: %s", e.getMessage());
+			} catch (RuntimeException e) {
+				logger.error("sync(): unexpected error while syncing " + this.localDir, e);
+			} finally {
+				if (!isStarted()) {
+					this.syncLog.close();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Lets the observation listeners skip the changes of this session.
+	 */
+	private void setUserData(final Session session) throws RepositoryException {
+		try {
+			session.getWorkspace().getObservationManager().setUserData(USER_DATA);
+		} catch (UnsupportedOperationException e) {
+			logger.debug("setUserData(): not supported by {}", session);
+		}
+	}
+
+	/*
+	 * The covered subtrees of the changed paths, without overlaps.
+	 */
+	private List<String> getScopes(final Collection<String> changedPaths) {
+		final SortedSet<String> candidates = new TreeSet<String>();
+		for (String path : changedPaths) {
+			if (this.filter.isTraversed(path)) {
+				candidates.add(path);
+			} else {
+				/* An ancestor of some filter roots (or unrelated). */
+				for (String root : this.filter.getRoots()) {
+					if (SyncFilter.isAncestorOrSelf(path, root)) {
+						candidates.add(root);
+					}
+				}
+			}
+		}
+
+		final List<String> scopes = new ArrayList<String>();
+		for (String candidate : candidates) {
+			if (!isDescendantOfAny(scopes, candidate)) {
+				scopes.add(candidate);
+			}
+		}
+		return scopes;
+	}
+
+	/**
+	 * Overwrite one side with the content of the other one.
+	 */
+	protected void syncOnce(final Session session, final SyncMode mode) throws RepositoryException, IOException {
+		logger.info("syncOnce(): {} ({})", this.localDir, mode);
+		this.syncLog.log("Sync once started (%s).", mode);
+
+		final SortedMap<String, SyncMode> scopes = new TreeMap<String, SyncMode>();
+		for (String root : this.filter.getRoots()) {
+			scopes.put(root, mode);
+		}
+
+		this.index.clear();
+		if (this.config.isSyncOnceBulk() && mode != SyncMode.MERGE) {
+			syncOnceBulk(session, mode);
+		} else {
+			syncOnceScopes(session, scopes);
+		}
+
+		this.config.clearSyncOnce();
+		this.syncLog.log(SyncLog.SYNC_ONCE_COMPLETED);
+		logger.info("syncOnce(): {} is done", this.localDir);
+	}
+
+	/**
+	 * Overwrite some subtrees of one side with the content of the other one,
+	 * leaving the rest of the sync root alone.
+	 */
+	protected void syncOnce(final Session session, final SortedMap<String, SyncMode> paths)
+			throws RepositoryException, IOException {
+		logger.info("syncOnce(): {} {}", this.localDir, paths);
+		this.syncLog.log("Sync once started %s.", paths);
+
+		final SortedMap<String, SyncMode> scopes = new TreeMap<String, SyncMode>();
+		for (Map.Entry<String, SyncMode> path : paths.entrySet()) {
+			if (this.filter.contains(path.getKey())) {
+				scopes.put(path.getKey(), path.getValue());
+			} else {
+				logger.info("syncOnce(): {} is not covered by the filter of {}", path.getKey(), this.localDir);
+			}
+		}
+
+		for (String scope : scopes.keySet()) {
+			this.index.removeTree(scope);
+		}
+		syncOnceScopes(session, scopes);
+
+		this.config.clearSyncOnce();
+		this.syncLog.log(SyncLog.SYNC_ONCE_COMPLETED);
+		logger.info("syncOnce(): {} is done", this.localDir);
+	}
+
+	private void syncOnceScopes(final Session session, final SortedMap<String, SyncMode> scopes)
+			throws RepositoryException, IOException {
+		for (Map.Entry<String, SyncMode> scope : scopes.entrySet()) {
+			if (this.parallelism > 1 && scope.getValue() != SyncMode.MERGE) {
+				syncOnceParallel(session, scope.getKey(), scope.getValue());
+				continue;
+			}
+
+			final SortedMap<String, SyncEntry> fsEntries = new TreeMap<String, SyncEntry>();
+			scanFs(this.transfer.toFile(scope.getKey()), scope.getKey(), fsEntries);
+			final SortedMap<String, SyncEntry> jcrEntries = new TreeMap<String, SyncEntry>();
+			if (session.nodeExists(scope.getKey())) {
+				scanJcr(session.getNode(scope.getKey()), scope.getKey(), jcrEntries);
+			}
+
+			final SortedSet<String> paths = new TreeSet<String>(fsEntries.keySet());
+			paths.addAll(jcrEntries.keySet());
+			if (scope.getValue() == SyncMode.MERGE) {
+				merge(session, paths, fsEntries, jcrEntries);
+				continue;
+			}
+
+			for (String path : paths) {
+				if (scope.getValue() == SyncMode.FS2JCR) {
+					copyToJcr(session, path, fsEntries.get(path));
+				} else {
+					copyToFs(session, path, jcrEntries.get(path));
+				}
+			}
+		}
+		save(session, true);
+	}
+
+	/*
+	 * Overwrite one side with a FileVault import or export of the whole
+	 * filter and take the result as the new baseline of the index.
+	 */
+	private void syncOnceBulk(final Session session, final SyncMode mode) throws RepositoryException, IOException {
+		final List<String> roots = this.filter.getRoots();
+		if (mode == SyncMode.FS2JCR) {
+			this.syncPackage.importFromFs(session, this.filter.getFile(), roots);
+		} else {
+			this.syncPackage.exportToFs(session, this.filter.getFile(), roots);
+		}
+		this.syncLog.log("%s bulk %s", mode, roots);
+
+		/*
+		 * Serialization files (.content.xml, ...) have no counterpart, but
+		 * they are indexed anyway so they are not mistaken for new items.
+		 */
+		for (String root : roots) {
+			final SortedMap<String, SyncEntry> fsEntries = new TreeMap<String, SyncEntry>();
+			scanFs(this.transfer.toFile(root), root, fsEntries);
+			final SortedMap<String, SyncEntry> jcrEntries = new TreeMap<String, SyncEntry>();
+			if (session.nodeExists(root)) {
+				scanJcr(session.getNode(root), root, jcrEntries);
+			}
+
+			final SortedSet<String> paths = new TreeSet<String>(fsEntries.keySet());
+			paths.addAll(jcrEntries.keySet());
+			for (String path : paths) {
+				this.index.put(path, fsEntries.get(path), jcrEntries.get(path));
+			}
+		}
+	}
+
+	/*
+	 * Overwrite a subtree of one side with the content of the other one,
+	 * spreading its directories over a work-stealing pool.
+	 */
+	private void syncOnceParallel(final Session session, final String root, final SyncMode mode)
+			throws RepositoryException, IOException {
+		final SyncEntry fsEntry = this.transfer.getFsEntry(this.transfer.toFile(root));
+		final SyncEntry jcrEntry = session.nodeExists(root) ? this.transfer.getJcrEntry(session.getNode(root)) : null;
+
+		final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+		final Map<Thread, Session> sessions = new HashMap<Thread, Session>();
+		boolean failed = true;
+		try {
+			pool.invoke(new SyncOnceTask(root, mode, fsEntry, jcrEntry, sessions));
+			failed = false;
+		} catch (IllegalStateException e) {
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof RepositoryException) {
+					throw (RepositoryException) cause;
+				} else if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw e;
+		} finally {
+			pool.shutdown();
+			for (Session workerSession : sessions.values()) {
+				boolean saved = false;
+				try {
+					if (!failed) {
+						save(workerSession, true);
+						saved = true;
+					}
+				} finally {
+					if (saved) {
+						this.sessionPool.release(workerSession);
+					} else {
+						this.sessionPool.invalidate(workerSession);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * The session of the current worker.
+	 */
+	private Session getWorkerSession(final Map<Thread, Session> sessions) throws RepositoryException {
+		synchronized (sessions) {
+			Session session = sessions.get(Thread.currentThread());
+			if (session == null) {
+				session = this.sessionPool.acquire();
+				setUserData(session);
+				sessions.put(Thread.currentThread(), session);
+			}
+			return session;
+		}
+	}
+
+	/*
+	 * Sync-once of a directory: its files are handled at once and its
+	 * subdirectories become new tasks.
+	 */
+	private class SyncOnceTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String path;
+
+		private final SyncMode mode;
+
+		private final SyncEntry fsEntry;
+
+		private final SyncEntry jcrEntry;
+
+		private final Map<Thread, Session> sessions;
+
+		private SyncOnceTask(final String path, final SyncMode mode, final SyncEntry fsEntry,
+				final SyncEntry jcrEntry, final Map<Thread, Session> sessions) {
+			this.path = path;
+			this.mode = mode;
+			this.fsEntry = fsEntry;
+			this.jcrEntry = jcrEntry;
+			this.sessions = sessions;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				final Session session = getWorkerSession(this.sessions);
+				final SyncEntry source = this.mode == SyncMode.FS2JCR ? this.fsEntry : this.jcrEntry;
+				copy(session, this.path, source);
+				if (source == null || !source.isDirectory()) {
+					return;
+				}
+				if (this.mode == SyncMode.FS2JCR) {
+					/* The sessions of the other workers will add its children. */
+					save(session, true);
+				}
+
+				final SortedMap<String, SyncEntry> fsChildren = new TreeMap<String, SyncEntry>();
+				final File dir = transfer.toFile(this.path);
+				final String[] names = dir.list();
+				if (names != null) {
+					for (String name : names) {
+						final String childPath = concat(this.path, SyncTransfer.toJcrName(name));
+						final File child = new File(dir, name);
+						final SyncEntry entry = isIgnored(name) || isSerialization(name, child) ? null
+								: transfer.getFsEntry(child);
+						if (entry != null && isFiltered(childPath, entry)) {
+							fsChildren.put(childPath, entry);
+						}
+					}
+				}
+				final SortedMap<String, SyncEntry> jcrChildren = new TreeMap<String, SyncEntry>();
+				if (session.nodeExists(this.path)) {
+					for (NodeIterator i = session.getNode(this.path).getNodes(); i.hasNext();) {
+						final Node child = i.nextNode();
+						final String childPath = concat(this.path, child.getName());
+						final SyncEntry entry = isIgnored(child, childPath) ? null : transfer.getJcrEntry(child);
+						if (entry != null && isFiltered(childPath, entry)) {
+							jcrChildren.put(childPath, entry);
+						}
+					}
+				}
+
+				final SortedSet<String> children = new TreeSet<String>(fsChildren.keySet());
+				children.addAll(jcrChildren.keySet());
+				final List<SyncOnceTask> subtasks = new ArrayList<SyncOnceTask>();
+				for (String child : children) {
+					final SyncEntry childSource = this.mode == SyncMode.FS2JCR ? fsChildren.get(child)
+							: jcrChildren.get(child);
+					if (childSource != null && childSource.isDirectory()) {
+						subtasks.add(new SyncOnceTask(child, this.mode, fsChildren.get(child), jcrChildren.get(child),
+								this.sessions));
+					} else {
+						copy(session, child, childSource);
+					}
+				}
+				invokeAll(subtasks);
+			} catch (RepositoryException e) {
+				throw new IllegalStateException(e);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void copy(final Session session, final String path, final SyncEntry source)
+				throws RepositoryException, IOException {
+			if (this.mode == SyncMode.FS2JCR) {
+				copyToJcr(session, path, source);
+			} else {
+				copyToFs(session, path, source);
+			}
+		}
+	}
+
+	/*
+	 * Transfer the missing or newer items in both directions, without
+	 * deleting anything.
+	 */
+	private void merge(final Session session, final SortedSet<String> paths,
+			final Map<String, SyncEntry> fsEntries, final Map<String, SyncEntry> jcrEntries)
+			throws RepositoryException, IOException {
+		final SyncMode tieBreak = this.config.getMergeTieBreak();
+		final List<String> replacedPaths = new ArrayList<String>();
+
+		for (String path : paths) {
+			if (isDescendantOfAny(replacedPaths, path)) {
+				/* It went along with its replaced ancestor. */
+				continue;
+			}
+
+			final SyncEntry fsEntry = fsEntries.get(path);
+			final SyncEntry jcrEntry = jcrEntries.get(path);
+
+			final SyncMode direction;
+			if (jcrEntry == null) {
+				direction = SyncMode.FS2JCR;
+			} else if (fsEntry == null) {
+				direction = SyncMode.JCR2FS;
+			} else if (isInSync(fsEntry, jcrEntry)) {
+				this.index.put(path, fsEntry, jcrEntry);
+				continue;
+			} else if (fsEntry.isDirectory() != jcrEntry.isDirectory()) {
+				direction = tieBreak;
+				replacedPaths.add(path);
+			} else {
+				final long hash = getCommonHash(session, path, fsEntry, jcrEntry);
+				if (hash != SyncEntry.NO_HASH) {
+					/* Just different modification times. */
+					this.index.put(path, fsEntry.withHash(hash), jcrEntry.withHash(hash));
+					continue;
+				}
+
+				if (fsEntry.getLastModified() != jcrEntry.getLastModified()) {
+					direction = fsEntry.getLastModified() > jcrEntry.getLastModified() ? SyncMode.FS2JCR
+							: SyncMode.JCR2FS;
+				} else {
+					direction = tieBreak;
+				}
+			}
+
+			if (direction == SyncMode.FS2JCR) {
+				copyToJcr(session, path, fsEntry);
+			} else {
+				copyToFs(session, path, jcrEntry);
+			}
+		}
+		save(session, true);
+	}
+
+	/*
+	 * The common content hash of two files of the same size, or NO_HASH if
+	 * their contents differ (or can't be the same).
+	 */
+	private long getCommonHash(final Session session, final String path, final SyncEntry fsEntry,
+			final SyncEntry jcrEntry) throws RepositoryException, IOException {
+		if (!fsEntry.isCandidateForHash(jcrEntry)) {
+			return SyncEntry.NO_HASH;
+		}
+
+		final long fsHash = this.transfer.getFsHash(this.transfer.toFile(path));
+		return fsHash == this.transfer.getJcrHash(session.getNode(path)) ? fsHash : SyncEntry.NO_HASH;
+	}
+
+	/**
+	 * Propagate the changes made on each side since the last sync. When both
+	 * sides have changed, the filesystem wins.
+	 */
+	protected void syncChanges(final Session session, final List<String> scopes)
+			throws RepositoryException, IOException {
+		final SortedMap<String, SyncEntry> fsEntries = new TreeMap<String, SyncEntry>();
+		final SortedMap<String, SyncEntry> jcrEntries = new TreeMap<String, SyncEntry>();
+		final SortedMap<String, SyncIndex.Entry> indexEntries = new TreeMap<String, SyncIndex.Entry>();
+		for (String scope : scopes) {
+			scanFs(this.transfer.toFile(scope), scope, fsEntries);
+			if (session.nodeExists(scope)) {
+				scanJcr(session.getNode(scope), scope, jcrEntries);
+			}
+			indexEntries.putAll(this.index.getTree(scope));
+		}
+
+		final SortedSet<String> paths = new TreeSet<String>(fsEntries.keySet());
+		paths.addAll(jcrEntries.keySet());
+		paths.addAll(indexEntries.keySet());
+
+		syncMoves(session, paths, fsEntries, jcrEntries, indexEntries, true);
+		syncMoves(session, paths, jcrEntries, fsEntries, indexEntries, false);
+
+		/* Removed subtrees: a single remove of their top item. */
+		final List<String> removedTrees = new ArrayList<String>();
+		for (String path : paths) {
+			if (isDescendantOfAny(removedTrees, path)) {
+				continue;
+			}
+
+			SyncEntry fsEntry = fsEntries.get(path);
+			SyncEntry jcrEntry = jcrEntries.get(path);
+			final SyncIndex.Entry indexEntry = indexEntries.get(path);
+
+			if (indexEntry == null) {
+				if (isInSync(fsEntry, jcrEntry)) {
+					/* Never indexed, but both sides already match. */
+					this.index.put(path, fsEntry, jcrEntry);
+					continue;
+				}
+
+				final long hash = fsEntry != null && jcrEntry != null ? getCommonHash(session, path, fsEntry,
+						jcrEntry) : SyncEntry.NO_HASH;
+				if (hash != SyncEntry.NO_HASH) {
+					/* Never indexed, but both sides have the same content. */
+					this.index.put(path, fsEntry.withHash(hash), jcrEntry.withHash(hash));
+					continue;
+				}
+			}
+
+			boolean fsChanged = indexEntry == null ? fsEntry != null
+					: SyncEntry.isChanged(fsEntry, indexEntry.getFs());
+			boolean jcrChanged = indexEntry == null ? jcrEntry != null
+					: SyncEntry.isChanged(jcrEntry, indexEntry.getJcr());
+
+			/* Just touched (same content, another modification time)? */
+			boolean touched = false;
+			if (fsChanged && isSameContent(fsEntry, indexEntry, session, path, true)) {
+				fsEntry = fsEntry.withHash(indexEntry.getFs().getHash());
+				fsChanged = false;
+				touched = true;
+			}
+			if (jcrChanged && isSameContent(jcrEntry, indexEntry, session, path, false)) {
+				jcrEntry = jcrEntry.withHash(indexEntry.getJcr().getHash());
+				jcrChanged = false;
+				touched = true;
+			}
+
+			if (fsChanged && (!jcrChanged || fsEntry != null)) {
+				copyToJcr(session, path, fsEntry);
+				if (fsEntry == null) {
+					removedTrees.add(path);
+				}
+			} else if (jcrChanged) {
+				copyToFs(session, path, jcrEntry);
+				if (jcrEntry == null) {
+					removedTrees.add(path);
+				}
+			} else if (fsEntry == null && jcrEntry == null) {
+				this.index.remove(path);
+			} else if (touched) {
+				this.index.put(path, withIndexedHash(fsEntry, indexEntry.getFs()),
+						withIndexedHash(jcrEntry, indexEntry.getJcr()));
+			}
+		}
+		save(session, true);
+	}
+
+	/*
+	 * Replay the moves (and renames) made on one side as a single operation
+	 * each: a removed item whose entries reappear, unchanged, at a new path.
+	 * The moved entries take their new paths, so the comparison that follows
+	 * only finds what changed besides the move.
+	 */
+	private void syncMoves(final Session session, final SortedSet<String> paths,
+			final SortedMap<String, SyncEntry> sourceEntries, final SortedMap<String, SyncEntry> targetEntries,
+			final SortedMap<String, SyncIndex.Entry> indexEntries, final boolean fs)
+			throws RepositoryException, IOException {
+		final Set<String> removed = new LinkedHashSet<String>();
+		final Set<String> added = new LinkedHashSet<String>();
+		for (String path : paths) {
+			final SyncEntry source = sourceEntries.get(path);
+			final SyncEntry target = targetEntries.get(path);
+			final SyncIndex.Entry indexEntry = indexEntries.get(path);
+			final SyncEntry indexedSource = indexEntry == null ? null : (fs ? indexEntry.getFs() : indexEntry.getJcr());
+			final SyncEntry indexedTarget = indexEntry == null ? null : (fs ? indexEntry.getJcr() : indexEntry.getFs());
+
+			if (source == null && indexedSource != null && target != null
+					&& !SyncEntry.isChanged(target, indexedTarget)
+					&& !isDescendantOfAny(removed, path)) {
+				removed.add(path);
+			} else if (source != null && indexedSource == null && target == null
+					&& !isDescendantOfAny(added, path)) {
+				added.add(path);
+			}
+		}
+		if (removed.isEmpty() || added.isEmpty()) {
+			return;
+		}
+
+		for (String to : added) {
+			final SortedMap<String, SyncEntry> tree = getRelativeTree(sourceEntries, to);
+			for (Iterator<String> i = removed.iterator(); i.hasNext();) {
+				final String from = i.next();
+				if (!isSameTree(session, tree, getRelativeTree(indexEntries, from), to, from, fs)) {
+					continue;
+				}
+
+				if (fs) {
+					if (!this.transfer.moveInJcr(session, from, to)) {
+						continue;
+					}
+					this.syncLog.log("FS2JCR M %s %s", from, to);
+				} else {
+					if (!this.transfer.moveInFs(this.transfer.toFile(from), this.transfer.toFile(to))) {
+						continue;
+					}
+					this.syncLog.log("JCR2FS M %s %s", from, to);
+				}
+				i.remove();
+
+				for (Map.Entry<String, SyncIndex.Entry> entry : getRelativeTree(indexEntries, from).entrySet()) {
+					indexEntries.remove(from + entry.getKey());
+					indexEntries.put(to + entry.getKey(), entry.getValue());
+					this.index.remove(from + entry.getKey());
+					this.index.put(to + entry.getKey(), entry.getValue().getFs(), entry.getValue().getJcr());
+				}
+				for (Map.Entry<String, SyncEntry> entry : getRelativeTree(targetEntries, from).entrySet()) {
+					targetEntries.remove(from + entry.getKey());
+					targetEntries.put(to + entry.getKey(), entry.getValue());
+				}
+				final SyncMode direction = fs ? SyncMode.FS2JCR : SyncMode.JCR2FS;
+				this.echoes.put(from, direction, null);
+				this.echoes.put(to, direction, targetEntries.get(to));
+				save(session, false);
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Are the entries of a new subtree the indexed ones of a removed subtree?
+	 * Files must keep their modification times and sizes or, at least, their
+	 * content. Subtrees without files (empty directories) tell nothing apart.
+	 */
+	private boolean isSameTree(final Session session, final SortedMap<String, SyncEntry> tree,
+			final SortedMap<String, SyncIndex.Entry> indexedTree, final String to, final String from,
+			final boolean fs) throws RepositoryException, IOException {
+		if (!tree.keySet().equals(indexedTree.keySet())) {
+			return false;
+		}
+
+		boolean hasFiles = false;
+		for (Map.Entry<String, SyncEntry> entry : tree.entrySet()) {
+			final SyncEntry current = entry.getValue();
+			final SyncIndex.Entry indexEntry = indexedTree.get(entry.getKey());
+			final SyncEntry indexed = fs ? indexEntry.getFs() : indexEntry.getJcr();
+			if (indexed == null || current.isDirectory() != indexed.isDirectory()) {
+				return false;
+			} else if (current.isDirectory()) {
+				continue;
+			}
+
+			hasFiles = true;
+			if (current.equals(indexed)) {
+				continue;
+			} else if (current.getSize() != indexed.getSize() || !indexed.hasHash()) {
+				return false;
+			}
+
+			final String path = to + entry.getKey();
+			final long hash = fs ? this.transfer.getFsHash(this.transfer.toFile(path))
+					: this.transfer.getJcrHash(session.getNode(path));
+			if (hash != indexed.getHash()) {
+				return false;
+			}
+		}
+		return hasFiles;
+	}
+
+	/**
+	 * Make the JCR side of a path equal to the filesystem one.
+	 */
+	private void copyToJcr(final Session session, final String path, final SyncEntry fsEntry)
+			throws RepositoryException, IOException {
+		if (getUnsupportedNode(session, path) != null) {
+			logger.debug("copyToJcr(): {} skipped", path);
+			return;
+		}
+
+		if (fsEntry == null) {
+			if (session.nodeExists(path)) {
+				this.syncLog.log("FS2JCR D %s", path);
+				this.transfer.removeFromJcr(session, path);
+				this.echoes.put(path, SyncMode.FS2JCR, null);
+			}
+			this.index.removeTree(path);
+		} else {
+			final File file = this.transfer.toFile(path);
+			final SyncEntry sameEntry = fsEntry.isDirectory() ? null
+					: this.transfer.getSameContentEntry(session, path, file);
+			if (sameEntry != null) {
+				/* Touched (by a checkout or a build), but not changed: no upload. */
+				logger.debug("copyToJcr(): {} has the same content", path);
+				this.index.put(path, fsEntry.withHash(sameEntry.getHash()), sameEntry);
+				return;
+			}
+
+			this.syncLog.log("FS2JCR %s %s", this.index.get(path) == null ? "A" : "U", path);
+			final SyncEntry jcrEntry = this.transfer.writeToJcr(session, path, file);
+			this.index.put(path, fsEntry.withHash(jcrEntry.getHash()), jcrEntry);
+			this.echoes.put(path, SyncMode.FS2JCR, jcrEntry);
+		}
+		save(session, false);
+	}
+
+	/**
+	 * Make the filesystem side of a path equal to the JCR one.
+	 */
+	private void copyToFs(final Session session, final String path, final SyncEntry jcrEntry)
+			throws RepositoryException, IOException {
+		if (getUnsupportedNode(session, path) != null) {
+			logger.debug("copyToFs(): {} skipped", path);
+			return;
+		}
+
+		final File file = this.transfer.toFile(path);
+		if (jcrEntry == null) {
+			if (file.exists()) {
+				this.syncLog.log("JCR2FS D %s", path);
+				this.transfer.removeFromFs(file);
+				this.echoes.put(path, SyncMode.JCR2FS, null);
+			}
+			this.index.removeTree(path);
+		} else {
+			this.syncLog.log("JCR2FS %s %s", this.index.get(path) == null ? "A" : "U", path);
+			final SyncEntry fsEntry = this.transfer.writeToFs(session.getNode(path), file);
+			this.index.put(path, fsEntry, jcrEntry.withHash(fsEntry.getHash()));
+			this.echoes.put(path, SyncMode.JCR2FS, fsEntry);
+		}
+	}
+
+	/*
+	 * Forget the paths which are no longer covered by the filter, so they are
+	 * not mistaken for deletions.
+	 */
+	private void pruneIndex() {
+		for (Map.Entry<String, SyncIndex.Entry> entry : this.index.getEntries().entrySet()) {
+			final SyncEntry indexed = entry.getValue().getFs() != null ? entry.getValue().getFs()
+					: entry.getValue().getJcr();
+			if (indexed == null || !isFiltered(entry.getKey(), indexed)) {
+				this.index.remove(entry.getKey());
+			}
+		}
+	}
+
+	/*
+	 * Count a change and save it if its batch is full (or if forced, at the end
+	 * of a sync cycle).
+	 */
+	private void save(final Session session, final boolean force) throws RepositoryException {
+		final boolean due;
+		final int changes;
+		synchronized (this.unsavedChanges) {
+			int[] unsaved = this.unsavedChanges.get(session);
+			if (unsaved == null) {
+				unsaved = new int[1];
+				this.unsavedChanges.put(session, unsaved);
+			}
+			if (!force) {
+				unsaved[0]++;
+			}
+			changes = unsaved[0];
+			due = force || changes >= this.saveBatch.getSize();
+			if (due) {
+				unsaved[0] = 0;
+			}
+		}
+
+		if (due && session.hasPendingChanges()) {
+			final long start = System.currentTimeMillis();
+			session.save();
+			this.saveBatch.saved(changes, System.currentTimeMillis() - start);
+		}
+	}
+
+	/*
+	 * Does the current (changed) state of one side still have the indexed
+	 * content? Only worth hashing when the sizes match.
+	 */
+	private boolean isSameContent(final SyncEntry current, final SyncIndex.Entry indexEntry, final Session session,
+			final String path, final boolean fs) throws RepositoryException, IOException {
+		if (current == null || indexEntry == null) {
+			return false;
+		}
+
+		final SyncEntry indexed = fs ? indexEntry.getFs() : indexEntry.getJcr();
+		if (!current.isCandidateForHash(indexed) || !indexed.hasHash()) {
+			return false;
+		}
+
+		final long hash = fs ? this.transfer.getFsHash(this.transfer.toFile(path))
+				: this.transfer.getJcrHash(session.getNode(path));
+		return hash == indexed.getHash();
+	}
+
+	private static SyncEntry withIndexedHash(final SyncEntry current, final SyncEntry indexed) {
+		if (current == null || indexed == null || current.hasHash()) {
+			return current;
+		}
+		return current.withHash(indexed.getHash());
+	}
+
+	private void loadIndex() {
+		try {
+			if (this.index.load(this.indexFile)) {
+				logger.info("loadIndex(): {} entries loaded for {}", this.index.size(), this.localDir);
+				if (this.cursor.load(this.cursorFile)) {
+					logger.info("loadIndex(): changes up to {} already processed for {}",
+							new Date(this.cursor.getTimestamp()), this.localDir);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("loadIndex(): ignoring the index of " + this.localDir, e);
+			this.index.clear();
+			this.cursor.set(-1, Collections.<String> emptyList());
+		}
+		this.indexLoaded = true;
+	}
+
+	/*
+	 * Store the cursor along with the index, or when it gets too old.
+	 */
+	private void storeCursor(final boolean force) throws IOException {
+		final long timestamp = this.cursor.getTimestamp();
+		if (timestamp >= 0 && (force || timestamp - this.cursorStored >= CURSOR_STORE_INTERVAL)) {
+			this.cursor.store(this.cursorFile);
+			this.cursorStored = timestamp;
+		}
+	}
+
+	/*
+	 * Only the first full sync after a restart can catch up, if the filter
+	 * roots are still the same.
+	 */
+	private boolean canCatchUp() {
+		return !this.caughtUp && this.cursor.getTimestamp() >= 0
+				&& this.cursor.getRoots().equals(this.filter.getRoots());
+	}
+
+	/**
+	 * Propagate only the changes made since the specified time: the
+	 * filesystem is compared with the index (no JCR access) and the JCR
+	 * changes come from the event journal or, when the repository has none,
+	 * from a query on the modification dates. If the JCR changes can't be
+	 * listed (for instance, a query beyond the traversal limit), the filter
+	 * roots are walked instead.
+	 */
+	protected void catchUp(final Session session, final long since) throws RepositoryException, IOException {
+		SortedSet<String> jcrPaths = null;
+		try {
+			jcrPaths = getJcrChanges(session, since);
+		} catch (RepositoryException e) {
+			logger.warn("catchUp(): unable to list the JCR changes at " + this.localDir, e);
+		} catch (RuntimeException e) {
+			logger.warn("catchUp(): unable to list the JCR changes at " + this.localDir, e);
+		}
+		if (jcrPaths == null) {
+			syncChanges(session, this.filter.getRoots());
+			return;
+		}
+
+		final SortedSet<String> paths = getFsChanges();
+		paths.addAll(jcrPaths);
+		logger.info("catchUp(): {} changed paths since {} at {}",
+				new Object[] { paths.size(), new Date(since), this.localDir });
+		syncChanges(session, getScopes(paths));
+	}
+
+	/*
+	 * The filesystem items which differ from the index.
+	 */
+	private SortedSet<String> getFsChanges() {
+		final SortedMap<String, SyncEntry> fsEntries = new TreeMap<String, SyncEntry>();
+		for (String root : this.filter.getRoots()) {
+			scanFs(this.transfer.toFile(root), root, fsEntries);
+		}
+
+		final SortedSet<String> paths = new TreeSet<String>();
+		for (Map.Entry<String, SyncEntry> entry : fsEntries.entrySet()) {
+			final SyncIndex.Entry indexEntry = this.index.get(entry.getKey());
+			if (indexEntry == null || SyncEntry.isChanged(entry.getValue(), indexEntry.getFs())) {
+				paths.add(entry.getKey());
+			}
+		}
+		for (Map.Entry<String, SyncIndex.Entry> entry : this.index.getEntries().entrySet()) {
+			if (entry.getValue().getFs() != null && !fsEntries.containsKey(entry.getKey())) {
+				paths.add(entry.getKey());
+			}
+		}
+		return paths;
+	}
+
+	/*
+	 * The JCR folders or files changed since the specified time.
+	 */
+	private SortedSet<String> getJcrChanges(final Session session, final long since) throws RepositoryException {
+		final SortedSet<String> paths = new TreeSet<String>();
+		try {
+			final ObservationManager observationManager = session.getWorkspace().getObservationManager();
+			for (String root : this.filter.getRoots()) {
+				final EventJournal journal = observationManager.getEventJournal(JcrWatcher.EVENT_TYPES, root, true,
+						null, null);
+				journal.skipTo(since);
+				while (journal.hasNext()) {
+					final Event event = journal.nextEvent();
+					if (!USER_DATA.equals(event.getUserData())) {
+						JcrWatcher.addSyncPaths(session, event, paths);
+					}
+				}
+			}
+			return paths;
+		} catch (UnsupportedRepositoryOperationException e) {
+			logger.debug("getJcrChanges(): no event journal, querying");
+		} catch (UnsupportedOperationException e) {
+			logger.debug("getJcrChanges(): no event journal, querying");
+		}
+
+		/*
+		 * Only the file contents (nt:resource, whose jcr:lastModified is
+		 * usually indexed) are queried: removals, new empty folders and
+		 * changes which don't update jcr:lastModified are left for the next
+		 * full sync.
+		 */
+		final Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(since);
+		final String date = session.getValueFactory().createValue(calendar).getString();
+		final QueryManager queryManager = session.getWorkspace().getQueryManager();
+		for (String root : this.filter.getRoots()) {
+			/* A quoted path, so that brackets (or quotes) don't break it. */
+			final String descendant = "ISDESCENDANTNODE(n, ['" + root.replace("'", "''") + "'])";
+			final String statement = "SELECT * FROM [nt:resource] AS n WHERE " + descendant
+					+ " AND n.[jcr:lastModified] > CAST('" + date + "' AS DATE)";
+			final NodeIterator nodes = queryManager.createQuery(statement, Query.JCR_SQL2).execute().getNodes();
+			while (nodes.hasNext()) {
+				paths.add(SyncTransfer.getSyncPath(session, nodes.nextNode().getPath()));
+			}
+		}
+		return paths;
+	}
+
+	private boolean isInSync(final SyncEntry fsEntry, final SyncEntry jcrEntry) {
+		if (fsEntry == null || jcrEntry == null) {
+			return false;
+		}
+		return fsEntry.equals(jcrEntry);
+	}
+
+	/*
+	 * Files have to be included by the filter rules; folders are kept while
+	 * they may hold included descendants.
+	 */
+	private boolean isFiltered(final String path, final SyncEntry entry) {
+		return entry.isDirectory() ? this.filter.isTraversed(path) : this.filter.contains(path);
+	}
+
+	private void scanFs(final File file, final String path, final Map<String, SyncEntry> entries) {
+		final SyncEntry entry = this.transfer.getFsEntry(file);
+		if (entry == null || !isFiltered(path, entry)) {
+			return;
+		}
+
+		entries.put(path, entry);
+		if (entry.isDirectory()) {
+			final String[] names = file.list();
+			if (names != null) {
+				for (String name : names) {
+					final File child = new File(file, name);
+					if (!isIgnored(name) && !isSerialization(name, child)) {
+						scanFs(child, concat(path, SyncTransfer.toJcrName(name)), entries);
+					}
+				}
+			}
+		}
+	}
+
+	private void scanJcr(final Node node, final String path, final Map<String, SyncEntry> entries)
+			throws RepositoryException {
+		final SyncEntry entry = this.transfer.getJcrEntry(node);
+		if (entry == null || !isFiltered(path, entry)) {
+			return;
+		}
+
+		entries.put(path, entry);
+		if (entry.isDirectory()) {
+			for (NodeIterator i = node.getNodes(); i.hasNext();) {
+				final Node child = i.nextNode();
+				final String childPath = concat(path, child.getName());
+				if (!isIgnored(child, childPath)) {
+					scanJcr(child, childPath, entries);
+				}
+			}
+		}
+	}
+
+	/*
+	 * FileVault serialization files (.content.xml, the other docview .xml
+	 * files and the _cq_* items) describe nodes which are neither files nor
+	 * folders: they are left to FileVault, on both sides.
+	 */
+	private boolean isSerialization(final String name, final File file) {
+		return CONTENT_XML.equals(name) || name.startsWith(CQ_PREFIX) || this.transfer.isDocView(file);
+	}
+
+	private boolean isIgnored(final Node node, final String path) throws RepositoryException {
+		final String name = SyncTransfer.toPlatformName(node.getName());
+		return isIgnored(name) || isSerialization(name, this.transfer.toFile(path));
+	}
+
+	/*
+	 * The nearest node, at a path or above it, which is neither a file nor a
+	 * folder (a cq:Component, a cq:Page, ...), or null. Such nodes are left
+	 * alone, along with their descendants: they are never removed nor
+	 * replaced, on either side.
+	 */
+	private String getUnsupportedNode(final Session session, final String path) throws RepositoryException {
+		for (String current = path; !"/".equals(current); current = SyncTransfer.getParentPath(current)) {
+			if (session.nodeExists(current) && !SyncTransfer.isSupported(session.getNode(current))) {
+				if (this.unsupportedNodes.add(current)) {
+					logger.info("getUnsupportedNode(): {} is neither a file nor a folder, left alone", current);
+				}
+				return current;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the filesystem item with the specified name should never
+	 *         be synchronized
+	 */
+	protected static boolean isIgnored(final String name) {
+		return name.startsWith(CONTROL_FILE_PREFIX) || IGNORED_NAMES.contains(name)
+				|| TEMP_FILE.matcher(name).matches();
+	}
+
+	/*
+	 * The entries of an item and of its descendants, by path relative to it
+	 * ("" for the item itself).
+	 */
+	private static <V> SortedMap<String, V> getRelativeTree(final SortedMap<String, V> entries, final String path) {
+		final SortedMap<String, V> tree = new TreeMap<String, V>();
+		if (entries.containsKey(path)) {
+			tree.put("", entries.get(path));
+		}
+		final String prefix = path + "/";
+		for (Map.Entry<String, V> entry : entries.tailMap(prefix).entrySet()) {
+			if (!entry.getKey().startsWith(prefix)) {
+				break;
+			}
+			tree.put(entry.getKey().substring(path.length()), entry.getValue());
+		}
+		return tree;
+	}
+
+	private static boolean isDescendantOfAny(final Collection<String> ancestors, final String path) {
+		for (String ancestor : ancestors) {
+			if (SyncFilter.isAncestorOrSelf(ancestor, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String concat(final String parent, final String name) {
+		return "/".equals(parent) ? "/" + name : parent + "/" + name;
+	}
+
+	@Override
+	public String toString() {
+		return "SyncRoot(" + this.localDir + ", " + Collections.unmodifiableList(this.filter.getRoots()) + ")";
+	}
+
+}
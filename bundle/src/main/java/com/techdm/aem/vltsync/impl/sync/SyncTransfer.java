@@ -0,0 +1,703 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps JCR paths to filesystem paths (and vice-versa) and transfers files and
+ * folders between both sides. Only nt:file and folder nodes are handled.
+ * 
+ * @author Daniel Henrique Alves Lima
+ *
+ */
+public class SyncTransfer {
+
+	/** JCR file node type. */
+	public static final String NT_FILE = "nt:file";
+
+	/** JCR folder node type. */
+	public static final String NT_FOLDER = "nt:folder";
+
+	/** JCR file content node type. */
+	protected static final String NT_RESOURCE = "nt:resource";
+
+	/** Node holding the file content. */
+	public static final String JCR_CONTENT = "jcr:content";
+
+	/** Binary property. */
+	public static final String JCR_DATA = "jcr:data";
+
+	/** Last modification property. */
+	public static final String JCR_LASTMODIFIED = "jcr:lastModified";
+
+	/** Mime type property. */
+	protected static final String JCR_MIMETYPE = "jcr:mimeType";
+
+	/* Node types handled as folders. */
+	private static final String[] FOLDER_TYPES = { NT_FOLDER, "sling:Folder", "sling:OrderedFolder" };
+
+	/* Characters not allowed in (some) filesystem names. */
+	private static final String ESCAPED_CHARS = "%\\:*?\"<>|";
+
+	/* Escaped namespace prefix (_prefix_name). */
+	private static final Pattern ESCAPED_PREFIX = Pattern.compile("^_([^_:/]+)_(.+)$");
+
+	/* Files from this size on are hashed through a memory map. */
+	private static final long MAP_THRESHOLD = 1024 * 1024;
+
+	/* How much of a file is mapped at once. */
+	private static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+	/* How many bytes are read (or transferred) at once. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/* Prefix of the files being written (ignored by the sync roots). */
+	private static final String TEMP_FILE_PREFIX = ".vlt-sync-tmp-";
+
+	/* How many bytes of a .xml file are read to tell a docview file. */
+	private static final int DOCVIEW_PROBE_SIZE = 1024;
+
+	/* Root element of the FileVault docview files. */
+	private static final String DOCVIEW_ROOT = "<jcr:root";
+
+	/* How many JCR binary hashes are cached. */
+	private static final int HASH_CACHE_SIZE = 10000;
+
+	/* Logger instance. */
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final File localDir;
+
+	/*
+	 * Hashes of JCR binaries, by content identity (the blob id) or, when the
+	 * repository has none, by path, modification time and size.
+	 */
+	private final Map<String, Long> jcrHashes = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16,
+			0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+			return size() > HASH_CACHE_SIZE;
+		}
+
+	});
+
+	public SyncTransfer(final File localDir) {
+		this.localDir = localDir;
+	}
+
+	/**
+	 * @param path
+	 *            JCR path
+	 * @return the corresponding file at the sync root
+	 */
+	public File toFile(final String path) {
+		File file = this.localDir;
+		for (String name : StringUtils.split(path, '/')) {
+			file = new File(file, toPlatformName(name));
+		}
+		return file;
+	}
+
+	/**
+	 * @param file
+	 *            file at the sync root
+	 * @return the corresponding JCR path or null if it is outside the sync
+	 *         root
+	 */
+	public String toPath(final File file) {
+		final StringBuilder path = new StringBuilder();
+		File current = file;
+		while (current != null && !current.equals(this.localDir)) {
+			path.insert(0, toJcrName(current.getName())).insert(0, '/');
+			current = current.getParentFile();
+		}
+
+		if (current == null) {
+			return null;
+		}
+		return path.length() > 0 ? path.toString() : "/";
+	}
+
+	/**
+	 * Translate a JCR name into a filesystem name (similar to FileVault's
+	 * platform name format): "jcr:content" becomes "_jcr_content".
+	 */
+	public static String toPlatformName(final String jcrName) {
+		final StringBuilder name = new StringBuilder();
+		String localName = jcrName;
+
+		final int colon = jcrName.indexOf(':');
+		if (colon > 0) {
+			name.append('_').append(jcrName.substring(0, colon)).append('_');
+			localName = jcrName.substring(colon + 1);
+		} else if (ESCAPED_PREFIX.matcher(jcrName).matches()) {
+			/* Otherwise, it would be read back as a prefixed name. */
+			name.append('_');
+		}
+
+		for (char c : localName.toCharArray()) {
+			if (ESCAPED_CHARS.indexOf(c) >= 0) {
+				name.append('%').append(String.format("%02X", (int) c));
+			} else {
+				name.append(c);
+			}
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Translate a filesystem name into a JCR name: "_jcr_content" becomes
+	 * "jcr:content".
+	 */
+	public static String toJcrName(final String platformName) {
+		String name = platformName;
+		String prefix = null;
+
+		if (name.startsWith("__")) {
+			name = name.substring(1);
+		} else {
+			final Matcher matcher = ESCAPED_PREFIX.matcher(name);
+			if (matcher.matches()) {
+				prefix = matcher.group(1);
+				name = matcher.group(2);
+			}
+		}
+
+		if (name.indexOf('%') >= 0) {
+			try {
+				name = URLDecoder.decode(name.replace("+", "%2B"), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			} catch (IllegalArgumentException e) {
+				/* Not escaped by us. Keep it as is. */
+			}
+		}
+
+		return prefix != null ? prefix + ":" + name : name;
+	}
+
+	/**
+	 * @param file
+	 *            file or directory
+	 * @return its current state or null if it doesn't exist
+	 */
+	public SyncEntry getFsEntry(final File file) {
+		if (file.isDirectory()) {
+			return new SyncEntry(true, 0, 0);
+		} else if (file.isFile()) {
+			return new SyncEntry(false, file.lastModified(), file.length());
+		}
+		return null;
+	}
+
+	/**
+	 * @param node
+	 *            file or folder node
+	 * @return its current state or null if it is neither a file nor a folder
+	 */
+	public SyncEntry getJcrEntry(final Node node) throws RepositoryException {
+		if (isFolder(node)) {
+			return new SyncEntry(true, 0, 0);
+		} else if (isFile(node)) {
+			long lastModified = -1;
+			long size = -1;
+			if (node.hasNode(JCR_CONTENT)) {
+				final Node content = node.getNode(JCR_CONTENT);
+				if (content.hasProperty(JCR_LASTMODIFIED)) {
+					lastModified = content.getProperty(JCR_LASTMODIFIED).getDate().getTimeInMillis();
+				}
+				if (content.hasProperty(JCR_DATA)) {
+					size = content.getProperty(JCR_DATA).getLength();
+				}
+			}
+			return new SyncEntry(false, lastModified, size);
+		}
+		return null;
+	}
+
+	/**
+	 * @param file
+	 *            a file
+	 * @return the hash (CRC32) of its content
+	 */
+	public long getFsHash(final File file) throws IOException {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			if (file.length() < MAP_THRESHOLD) {
+				return hash(in);
+			}
+			return hash(in.getChannel());
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * @param node
+	 *            a file node
+	 * @return the hash (CRC32) of its content
+	 */
+	public long getJcrHash(final Node node) throws RepositoryException, IOException {
+		final Node content = node.getNode(JCR_CONTENT);
+		final String key = getHashKey(content);
+		final Long cached = this.jcrHashes.get(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		final Binary binary = content.getProperty(JCR_DATA).getBinary();
+		InputStream in = null;
+		try {
+			in = binary.getStream();
+			final long hash = hash(in);
+			this.jcrHashes.put(key, hash);
+			return hash;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Does a file node already have the content of a file? Only worth hashing
+	 * when the sizes match.
+	 * 
+	 * @param session
+	 *            JCR session
+	 * @param path
+	 *            JCR path of the file node
+	 * @param file
+	 *            a file
+	 * @return the current state of the JCR side (with its hash) if it has the
+	 *         same content, null otherwise
+	 */
+	public SyncEntry getSameContentEntry(final Session session, final String path, final File file)
+			throws RepositoryException, IOException {
+		if (!file.isFile() || !session.nodeExists(path)) {
+			return null;
+		}
+
+		final Node node = session.getNode(path);
+		if (!isFile(node) || !node.hasNode(JCR_CONTENT) || !node.getNode(JCR_CONTENT).hasProperty(JCR_DATA)) {
+			return null;
+		}
+
+		final SyncEntry jcrEntry = getJcrEntry(node);
+		if (jcrEntry.getSize() != file.length()) {
+			return null;
+		}
+
+		final long hash = getJcrHash(node);
+		return getFsHash(file) == hash ? jcrEntry.withHash(hash) : null;
+	}
+
+	/*
+	 * Cache key of the binary of a file content node.
+	 */
+	private static String getHashKey(final Node content) throws RepositoryException {
+		final Value value = content.getProperty(JCR_DATA).getValue();
+		if (value instanceof JackrabbitValue) {
+			final String contentIdentity = ((JackrabbitValue) value).getContentIdentity();
+			if (contentIdentity != null) {
+				return contentIdentity;
+			}
+		}
+
+		final long lastModified = content.hasProperty(JCR_LASTMODIFIED) ? content.getProperty(JCR_LASTMODIFIED)
+				.getDate().getTimeInMillis() : -1;
+		return content.getPath() + "@" + lastModified + ":" + content.getProperty(JCR_DATA).getLength();
+	}
+
+	/*
+	 * Hash a large file a window at a time, so the heap use doesn't depend on
+	 * its size. The mapped bytes are drained through a small buffer, since
+	 * CRC32 only takes arrays before Java 8.
+	 */
+	private static long hash(final FileChannel channel) throws IOException {
+		final CRC32 checksum = new CRC32();
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		final long size = channel.size();
+		for (long position = 0; position < size; position += MAP_WINDOW) {
+			final MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position,
+					Math.min(MAP_WINDOW, size - position));
+			while (window.hasRemaining()) {
+				final int length = Math.min(buffer.length, window.remaining());
+				window.get(buffer, 0, length);
+				checksum.update(buffer, 0, length);
+			}
+		}
+		return checksum.getValue();
+	}
+
+	private static long hash(final InputStream in) throws IOException {
+		final CRC32 checksum = new CRC32();
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			checksum.update(buffer, 0, read);
+		}
+		return checksum.getValue();
+	}
+
+	/**
+	 * @param file
+	 *            a file
+	 * @return true if it is a FileVault docview file (an .xml file whose root
+	 *         element is jcr:root), which stands for a node of another type
+	 */
+	public boolean isDocView(final File file) {
+		if (!file.getName().endsWith(".xml") || !file.isFile()) {
+			return false;
+		}
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			final byte[] buffer = new byte[DOCVIEW_PROBE_SIZE];
+			final int length = IOUtils.read(in, buffer);
+			return new String(buffer, 0, length, "UTF-8").contains(DOCVIEW_ROOT);
+		} catch (IOException e) {
+			logger.debug("isDocView(): unable to read " + file, e);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * @param node
+	 *            a node
+	 * @return true if it is a file or a folder (the only nodes transferred)
+	 */
+	public static boolean isSupported(final Node node) throws RepositoryException {
+		return isFolder(node) || isFile(node);
+	}
+
+	public static boolean isFile(final Node node) throws RepositoryException {
+		return node.isNodeType(NT_FILE);
+	}
+
+	public static boolean isFolder(final Node node) throws RepositoryException {
+		for (String type : FOLDER_TYPES) {
+			if (node.isNodeType(type)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copy a file (or directory) to the JCR. Save is up to the caller. A file
+	 * replaces a folder (and vice-versa), but nodes of any other type are
+	 * never replaced.
+	 * 
+	 * @param session
+	 *            JCR session
+	 * @param path
+	 *            destination JCR path
+	 * @param file
+	 *            source file or directory
+	 * @return the new state of the JCR side
+	 */
+	public SyncEntry writeToJcr(final Session session, final String path, final File file)
+			throws RepositoryException, IOException {
+		if (file.isDirectory()) {
+			if (session.nodeExists(path) && !isFolder(session.getNode(path))) {
+				removeFile(session.getNode(path));
+			}
+			return getJcrEntry(getOrCreateFolder(session, path));
+		}
+
+		Node fileNode = null;
+		if (session.nodeExists(path)) {
+			fileNode = session.getNode(path);
+			if (!isFile(fileNode)) {
+				removeFolder(fileNode);
+				fileNode = null;
+			}
+		}
+
+		if (fileNode == null) {
+			final Node parent = getOrCreateFolder(session, getParentPath(path));
+			fileNode = parent.addNode(getName(path), NT_FILE);
+		}
+
+		final Node content = fileNode.hasNode(JCR_CONTENT) ? fileNode.getNode(JCR_CONTENT)
+				: fileNode.addNode(JCR_CONTENT, NT_RESOURCE);
+
+		final CRC32 checksum = new CRC32();
+		InputStream in = null;
+		try {
+			in = new CheckedInputStream(new FileInputStream(file), checksum);
+			content.setProperty(JCR_DATA, session.getValueFactory().createBinary(in));
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+
+		final Calendar lastModified = Calendar.getInstance();
+		lastModified.setTimeInMillis(file.lastModified());
+		content.setProperty(JCR_LASTMODIFIED, lastModified);
+		if (!content.hasProperty(JCR_MIMETYPE)) {
+			content.setProperty(JCR_MIMETYPE, getMimeType(file));
+		}
+		this.jcrHashes.put(getHashKey(content), checksum.getValue());
+
+		return new SyncEntry(false, file.lastModified(), file.length(), checksum.getValue());
+	}
+
+	/**
+	 * Copy a file (or folder) node to the filesystem.
+	 * 
+	 * @param node
+	 *            source node
+	 * @param file
+	 *            destination file or directory
+	 * @return the new state of the filesystem side
+	 */
+	public SyncEntry writeToFs(final Node node, final File file) throws RepositoryException, IOException {
+		if (isFolder(node)) {
+			if (file.isFile()) {
+				FileUtils.forceDelete(file);
+			}
+			FileUtils.forceMkdir(file);
+			return getFsEntry(file);
+		}
+
+		if (file.isDirectory()) {
+			FileUtils.deleteDirectory(file);
+		}
+		FileUtils.forceMkdir(file.getParentFile());
+
+		/*
+		 * Written aside and renamed over the file, with its final timestamp:
+		 * editors and watchers never see it half written (or touched twice).
+		 */
+		final Node content = node.getNode(JCR_CONTENT);
+		final Binary binary = content.getProperty(JCR_DATA).getBinary();
+		final File temp = new File(file.getParentFile(), TEMP_FILE_PREFIX + file.getName());
+		final CRC32 checksum = new CRC32();
+		boolean written = false;
+		InputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new CheckedInputStream(binary.getStream(), checksum);
+			out = new FileOutputStream(temp);
+			transfer(Channels.newChannel(in), out.getChannel());
+			out.close();
+
+			if (content.hasProperty(JCR_LASTMODIFIED)) {
+				temp.setLastModified(content.getProperty(JCR_LASTMODIFIED).getDate().getTimeInMillis());
+			}
+			rename(temp, file);
+			written = true;
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			if (!written) {
+				FileUtils.deleteQuietly(temp);
+			}
+		}
+		return getFsEntry(file).withHash(checksum.getValue());
+	}
+
+	/*
+	 * Replace a file atomically, where the filesystem allows it.
+	 */
+	private static void rename(final File source, final File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/*
+	 * Stream a channel into a file without buffering it on the heap: the
+	 * file channel moves it through a direct buffer.
+	 */
+	private static void transfer(final ReadableByteChannel source, final FileChannel target) throws IOException {
+		long position = 0;
+		long transferred;
+		while ((transferred = target.transferFrom(source, position, BUFFER_SIZE)) > 0) {
+			position += transferred;
+		}
+	}
+
+	/**
+	 * Move a node (and its descendants) in a single operation. Save is up to
+	 * the caller.
+	 * 
+	 * @return false if there is already a node at the destination
+	 */
+	public boolean moveInJcr(final Session session, final String from, final String to)
+			throws RepositoryException {
+		if (session.nodeExists(to) || !session.nodeExists(from)) {
+			return false;
+		}
+
+		getOrCreateFolder(session, getParentPath(to));
+		session.move(from, to);
+		return true;
+	}
+
+	/**
+	 * Move a file or directory (and its descendants) in a single operation.
+	 * 
+	 * @return false if it could not be renamed
+	 */
+	public boolean moveInFs(final File from, final File to) throws IOException {
+		if (to.exists() || !from.exists()) {
+			return false;
+		}
+
+		FileUtils.forceMkdir(to.getParentFile());
+		return from.renameTo(to);
+	}
+
+	/**
+	 * Remove a node (and its descendants), if it exists. Save is up to the
+	 * caller.
+	 */
+	public void removeFromJcr(final Session session, final String path) throws RepositoryException {
+		if (session.nodeExists(path)) {
+			session.getNode(path).remove();
+		}
+	}
+
+	/**
+	 * Remove a file or directory (and its descendants), if it exists.
+	 */
+	public void removeFromFs(final File file) throws IOException {
+		if (file.exists()) {
+			FileUtils.forceDelete(file);
+		}
+	}
+
+	private static void removeFile(final Node node) throws RepositoryException {
+		if (!isFile(node)) {
+			throw new IllegalStateException(node.getPath() + " is neither a file nor a folder");
+		}
+		node.remove();
+	}
+
+	private static void removeFolder(final Node node) throws RepositoryException {
+		if (!isFolder(node)) {
+			throw new IllegalStateException(node.getPath() + " is neither a file nor a folder");
+		}
+		node.remove();
+	}
+
+	private Node getOrCreateFolder(final Session session, final String path) throws RepositoryException {
+		if (session.nodeExists(path)) {
+			final Node node = session.getNode(path);
+			if (!"/".equals(path) && !isFolder(node)) {
+				throw new IllegalStateException(path + " is not a folder");
+			}
+			return node;
+		}
+
+		final Node parent = getOrCreateFolder(session, getParentPath(path));
+		return parent.addNode(getName(path), NT_FOLDER);
+	}
+
+	private static String getMimeType(final File file) {
+		return StringUtils.defaultIfEmpty(URLConnection.guessContentTypeFromName(file.getName()),
+				"application/octet-stream");
+	}
+
+	/**
+	 * @param session
+	 *            a session
+	 * @param path
+	 *            path of a changed node
+	 * @return the path of the folder or file which contains it, or of the node
+	 *         itself if it was removed
+	 */
+	public static String getSyncPath(final Session session, final String path) throws RepositoryException {
+		String current = path;
+		while (!"/".equals(current)) {
+			final String parent = getParentPath(current);
+			if (session.nodeExists(current)) {
+				final Node node = session.getNode(current);
+				if (isSupported(node)) {
+					return current;
+				}
+			} else if (!session.nodeExists(parent) || !isFile(session.getNode(parent))) {
+				return current;
+			}
+			/* A file's jcr:content (or any other node inside a file). */
+			current = parent;
+		}
+		return current;
+	}
+
+	/**
+	 * @return the parent of a JCR path
+	 */
+	public static String getParentPath(final String path) {
+		final int index = path.lastIndexOf('/');
+		return index > 0 ? path.substring(0, index) : "/";
+	}
+
+	/**
+	 * @return the last segment of a JCR path
+	 */
+	public static String getName(final String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+}
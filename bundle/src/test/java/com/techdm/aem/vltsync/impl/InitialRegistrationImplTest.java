@@ -16,9 +16,15 @@
 package com.techdm.aem.vltsync.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.io.File;
 import java.io.IOException;
@@ -26,13 +32,19 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.osgi.framework.ServiceException;
 
 import junitx.framework.FileAssert;
@@ -63,6 +75,13 @@ public class InitialRegistrationImplTest {
 	public void setUp() throws NoSuchFieldException, IOException {
 		this.initialRegistration = new InitialRegistrationImpl();
 		this.serviceSettings = mock(ServiceSettingsImpl.class);
+		/* Prepare the local path right away. */
+		doAnswer(new Answer<Void>() {
+			public Void answer(final InvocationOnMock invocation) {
+				((Runnable) invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(this.serviceSettings).execute(any(Runnable.class));
 
 		PrivateAccessor.setField(this.initialRegistration, "serviceSettings", this.serviceSettings);
 
@@ -403,6 +422,191 @@ public class InitialRegistrationImplTest {
 		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
 	}
 
+	@Test
+	public void testActivateMerge() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_TYPE, InitialRegistrationImpl.SYNC_ONCE_MERGE);
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_MERGE_TIE_BREAK, InitialRegistrationImpl.SYNC_ONCE_JCR2FS);
+		when(this.serviceSettings.isEmbedded()).thenReturn(true);
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results. */
+		assertEquals("disabled=false\nsync-once=MERGE\nmerge-tie-break=JCR2FS\n",
+				FileUtils.readFileToString(this.generatedConfigFile).replace("\r", ""));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+	}
+
+	@Test
+	public void testActivateMergeVault() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_TYPE, InitialRegistrationImpl.SYNC_ONCE_MERGE);
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results: the VLT Sync Service can't merge. */
+		assertEquals("disabled=false\nsync-once=\n",
+				FileUtils.readFileToString(this.generatedConfigFile).replace("\r", ""));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, null);
+	}
+
+	@Test
+	public void testActivateBulk() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_TYPE, InitialRegistrationImpl.SYNC_ONCE_JCR2FS);
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_BULK, true);
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results. */
+		assertEquals("disabled=false\nsync-once=JCR2FS\nsync-once-bulk=true\n",
+				FileUtils.readFileToString(this.generatedConfigFile).replace("\r", ""));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+	}
+
+	@Test
+	public void testActivateWithSyncIndex() throws IOException {
+		/* Prepare data. */
+		createTempFiles("content/my-app/page.xml", ".vlt-sync-index");
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		when(this.serviceSettings.isEmbedded()).thenReturn(true);
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results. */
+		assertTrue(FileUtils.readFileToString(this.generatedConfigFile).contains("sync-once=\n"));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, null);
+	}
+
+	@Test
+	public void testActivateWithSyncIndexVault() throws IOException {
+		/* Prepare data: an index left by the embedded sync engine. */
+		createTempFiles("content/my-app/page.xml", ".vlt-sync-index");
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results: the VLT Sync Service doesn't read it. */
+		assertTrue(FileUtils.readFileToString(this.generatedConfigFile).contains("sync-once=FS2JCR\n"));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+	}
+
+	@Test
+	public void testActivateInBackground() {
+		/* Prepare data. */
+		this.serviceSettings = mock(ServiceSettingsImpl.class);
+		setServiceSettings();
+		this.baseDir.delete();
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.PENDING, this.initialRegistration.getState());
+		assertEquals(false, this.baseDir.exists());
+		verify(this.serviceSettings, never()).addSyncRoot(any(File.class), any(Long.class));
+
+		/* Invoke method. */
+		getPreparation().run();
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.READY, this.initialRegistration.getState());
+		assertEquals(true, this.generatedConfigFile.exists());
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+	}
+
+	@Test
+	public void testActivateFailed() throws IOException {
+		/* Prepare data. */
+		this.baseDir.delete();
+		this.baseDir.createNewFile();
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.FAILED, this.initialRegistration.getState());
+		verify(this.serviceSettings, never()).addSyncRoot(any(File.class), any(Long.class));
+
+		/* Invoke method. */
+		this.initialRegistration.deactivate();
+
+		/* Check its results. */
+		verify(this.serviceSettings, never()).removeSyncRoot(any(File.class));
+		this.baseDir.delete();
+	}
+
+	@Test
+	public void testDeactivatePending() {
+		/* Prepare data. */
+		this.serviceSettings = mock(ServiceSettingsImpl.class);
+		setServiceSettings();
+		this.initialRegistration.activate(this.props);
+
+		/* Invoke method. */
+		this.initialRegistration.deactivate();
+		getPreparation().run();
+
+		/* Check its results. */
+		assertEquals(null, this.initialRegistration.getState());
+		verify(this.serviceSettings, never()).addSyncRoot(any(File.class), any(Long.class));
+		verify(this.serviceSettings, never()).removeSyncRoot(any(File.class));
+	}
+
+	@Test(timeout = 5000)
+	public void testDeactivateWhilePreparing() throws InterruptedException {
+		/* Prepare data: a preparation stuck on a slow disk. */
+		final CountDownLatch preparing = new CountDownLatch(1);
+		final CountDownLatch slowDisk = new CountDownLatch(1);
+		this.serviceSettings = mock(ServiceSettingsImpl.class);
+		when(this.serviceSettings.isEmbedded()).thenAnswer(new Answer<Boolean>() {
+			public Boolean answer(final InvocationOnMock invocation) throws InterruptedException {
+				preparing.countDown();
+				slowDisk.await();
+				return false;
+			}
+		});
+		setServiceSettings();
+		this.initialRegistration.activate(this.props);
+		final Thread preparation = new Thread(getPreparation());
+		preparation.start();
+		preparing.await();
+
+		/* Invoke method: it doesn't wait for the disk. */
+		this.initialRegistration.deactivate();
+		slowDisk.countDown();
+		preparation.join();
+
+		/* Check its results. */
+		assertEquals(null, this.initialRegistration.getState());
+		verify(this.serviceSettings, never()).addSyncRoot(any(File.class), any(Long.class));
+	}
+
+	@Test
+	public void testModifiedPending() {
+		/* Prepare data. */
+		this.serviceSettings = mock(ServiceSettingsImpl.class);
+		setServiceSettings();
+		this.initialRegistration.activate(this.props);
+		final Runnable outdatedPreparation = getPreparation();
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_EXPECTED_TIME, 5000l);
+
+		/* Invoke method. */
+		this.initialRegistration.modified(this.props);
+		outdatedPreparation.run();
+		getPreparation().run();
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.READY, this.initialRegistration.getState());
+		verify(this.serviceSettings, times(1)).addSyncRoot(any(File.class), any(Long.class));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 5000l);
+	}
+
 	@Test
 	public void testDeactivate() {
 		/* Prepare data. */
@@ -430,6 +634,274 @@ public class InitialRegistrationImplTest {
 		verify(this.serviceSettings, times(1)).removeSyncRoot(this.baseDir);
 	}
 
+	@Test
+	public void testModifiedNothingChanged() {
+		/* Prepare data. */
+		this.initialRegistration.activate(this.props);
+		final long configLastModified = setLastModified(this.generatedConfigFile, 1000000l);
+		final long filterLastModified = setLastModified(this.generatedFilterFile, 1000000l);
+
+		/* Invoke method. */
+		this.initialRegistration.modified(new LinkedHashMap<String, Object>(this.props));
+
+		/* Check its results. */
+		assertEquals(configLastModified, this.generatedConfigFile.lastModified());
+		assertEquals(filterLastModified, this.generatedFilterFile.lastModified());
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+		verify(this.serviceSettings, never()).removeSyncRoot(any(File.class));
+	}
+
+	@Test
+	public void testModifiedFilterRoots() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_TYPE, InitialRegistrationImpl.SYNC_ONCE_DISABLED);
+		this.initialRegistration.activate(this.props);
+		final long configLastModified = setLastModified(this.generatedConfigFile, 1000000l);
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS, new String[] { "/apps/my-app" });
+
+		/* Invoke method. */
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		assertTrue(FileUtils.readFileToString(this.generatedFilterFile).contains("<filter root=\"/apps/my-app\"/>"));
+		assertEquals(configLastModified, this.generatedConfigFile.lastModified());
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+		verify(this.serviceSettings, never()).removeSyncRoot(any(File.class));
+	}
+
+	@Test
+	public void testFilterRootRules() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS, new String[] {
+				"/content/dam -.*/jcr:content/renditions(/.*)? +.*/original", "/apps/my-app", "/apps/my-app/components",
+				"/apps/my-app -.*\\.jar", "/apps/my-app" });
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results. */
+		final String filter = FileUtils.readFileToString(this.generatedFilterFile);
+		assertTrue(filter.contains("\t<filter root=\"/content/dam\">\n"
+				+ "\t\t<exclude pattern=\".*/jcr:content/renditions(/.*)?\"/>\n"
+				+ "\t\t<include pattern=\".*/original\"/>\n\t</filter>"));
+		assertEquals(1, StringUtils.countMatches(filter, "<filter root=\"/apps/my-app"));
+		assertFalse(filter.contains(".jar"));
+	}
+
+	@Test
+	public void testFilterRootRulesBeforeAncestor() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS,
+				new String[] { "/apps/my-app/components -.*/foo", "/apps/my-app" });
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results: FileVault applies the first covering set. */
+		final String filter = FileUtils.readFileToString(this.generatedFilterFile);
+		assertTrue(filter.contains("\t<filter root=\"/apps/my-app/components\">\n"
+				+ "\t\t<exclude pattern=\".*/foo\"/>\n\t</filter>\n\t<filter root=\"/apps/my-app\"/>\n"));
+	}
+
+	@Test
+	public void testFilterRootWithSpaces() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS, new String[] { " /content/dam/My Folder ",
+				"/content/dam/Other  Folder -.*/jcr:content/renditions(/.*)? +.*/original" });
+
+		/* Invoke method. */
+		this.initialRegistration.activate(this.props);
+
+		/* Check its results. */
+		final String filter = FileUtils.readFileToString(this.generatedFilterFile);
+		assertTrue(filter.contains("\t<filter root=\"/content/dam/My Folder\"/>\n"));
+		assertTrue(filter.contains("\t<filter root=\"/content/dam/Other  Folder\">\n"
+				+ "\t\t<exclude pattern=\".*/jcr:content/renditions(/.*)?\"/>\n"
+				+ "\t\t<include pattern=\".*/original\"/>\n\t</filter>"));
+	}
+
+	@Test
+	public void testModifiedSyncOnceType() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.initialRegistration.activate(this.props);
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_TYPE, InitialRegistrationImpl.SYNC_ONCE_FS2JCR);
+		this.props.put(InitialRegistrationImpl.PROP_SYNC_ONCE_EXPECTED_TIME, 5000l);
+
+		/* Invoke method. */
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		assertTrue(FileUtils.readFileToString(this.generatedConfigFile).contains("sync-once=FS2JCR"));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 5000l);
+		verify(this.serviceSettings, never()).removeSyncRoot(any(File.class));
+	}
+
+	@Test
+	public void testModifiedLocalPath() {
+		/* Prepare data. */
+		final File otherDir = new File(this.baseDir, "other");
+		this.initialRegistration.activate(this.props);
+		this.props.put(InitialRegistrationImpl.PROP_LOCAL_PATH, otherDir.getAbsolutePath());
+
+		/* Invoke method. */
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		assertTrue(new File(otherDir, SYNC_CONFIG_FN).exists());
+		assertTrue(new File(otherDir, SYNC_FILTER_FN).exists());
+		verify(this.serviceSettings, times(1)).updateSyncRoot(this.baseDir, otherDir, 3000l);
+		verify(this.serviceSettings, never()).removeSyncRoot(any(File.class));
+
+		/* Invoke method. */
+		this.initialRegistration.deactivate();
+
+		/* Check its results. */
+		verify(this.serviceSettings, times(1)).removeSyncRoot(otherDir);
+	}
+
+	@Test
+	public void testModifiedLocalPathInBackground() throws IOException {
+		/* Prepare data: the other path already has a config without sync-once. */
+		final File otherDir = new File(this.baseDir, "other");
+		otherDir.mkdirs();
+		FileUtils.writeStringToFile(new File(otherDir, SYNC_CONFIG_FN), "disabled=false\nsync-once=\n");
+		this.initialRegistration.activate(this.props);
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+		this.serviceSettings = mock(ServiceSettingsImpl.class);
+		setServiceSettings();
+		this.props.put(InitialRegistrationImpl.PROP_LOCAL_PATH, otherDir.getAbsolutePath());
+
+		/* Invoke method. */
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.PENDING, this.initialRegistration.getState());
+		assertFalse(new File(otherDir, SYNC_FILTER_FN).exists());
+		verify(this.serviceSettings, never()).updateSyncRoot(any(File.class), any(File.class), any(Long.class));
+
+		/* Invoke method. */
+		getPreparation().run();
+
+		/* Check its results: no sync-once is expected there. */
+		assertEquals(InitialRegistrationImpl.State.READY, this.initialRegistration.getState());
+		assertTrue(new File(otherDir, SYNC_FILTER_FN).exists());
+		verify(this.serviceSettings, times(1)).updateSyncRoot(this.baseDir, otherDir, null);
+	}
+
+	@Test
+	public void testModifiedInBackground() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.initialRegistration.activate(this.props);
+		this.serviceSettings = mock(ServiceSettingsImpl.class);
+		setServiceSettings();
+		final String filter = FileUtils.readFileToString(this.generatedFilterFile);
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS, new String[] { "/content/my-app", "/content/other" });
+
+		/* Invoke method. */
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results: still registered, the files wait. */
+		assertEquals(InitialRegistrationImpl.State.READY, this.initialRegistration.getState());
+		assertEquals(filter, FileUtils.readFileToString(this.generatedFilterFile));
+
+		/* Invoke method. */
+		getPreparation().run();
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.READY, this.initialRegistration.getState());
+		assertTrue(FileUtils.readFileToString(this.generatedFilterFile).contains("/content/other"));
+	}
+
+	@Test
+	public void testModifiedFailed() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.initialRegistration.activate(this.props);
+		this.generatedFilterFile.delete();
+		this.generatedFilterFile.mkdir();
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS, new String[] { "/content/my-app", "/content/other" });
+
+		/* Invoke method. */
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.FAILED, this.initialRegistration.getState());
+
+		/* Invoke method: the next configuration prepares it again. */
+		this.generatedFilterFile.delete();
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		assertEquals(InitialRegistrationImpl.State.READY, this.initialRegistration.getState());
+		assertTrue(FileUtils.readFileToString(this.generatedFilterFile).contains("/content/other"));
+		verify(this.serviceSettings, times(2)).addSyncRoot(this.baseDir, 3000l);
+	}
+
+	@Test
+	public void testModifiedDeltaSyncOnce() throws IOException {
+		/* Prepare data. */
+		this.props.put(InitialRegistrationImpl.PROP_OVERWRITE_CONFIG_FILES, true);
+		this.initialRegistration.activate(this.props);
+		createTempFiles("content/new-fs/page.xml");
+
+		/* Invoke method. */
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS,
+				new String[] { "/content/my-app", "/content/new-fs", "/content/new-jcr" });
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		String config = FileUtils.readFileToString(this.generatedConfigFile);
+		assertTrue(config.contains("sync-once=JCR2FS\n"));
+		assertTrue(config.contains("sync-once.FS2JCR=/content/new-fs\n"));
+		assertTrue(config.contains("sync-once.JCR2FS=/content/new-jcr\n"));
+
+		/* Invoke method. */
+		this.props.put(InitialRegistrationImpl.PROP_FILTER_ROOTS, new String[] { "/content/my-app", "/content/new-fs" });
+		this.initialRegistration.modified(this.props);
+
+		/* Check its results. */
+		config = FileUtils.readFileToString(this.generatedConfigFile);
+		assertTrue(config.contains("sync-once.FS2JCR=/content/new-fs\n"));
+		assertTrue(config.contains("sync-once.JCR2FS=\n"));
+		verify(this.serviceSettings, times(1)).addSyncRoot(this.baseDir, 3000l);
+		verify(this.serviceSettings, never()).removeSyncRoot(any(File.class));
+	}
+
+	@Test
+	public void testModifiedMissingProperties() {
+		expectedEx.expect(ServiceException.class);
+		expectedEx.expectMessage(" is mandatory!");
+
+		this.initialRegistration.activate(this.props);
+		this.initialRegistration.modified(new LinkedHashMap<String, Object>());
+	}
+
+	private void setServiceSettings() {
+		try {
+			PrivateAccessor.setField(this.initialRegistration, "serviceSettings", this.serviceSettings);
+		} catch (NoSuchFieldException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Runnable getPreparation() {
+		final ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+		verify(this.serviceSettings, Mockito.atLeastOnce()).execute(captor.capture());
+		return captor.getValue();
+	}
+
+	private long setLastModified(final File file, final long lastModified) {
+		file.setLastModified(lastModified);
+		return file.lastModified();
+	}
+
 	private void createTempFiles(final String... relativePaths) throws IOException {
 		for (String relativePath : relativePaths) {
 			File file = new File(this.baseDir, relativePath);
@@ -17,16 +17,22 @@ package com.techdm.aem.vltsync.impl;
 
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.ACTION_ADD;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.ACTION_REMOVE;
+import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.ACTION_UPDATE;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_ACTION;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_EXPECTED_SYNC_TIME;
+import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_PREVIOUS_SYNC_ROOT;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_SYNC_ROOT;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.PROP_ENABLED;
+import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.PROP_REGISTERED_SYNCROOTS;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.PROP_SYNCROOTS;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -34,13 +40,21 @@ import static org.mockito.Mockito.when;
 import java.io.File;
 import java.io.IOException;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobConsumer;
 import org.apache.sling.event.jobs.consumer.JobConsumer.JobResult;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
 
 import junitx.util.PrivateAccessor;
 
@@ -73,6 +87,11 @@ public class ServiceSettingsConsumerImplTest {
 		PrivateAccessor.setField(this.serviceSettingsConsumer, "configAdmin", this.configurationAdmin);
 	}
 
+	@After
+	public void tearDown() {
+		this.serviceSettingsConsumer.deactivate();
+	}
+
 	@Test
 	public void testAddSyncRootToEmptySuccess() throws IOException {
 		/* Prepare data. */
@@ -141,6 +160,62 @@ public class ServiceSettingsConsumerImplTest {
 		verify(this.configuration, times(1)).update(this.dictionary);
 	}
 
+	@Test
+	public void testAddSyncRootAlreadyPresent() throws IOException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_ENABLED, true);
+		this.dictionary.put(PROP_SYNCROOTS, new String[] { "/virtual/old", "/virtual/root" });
+
+		/* Invoke method. */
+		this.serviceSettingsConsumer.addSyncRoot(new File("/virtual/root"), null);
+
+		/* Check its results. */
+		assertEquals(true, this.dictionary.get(PROP_ENABLED));
+		assertArrayEquals(new String[] { "/virtual/old", "/virtual/root" },
+				(String[]) this.dictionary.get(PROP_SYNCROOTS));
+
+		verify(this.configuration, times(0)).update(this.dictionary);
+	}
+
+	@Test
+	public void testRemoveSyncRootNotPresent() throws IOException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] { "/virtual/old" });
+
+		/* Invoke method. */
+		this.serviceSettingsConsumer.removeSyncRoot(new File("/virtual/root"));
+
+		/* Check its results. */
+		assertArrayEquals(new String[] { "/virtual/old" }, (String[]) this.dictionary.get(PROP_SYNCROOTS));
+
+		verify(this.configuration, times(0)).update(this.dictionary);
+	}
+
+	@Test
+	public void testConfigurationCachedUntilChanged() throws IOException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] {});
+		final ConfigurationEvent event = mock(ConfigurationEvent.class);
+		when(event.getPid()).thenReturn(ServiceSettingsConsumerImpl.SERVICE_PID);
+
+		/* Invoke method. */
+		this.serviceSettingsConsumer.addSyncRoot(new File("/virtual/root1"), null);
+		this.serviceSettingsConsumer.addSyncRoot(new File("/virtual/root2"), null);
+
+		/* Check its results. */
+		verify(this.configurationAdmin, times(1)).getConfiguration(ServiceSettingsConsumerImpl.SERVICE_PID);
+
+		/* Invoke method. */
+		this.serviceSettingsConsumer.configurationEvent(event);
+		this.serviceSettingsConsumer.addSyncRoot(new File("/virtual/root3"), null);
+
+		/* Check its results. */
+		verify(this.configurationAdmin, times(2)).getConfiguration(ServiceSettingsConsumerImpl.SERVICE_PID);
+		verify(this.configuration, times(3)).update(this.dictionary);
+		assertArrayEquals(new String[] { "/virtual/root1", "/virtual/root2", "/virtual/root3" },
+				(String[]) this.dictionary.get(PROP_SYNCROOTS));
+	}
+
 	@Test
 	public void testAddSyncRootNullPropertiesSuccess() throws IOException {
 		/* Prepare data. */
@@ -241,6 +316,28 @@ public class ServiceSettingsConsumerImplTest {
 	}
 	
 	
+	@Test
+	public void testProcessUpdateSyncRoot() throws IOException {
+		/* Prepare data. */
+		assertNull(this.dictionary.get(PROP_ENABLED));
+		this.dictionary.put(PROP_SYNCROOTS, new String[] { "/virtual/old" });
+
+		when(this.job.getProperty(KEY_ACTION, String.class)).thenReturn(ACTION_UPDATE);
+		when(this.job.getProperty(KEY_PREVIOUS_SYNC_ROOT, File.class)).thenReturn(new File("/virtual/old"));
+		when(this.job.getProperty(KEY_SYNC_ROOT, File.class)).thenReturn(new File("/virtual/root"));
+
+		/* Invoke method. */
+		JobResult result = this.serviceSettingsConsumer.process(this.job);
+
+		/* Check its results. */
+		assertEquals(JobResult.OK, result);
+
+		assertEquals(true, this.dictionary.get(PROP_ENABLED));
+		assertArrayEquals(new String[] { "/virtual/root" }, (String[]) this.dictionary.get(PROP_SYNCROOTS));
+
+		verify(this.configuration, times(1)).update(this.dictionary);
+	}
+
 	@Test
 	public void testProcessNoAction() throws IOException {
 		/* Prepare data. */
@@ -268,10 +365,13 @@ public class ServiceSettingsConsumerImplTest {
 		/* Prepare data. */
 		assertNull(this.dictionary.get(PROP_ENABLED));
 		this.dictionary.put(PROP_SYNCROOTS, new String[] {});
+		activate(null);
 
 		when(this.job.getProperty(KEY_ACTION, String.class)).thenReturn(ACTION_ADD);
 		when(this.job.getProperty(KEY_SYNC_ROOT, File.class)).thenReturn(new File("/virtual/root1"));
 		when(this.job.getProperty(KEY_EXPECTED_SYNC_TIME, Long.class)).thenReturn(1000l);
+		final JobConsumer.AsyncHandler handler = mock(JobConsumer.AsyncHandler.class);
+		when(this.job.getProperty(JobConsumer.PROPERTY_JOB_ASYNC_HANDLER)).thenReturn(handler);
 
 		/* Invoke method. */
 		long start = System.currentTimeMillis();		
@@ -281,6 +381,7 @@ public class ServiceSettingsConsumerImplTest {
 		/* Check its results. */
 		assertEquals(JobResult.OK, result);
 		assertTrue((end - start) < 300l);
+		verify(this.configuration, times(1)).update(this.dictionary);
 
 		/* Prepare data. */
 		when(this.job.getProperty(KEY_SYNC_ROOT, File.class)).thenReturn(new File("/virtual/root2"));
@@ -290,16 +391,251 @@ public class ServiceSettingsConsumerImplTest {
 		result = this.serviceSettingsConsumer.process(this.job);
 		end = System.currentTimeMillis();
 
-		/* Check its results. */
-		assertEquals(JobResult.OK, result);
+		/* Check its results: the job thread doesn't wait, the update (and the job) does. */
+		assertEquals(JobResult.ASYNC, result);
+		assertTrue((end - start) < 300l);
+		verify(this.configuration, times(1)).update(this.dictionary);
+		verify(handler, never()).ok();
+
+		verify(this.configuration, timeout(3000).times(2)).update(this.dictionary);
+		verify(handler).ok();
+		end = System.currentTimeMillis();
 		assertTrue((end - start) >= 1000l);
 
 		assertEquals(true, this.dictionary.get(PROP_ENABLED));
 		assertArrayEquals(new String[] { "/virtual/root1", "/virtual/root2" },
 				(String[]) this.dictionary.get(PROP_SYNCROOTS));
+	}
 
-		verify(this.configuration, times(2)).update(this.dictionary);
+	@Test
+	public void testProcessWaitSyncOnceCompletion() throws IOException {
+		/* Prepare data. */
+		final File syncRoot = File.createTempFile(getClass().getName(), "_tmp");
+		syncRoot.delete();
+		syncRoot.mkdir();
+		try {
+			final File configFile = new File(syncRoot, SyncOnceCompletionDetector.CONFIG_FILENAME);
+			FileUtils.writeStringToFile(configFile, "disabled=false\nsync-once=JCR2FS\n");
+			this.dictionary.put(PROP_SYNCROOTS, new String[] {});
+			activate(null);
+
+			/* Invoke method. */
+			long start = System.currentTimeMillis();
+			process(ACTION_ADD, syncRoot.getAbsolutePath(), 60000l, JobResult.OK);
+			final JobConsumer.AsyncHandler handler = process(ACTION_ADD, "/virtual/root2", null, JobResult.ASYNC);
+
+			/* Check its results. */
+			verify(this.configuration, times(1)).update(this.dictionary);
+
+			/* Finish the sync-once. */
+			FileUtils.writeStringToFile(configFile, "disabled=false\nsync-once=\n");
+			FileUtils.writeStringToFile(new File(syncRoot, SyncOnceCompletionDetector.LOG_FILENAME),
+					"Sync once completed.\n");
+
+			verify(this.configuration, timeout(3000).times(2)).update(this.dictionary);
+			verify(handler).ok();
+			assertTrue((System.currentTimeMillis() - start) < 5000l);
+			assertArrayEquals(new String[] { syncRoot.getAbsolutePath(), "/virtual/root2" },
+					(String[]) this.dictionary.get(PROP_SYNCROOTS));
+		} finally {
+			FileUtils.deleteDirectory(syncRoot);
+		}
+	}
+
+	@Test
+	public void testProcessBatch() throws IOException, NoSuchFieldException {
+		/* Prepare data. */
+		assertNull(this.dictionary.get(PROP_ENABLED));
+		this.dictionary.put(PROP_SYNCROOTS, new String[] { "/virtual/old" });
+		activate(200l);
+
+		/* Invoke method. */
+		process(ACTION_ADD, "/virtual/root1", 10l, JobResult.ASYNC);
+		process(ACTION_ADD, "/virtual/root2", 20l, JobResult.ASYNC);
+		process(ACTION_REMOVE, "/virtual/old", null, JobResult.ASYNC);
+		process(ACTION_ADD, "/virtual/root3", null, JobResult.ASYNC);
+		final JobConsumer.AsyncHandler handler = process(ACTION_REMOVE, "/virtual/root2", null, JobResult.ASYNC);
+
+		/* Check its results. */
+		verify(this.configuration, times(0)).update(this.dictionary);
+		verify(this.configuration, timeout(2000).times(1)).update(this.dictionary);
+		verify(handler).ok();
+
+		assertNull(this.dictionary.get(PROP_ENABLED));
+		assertArrayEquals(new String[] { "/virtual/root1", "/virtual/root3" },
+				(String[]) this.dictionary.get(PROP_SYNCROOTS));
+		assertEquals(1, ((List<?>) PrivateAccessor.getField(this.serviceSettingsConsumer, "runningSyncOnces")).size());
+	}
+
+	@Test
+	public void testProcessBatchRemoveAll() throws IOException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] { "/virtual/old1", "/virtual/old2" });
+		activate(100l);
+
+		/* Invoke method. */
+		process(ACTION_REMOVE, "/virtual/old1", null, JobResult.ASYNC);
+		process(ACTION_REMOVE, "/virtual/old2", null, JobResult.ASYNC);
+
+		/* Check its results. */
+		verify(this.configuration, timeout(2000).times(1)).update(this.dictionary);
+
+		assertEquals(false, this.dictionary.get(PROP_ENABLED));
+		assertArrayEquals(new String[] {}, (String[]) this.dictionary.get(PROP_SYNCROOTS));
+	}
+
+	@Test
+	public void testDeactivateFlushesBatch() throws IOException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] {});
+		activate(60000l);
+
+		/* Invoke method. */
+		final JobConsumer.AsyncHandler handler = process(ACTION_ADD, "/virtual/root", null, JobResult.ASYNC);
+		this.serviceSettingsConsumer.deactivate();
+
+		/* Check its results. */
+		assertEquals(true, this.dictionary.get(PROP_ENABLED));
+		assertArrayEquals(new String[] { "/virtual/root" }, (String[]) this.dictionary.get(PROP_SYNCROOTS));
+
+		verify(this.configuration, times(1)).update(this.dictionary);
+		verify(handler).ok();
+	}
+
+	@Test
+	public void testDeactivateRetriesUnappliedJobs() throws IOException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] {});
+		activate(60000l);
+		doThrow(new IOException("unavailable")).when(this.configuration).update(this.dictionary);
+
+		/* Invoke method: the change was still held by the batch window. */
+		final JobConsumer.AsyncHandler handler = process(ACTION_ADD, "/virtual/root", null, JobResult.ASYNC);
+		this.serviceSettingsConsumer.deactivate();
+
+		/* Check its results: the job isn't lost. */
+		verify(handler, never()).ok();
+		verify(handler).failed();
+	}
+
+	@Test
+	public void testEnqueue() throws IOException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] { "/virtual/old" });
+		activate(null);
+		final Map<String, Object> props = new LinkedHashMap<String, Object>();
+		props.put(KEY_ACTION, ACTION_UPDATE);
+		props.put(KEY_PREVIOUS_SYNC_ROOT, new File("/virtual/old"));
+		props.put(KEY_SYNC_ROOT, new File("/virtual/root"));
+
+		/* Invoke method. */
+		this.serviceSettingsConsumer.enqueue(props);
+
+		/* Check its results. */
+		verify(this.configuration, timeout(2000).times(1)).update(this.dictionary);
+		assertArrayEquals(new String[] { "/virtual/root" }, (String[]) this.dictionary.get(PROP_SYNCROOTS));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEnqueueInactive() {
+		/* Invoke method. */
+		this.serviceSettingsConsumer.enqueue(new LinkedHashMap<String, Object>());
+	}
+
+	@Test
+	public void testReconcile() throws IOException, InvalidSyntaxException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] { "/virtual/manual", "/virtual/stale", "/virtual/root1" });
+		this.dictionary.put(PROP_REGISTERED_SYNCROOTS, new String[] { "/virtual/stale", "/virtual/root1" });
+		this.dictionary.put(PROP_ENABLED, true);
+		final Configuration registration1 = mock(Configuration.class);
+		final Hashtable<String, Object> properties1 = new Hashtable<String, Object>();
+		properties1.put(InitialRegistrationImpl.PROP_LOCAL_PATH, "/virtual/root1");
+		when(registration1.getProperties()).thenReturn(properties1);
+		final Configuration registration2 = mock(Configuration.class);
+		final Hashtable<String, Object> properties2 = new Hashtable<String, Object>();
+		properties2.put(InitialRegistrationImpl.PROP_LOCAL_PATH, " /virtual/root2 ");
+		when(registration2.getProperties()).thenReturn(properties2);
+		when(this.configurationAdmin.listConfigurations(
+				"(service.factoryPid=" + InitialRegistrationImpl.class.getName() + ")"))
+						.thenReturn(new Configuration[] { registration1, registration2 });
+
+		/* Invoke method. */
+		this.serviceSettingsConsumer.reconcile();
+
+		/* Check its results: the root set by hand is kept. */
+		assertArrayEquals(new String[] { "/virtual/manual", "/virtual/root1", "/virtual/root2" },
+				(String[]) this.dictionary.get(PROP_SYNCROOTS));
+		assertArrayEquals(new String[] { "/virtual/root1", "/virtual/root2" },
+				(String[]) this.dictionary.get(PROP_REGISTERED_SYNCROOTS));
+		verify(this.configuration, times(1)).update(this.dictionary);
+	}
+
+	@Test
+	public void testReconcileWaitsSyncOnce() throws IOException, InvalidSyntaxException {
+		/* Prepare data: a lost addition, whose sync-once is still requested. */
+		final File syncRoot = File.createTempFile(getClass().getName(), "_tmp");
+		syncRoot.delete();
+		syncRoot.mkdir();
+		try {
+			FileUtils.writeStringToFile(new File(syncRoot, ".vlt-sync-config.properties"), "sync-once=FS2JCR\n");
+			this.dictionary.put(PROP_SYNCROOTS, new String[] {});
+			final Configuration registration = mock(Configuration.class);
+			final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+			properties.put(InitialRegistrationImpl.PROP_LOCAL_PATH, syncRoot.getAbsolutePath());
+			properties.put(InitialRegistrationImpl.PROP_SYNC_ONCE_EXPECTED_TIME, 60000l);
+			when(registration.getProperties()).thenReturn(properties);
+			when(this.configurationAdmin.listConfigurations(
+					"(service.factoryPid=" + InitialRegistrationImpl.class.getName() + ")"))
+							.thenReturn(new Configuration[] { registration });
+			activate(0l);
+
+			/* Invoke method. */
+			this.serviceSettingsConsumer.reconcile();
+			final JobConsumer.AsyncHandler handler = process(ACTION_ADD, "/virtual/other", null, JobResult.ASYNC);
+
+			/* Check its results: the next change waits for it. */
+			assertArrayEquals(new String[] { syncRoot.getAbsolutePath() },
+					(String[]) this.dictionary.get(PROP_SYNCROOTS));
+			verify(this.configuration, times(1)).update(this.dictionary);
+			verify(handler, never()).ok();
+		} finally {
+			FileUtils.deleteDirectory(syncRoot);
+		}
+	}
+
+	@Test
+	public void testReconcileNothingToDo() throws IOException, InvalidSyntaxException {
+		/* Prepare data. */
+		this.dictionary.put(PROP_SYNCROOTS, new String[] {});
+
+		/* Invoke method. */
+		this.serviceSettingsConsumer.reconcile();
+
+		/* Check its results. */
+		verify(this.configuration, times(0)).update(this.dictionary);
+	}
+
+	private void activate(final Long batchWindow) {
+		final Map<String, Object> props = new LinkedHashMap<String, Object>();
+		if (batchWindow != null) {
+			props.put(ServiceSettingsConsumerImpl.PROP_BATCH_WINDOW, batchWindow);
+		}
+		props.put(ServiceSettingsConsumerImpl.PROP_SYNC_ONCE_CHECK_INTERVAL, 50l);
+		this.serviceSettingsConsumer.activate(props);
+	}
+
+	private JobConsumer.AsyncHandler process(final String action, final String syncRoot,
+			final Long expectedSyncTime, final JobResult expectedResult) {
+		final Job job = mock(Job.class);
+		final JobConsumer.AsyncHandler handler = mock(JobConsumer.AsyncHandler.class);
+		when(job.getProperty(KEY_ACTION, String.class)).thenReturn(action);
+		when(job.getProperty(KEY_SYNC_ROOT, File.class)).thenReturn(new File(syncRoot));
+		when(job.getProperty(KEY_EXPECTED_SYNC_TIME, Long.class)).thenReturn(expectedSyncTime);
+		when(job.getProperty(JobConsumer.PROPERTY_JOB_ASYNC_HANDLER)).thenReturn(handler);
+
+		assertEquals(expectedResult, this.serviceSettingsConsumer.process(job));
+		return handler;
 	}
-	
 
 }
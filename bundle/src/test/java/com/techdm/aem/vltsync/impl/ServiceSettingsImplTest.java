@@ -17,21 +17,30 @@ package com.techdm.aem.vltsync.impl;
 
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.ACTION_ADD;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.ACTION_REMOVE;
+import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.ACTION_UPDATE;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_ACTION;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_EXPECTED_SYNC_TIME;
+import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_PREVIOUS_SYNC_ROOT;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.KEY_SYNC_ROOT;
 import static com.techdm.aem.vltsync.impl.ServiceSettingsConsumerImpl.TOPIC_NAME;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.File;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.sling.event.jobs.JobManager;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Matchers;
+
+import com.techdm.aem.vltsync.impl.sync.SyncEngineImpl;
 
 import junitx.util.PrivateAccessor;
 
@@ -41,14 +50,22 @@ public class ServiceSettingsImplTest {
 
 	private JobManager jobManager;
 
+	private SyncEngineImpl syncEngine;
+
+	private ServiceSettingsConsumerImpl settingsConsumer;
+
 	private Map<String, Object> props;
 
 	@Before
 	public void setUp() throws NoSuchFieldException {
 		this.jobManager = mock(JobManager.class);
+		this.syncEngine = mock(SyncEngineImpl.class);
+		this.settingsConsumer = mock(ServiceSettingsConsumerImpl.class);
 		this.props = new LinkedHashMap<String, Object>();
 
 		PrivateAccessor.setField(this.serviceSettings, "jobManager", this.jobManager);
+		PrivateAccessor.setField(this.serviceSettings, "syncEngine", this.syncEngine);
+		PrivateAccessor.setField(this.serviceSettings, "settingsConsumer", this.settingsConsumer);
 	}
 
 	@Test
@@ -93,4 +110,92 @@ public class ServiceSettingsImplTest {
 		verify(this.jobManager, times(1)).addJob(TOPIC_NAME, this.props);
 	}
 
+	@Test
+	public void testUpdateSyncRoot() {
+		/* Prepare data. */
+		this.props.put(KEY_ACTION, ACTION_UPDATE);
+		this.props.put(KEY_PREVIOUS_SYNC_ROOT, new File("/virtual/root1"));
+		this.props.put(KEY_SYNC_ROOT, new File("/virtual/root2"));
+		this.props.put(KEY_EXPECTED_SYNC_TIME, 4000l);
+
+		/* Invoke method. */
+		this.serviceSettings.updateSyncRoot(new File("/virtual/root1"), new File("/virtual/root2"), 4000l);
+
+		/* Check its results. */
+		verify(this.jobManager, times(1)).addJob(TOPIC_NAME, this.props);
+	}
+
+	@Test
+	public void testInMemoryQueue() {
+		/* Prepare data. */
+		final Map<String, Object> config = new LinkedHashMap<String, Object>();
+		config.put(ServiceSettingsImpl.PROP_QUEUE_TYPE, ServiceSettingsImpl.QUEUE_TYPE_MEMORY);
+		this.serviceSettings.activate(config);
+		this.props.put(KEY_ACTION, ACTION_ADD);
+		this.props.put(KEY_SYNC_ROOT, new File("/virtual/root"));
+
+		/* Invoke method. */
+		this.serviceSettings.addSyncRoot(new File("/virtual/root"), null);
+
+		/* Check its results. */
+		verify(this.settingsConsumer, times(1)).reconcile();
+		verify(this.settingsConsumer, times(1)).enqueue(this.props);
+		verify(this.jobManager, never()).addJob(Matchers.anyString(), Matchers.anyMapOf(String.class, Object.class));
+		this.serviceSettings.deactivate();
+	}
+
+	@Test
+	public void testExecute() throws InterruptedException {
+		/* Prepare data. */
+		this.serviceSettings.activate(this.props);
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		/* Invoke method. */
+		this.serviceSettings.execute(new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		});
+
+		/* Check its results. */
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		verify(this.settingsConsumer, never()).reconcile();
+		this.serviceSettings.deactivate();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testExecuteInactive() {
+		/* Invoke method. */
+		this.serviceSettings.execute(mock(Runnable.class));
+	}
+
+	@Test
+	public void testEmbeddedSyncEngine() {
+		/* Prepare data. */
+		this.props.put(ServiceSettingsImpl.PROP_SYNC_ENGINE, ServiceSettingsImpl.SYNC_ENGINE_EMBEDDED);
+		this.serviceSettings.activate(this.props);
+
+		/* Invoke method. */
+		this.serviceSettings.addSyncRoot(new File("/virtual/root1"), 4000l);
+		this.serviceSettings.addSyncRoot(new File("/virtual/root2"), null);
+		this.serviceSettings.removeSyncRoot(new File("/virtual/root1"));
+
+		/* Check its results. */
+		verify(this.syncEngine, times(1)).addSyncRoot(new File("/virtual/root1"));
+		verify(this.syncEngine, times(1)).addSyncRoot(new File("/virtual/root2"));
+		verify(this.syncEngine, times(1)).removeSyncRoot(new File("/virtual/root1"));
+		verify(this.jobManager, never()).addJob(Matchers.anyString(), Matchers.anyMapOf(String.class, Object.class));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEmbeddedSyncEngineUnavailable() throws NoSuchFieldException {
+		/* Prepare data. */
+		PrivateAccessor.setField(this.serviceSettings, "syncEngine", null);
+		this.props.put(ServiceSettingsImpl.PROP_SYNC_ENGINE, ServiceSettingsImpl.SYNC_ENGINE_EMBEDDED);
+		this.serviceSettings.activate(this.props);
+
+		/* Invoke method. */
+		this.serviceSettings.addSyncRoot(new File("/virtual/root1"), null);
+	}
+
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncOnceCompletionDetectorTest {
+
+	private final Pattern pattern = Pattern.compile("(?i)sync.?once.*(completed|done|finished)");
+
+	private File baseDir;
+
+	private File configFile;
+
+	private File logFile;
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+
+		this.configFile = new File(this.baseDir, SyncOnceCompletionDetector.CONFIG_FILENAME);
+		this.logFile = new File(this.baseDir, SyncOnceCompletionDetector.LOG_FILENAME);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testSyncOncePending() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.configFile, "disabled=false\nsync-once=JCR2FS\n");
+		final SyncOnceCompletionDetector detector = new SyncOnceCompletionDetector(this.baseDir, null);
+
+		/* Invoke method and check its results. */
+		assertEquals(false, detector.isCompleted());
+
+		FileUtils.writeStringToFile(this.configFile, "disabled=false\nsync-once=\n");
+		assertEquals(true, detector.isCompleted());
+	}
+
+	@Test
+	public void testCompletionLogged() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.configFile, "disabled=false\nsync-once=\n");
+		FileUtils.writeStringToFile(this.logFile, "Sync once completed (previous run)\n");
+		final SyncOnceCompletionDetector detector = new SyncOnceCompletionDetector(this.baseDir, this.pattern);
+
+		/* Invoke method and check its results. */
+		assertEquals(false, detector.isCompleted());
+
+		FileUtils.writeStringToFile(this.logFile, "S ADD /apps/test/file.txt\nSync once compl", true);
+		assertEquals(false, detector.isCompleted());
+
+		FileUtils.writeStringToFile(this.logFile, "eted\n", true);
+		assertEquals(true, detector.isCompleted());
+	}
+
+	@Test
+	public void testLogTruncated() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.logFile, "a very long line from the previous run\n");
+		final SyncOnceCompletionDetector detector = new SyncOnceCompletionDetector(this.baseDir, this.pattern);
+
+		/* Invoke method and check its results. */
+		FileUtils.writeStringToFile(this.logFile, "sync-once done\n");
+		assertEquals(true, detector.isCompleted());
+	}
+
+}
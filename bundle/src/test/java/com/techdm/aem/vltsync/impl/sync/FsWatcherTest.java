@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class FsWatcherTest {
+
+	private File baseDir;
+
+	private SyncRoot syncRoot;
+
+	private FsWatcher watcher;
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		new File(this.baseDir, "apps/test").mkdirs();
+
+		this.syncRoot = mock(SyncRoot.class);
+		when(this.syncRoot.getLocalDir()).thenReturn(this.baseDir);
+		when(this.syncRoot.isStarted()).thenReturn(true);
+
+		this.watcher = newWatcher(0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.watcher.close();
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testChangedPaths() throws IOException {
+		/* Prepare data. */
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method. */
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/a.txt"), "a");
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/.vlt-sync.log"), "ignored");
+
+		/* Check its results. */
+		final ArgumentCaptor<Collection> paths = ArgumentCaptor.forClass(Collection.class);
+		verify(this.syncRoot, timeout(5000).atLeastOnce()).sync(paths.capture());
+		final Set<String> changed = new HashSet<String>();
+		for (Collection<String> value : (List<Collection<String>>) (List<?>) paths.getAllValues()) {
+			changed.addAll(value);
+		}
+		assertTrue(changed.contains("/apps/test/a.txt"));
+		assertFalse(changed.contains("/apps/test/.vlt-sync.log"));
+	}
+
+	@Test
+	public void testSettingsFiles() throws IOException {
+		/* Prepare data. */
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method: a sync-once request. */
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncConfig.FILENAME), "sync-once=FS2JCR");
+
+		/* Check its results. */
+		verify(this.syncRoot, timeout(5000)).sync(Arrays.asList("/" + SyncConfig.FILENAME));
+
+		/* Invoke method: new filter roots. */
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncFilter.FILENAME), "<workspaceFilter/>");
+
+		/* Check its results. */
+		verify(this.syncRoot, timeout(5000)).sync(Arrays.asList("/"));
+	}
+
+	@Test
+	public void testSaveStorm() throws IOException, InterruptedException {
+		/* Prepare data. */
+		final File file = new File(this.baseDir, "apps/test/a.txt");
+		FileUtils.writeStringToFile(file, "a");
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method: a safe write followed by a formatter. */
+		final File tmp = new File(this.baseDir, "apps/test/a.txt___jb_tmp___");
+		final File old = new File(this.baseDir, "apps/test/a.txt___jb_old___");
+		FileUtils.writeStringToFile(tmp, "a, changed");
+		assertTrue(file.renameTo(old));
+		assertTrue(tmp.renameTo(file));
+		assertTrue(old.delete());
+		FileUtils.writeStringToFile(file, "a, formatted");
+		file.setLastModified(2000000l);
+
+		/* Check its results. */
+		verify(this.syncRoot, timeout(5000)).sync(Arrays.asList("/apps/test/a.txt"));
+		Thread.sleep(300);
+		verify(this.syncRoot, times(1)).sync(anyCollectionOf(String.class));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testEchoes() throws IOException {
+		/* Prepare data. */
+		when(this.syncRoot.isFsEcho("/apps/test/a.txt")).thenReturn(true);
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method: a.txt is written by the sync root itself. */
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/a.txt"), "a");
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/b.txt"), "b");
+
+		/* Check its results. */
+		final ArgumentCaptor<Collection> paths = ArgumentCaptor.forClass(Collection.class);
+		verify(this.syncRoot, timeout(5000).atLeastOnce()).sync(paths.capture());
+		final Set<String> changed = new HashSet<String>();
+		for (Collection<String> value : (List<Collection<String>>) (List<?>) paths.getAllValues()) {
+			changed.addAll(value);
+		}
+		assertTrue(changed.contains("/apps/test/b.txt"));
+		assertFalse(changed.contains("/apps/test/a.txt"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testQueueOverflow() throws IOException {
+		/* Prepare data. */
+		new File(this.baseDir, "apps/other").mkdirs();
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method. */
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/other/x.txt"), "x");
+		for (int i = 0; i < 10; i++) {
+			FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/" + i + ".txt"), "" + i);
+		}
+
+		/* Check its results. */
+		final ArgumentCaptor<Collection> paths = ArgumentCaptor.forClass(Collection.class);
+		verify(this.syncRoot, timeout(5000).atLeastOnce()).sync(paths.capture());
+		final Set<String> changed = new HashSet<String>();
+		for (Collection<String> value : (List<Collection<String>>) (List<?>) paths.getAllValues()) {
+			changed.addAll(value);
+		}
+		assertTrue(changed.contains("/apps/test"));
+		assertTrue(changed.contains("/apps/other/x.txt"));
+		assertFalse(changed.contains("/"));
+		assertTrue(this.watcher.getOverflowCount() > 0);
+		assertTrue(this.watcher.getRescanCount() > 0);
+		assertEquals(0, this.watcher.getQueueDepth());
+	}
+
+	@Test
+	public void testPolling() throws IOException {
+		/* Prepare data. */
+		this.watcher.close();
+		this.watcher = newWatcher(1);
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method. */
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/a.txt"), "a");
+
+		/* Check its results. */
+		verify(this.syncRoot, timeout(5000)).sync(Arrays.asList("/apps/test/a.txt"));
+		assertEquals(1, this.watcher.getWatchedCount());
+		assertEquals(2, this.watcher.getPolledCount());
+	}
+
+	@Test
+	public void testRebalance() throws IOException {
+		/* Prepare data. */
+		this.watcher.close();
+		this.watcher = newWatcher(1);
+		this.baseDir.setLastModified(1000000l);
+		new File(this.baseDir, "apps").setLastModified(1000000l);
+		this.watcher.register(this.syncRoot);
+		assertTrue(this.watcher.isWatched(this.baseDir));
+
+		/* Invoke method. */
+		this.watcher.rebalance(System.currentTimeMillis());
+
+		/* Check its results. */
+		assertFalse(this.watcher.isWatched(this.baseDir));
+		assertTrue(this.watcher.isWatched(new File(this.baseDir, "apps/test")));
+		assertEquals(1, this.watcher.getWatchedCount());
+		assertEquals(2, this.watcher.getPolledCount());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRecreatedDirectory() throws IOException, InterruptedException {
+		/* Prepare data. */
+		new File(this.baseDir, "apps/test/sub").mkdirs();
+		this.watcher.register(this.syncRoot);
+		assertTrue(new File(this.baseDir, "apps/test").renameTo(new File(this.baseDir, "apps/moved")));
+		verify(this.syncRoot, timeout(5000).atLeastOnce()).sync(anyCollectionOf(String.class));
+
+		/* Invoke method. */
+		new File(this.baseDir, "apps/test").mkdir();
+		Thread.sleep(300);
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/a.txt"), "a");
+
+		Thread.sleep(300);
+
+		/* Check its results. */
+		final ArgumentCaptor<Collection> paths = ArgumentCaptor.forClass(Collection.class);
+		verify(this.syncRoot, atLeastOnce()).sync(paths.capture());
+		final Set<String> changed = new HashSet<String>();
+		for (Collection<String> value : (List<Collection<String>>) (List<?>) paths.getAllValues()) {
+			changed.addAll(value);
+		}
+		assertTrue(changed.contains("/apps/test/a.txt"));
+		assertTrue(this.watcher.isWatched(new File(this.baseDir, "apps/moved/sub")));
+		assertFalse(this.watcher.isWatched(new File(this.baseDir, "apps/test/sub")));
+	}
+
+	@Test
+	public void testUnregister() throws IOException, InterruptedException {
+		/* Prepare data. */
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method. */
+		this.watcher.unregister(this.syncRoot);
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/a.txt"), "a");
+		Thread.sleep(300);
+
+		/* Check its results. */
+		verify(this.syncRoot, atLeastOnce()).getLocalDir();
+		verify(this.syncRoot, never()).sync(anyCollectionOf(String.class));
+	}
+
+	private FsWatcher newWatcher(final int maxWatches) throws IOException {
+		final FsWatcher watcher = new FsWatcher(new Executor() {
+			public void execute(final Runnable command) {
+				command.run();
+			}
+		}, 50, 3, maxWatches);
+		watcher.start();
+		return watcher;
+	}
+
+}
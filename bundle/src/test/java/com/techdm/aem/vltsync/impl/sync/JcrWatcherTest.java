@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.jackrabbit.api.observation.JackrabbitEventFilter;
+import org.apache.jackrabbit.api.observation.JackrabbitObservationManager;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.testing.mock.jcr.MockJcr;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class JcrWatcherTest {
+
+	private Session session;
+
+	private JackrabbitObservationManager observationManager;
+
+	private ScheduledExecutorService executor;
+
+	private SyncRoot syncRoot;
+
+	private JcrWatcher watcher;
+
+	@Before
+	public void setUp() throws RepositoryException {
+		this.session = spy(MockJcr.newSession());
+		final Workspace workspace = mock(Workspace.class);
+		this.observationManager = mock(JackrabbitObservationManager.class);
+		doReturn(workspace).when(this.session).getWorkspace();
+		when(workspace.getObservationManager()).thenReturn(this.observationManager);
+		final SlingRepository repository = mock(SlingRepository.class);
+		when(repository.loginAdministrative(null)).thenReturn(this.session);
+
+		this.executor = mock(ScheduledExecutorService.class);
+		this.syncRoot = mock(SyncRoot.class);
+		when(this.syncRoot.getFilterRoots()).thenReturn(Arrays.asList("/apps/test", "/etc/test"));
+		when(this.syncRoot.isStarted()).thenReturn(true);
+
+		this.watcher = new JcrWatcher(repository, this.executor, 100);
+	}
+
+	@Test
+	public void testRegister() throws RepositoryException {
+		/* Invoke method. */
+		this.watcher.register(this.syncRoot);
+
+		/* Check its results. */
+		final ArgumentCaptor<JackrabbitEventFilter> filter = ArgumentCaptor.forClass(JackrabbitEventFilter.class);
+		verify(this.observationManager).addEventListener(any(EventListener.class), filter.capture());
+		assertEquals("/apps/test", filter.getValue().getAbsPath());
+		assertEquals(Arrays.asList("/etc/test"), Arrays.asList(filter.getValue().getAdditionalPaths()));
+		assertEquals(JcrWatcher.EVENT_TYPES, filter.getValue().getEventTypes());
+		verify(this.syncRoot).setFilterListener(any(Runnable.class));
+	}
+
+	@Test
+	public void testRegisterFailure() throws RepositoryException {
+		/* Prepare data. */
+		doThrow(new RepositoryException("not supported")).when(this.observationManager)
+				.addEventListener(any(EventListener.class), any(JackrabbitEventFilter.class));
+		final Runnable onFailure = mock(Runnable.class);
+
+		/* Invoke method. */
+		this.watcher.register(this.syncRoot, onFailure);
+
+		/* Check its results. */
+		verify(onFailure).run();
+	}
+
+	@Test
+	public void testRegisterWithoutFilterRoots() throws RepositoryException {
+		/* Prepare data. */
+		when(this.syncRoot.getFilterRoots()).thenReturn(Collections.<String> emptyList());
+
+		/* Invoke method. */
+		this.watcher.register(this.syncRoot);
+
+		/* Check its results. */
+		verify(this.observationManager, never()).addEventListener(any(EventListener.class),
+				any(JackrabbitEventFilter.class));
+	}
+
+	@Test
+	public void testOnEvent() throws RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getRootNode().addNode("apps", SyncTransfer.NT_FOLDER).addNode("test",
+				SyncTransfer.NT_FOLDER);
+		test.addNode("a.txt", SyncTransfer.NT_FILE).addNode(SyncTransfer.JCR_CONTENT, "nt:resource");
+		this.watcher.register(this.syncRoot);
+		final ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+		verify(this.observationManager).addEventListener(listener.capture(), any(JackrabbitEventFilter.class));
+
+		/* Invoke method. */
+		final EventIterator events = mock(EventIterator.class);
+		when(events.hasNext()).thenReturn(true, true, true, true, false);
+		final Event dataChanged = newEvent(Event.PROPERTY_CHANGED, "/apps/test/a.txt/jcr:content/jcr:data", null);
+		final Event modifiedChanged = newEvent(Event.PROPERTY_CHANGED,
+				"/apps/test/a.txt/jcr:content/jcr:lastModified", null);
+		final Event removed = newEvent(Event.NODE_REMOVED, "/apps/test/b.txt", null);
+		final Event ownChange = newEvent(Event.NODE_ADDED, "/apps/test/c.txt", SyncRoot.USER_DATA);
+		when(events.nextEvent()).thenReturn(dataChanged, modifiedChanged, removed, ownChange);
+		listener.getValue().onEvent(events);
+
+		/* Check its results. */
+		final ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+		verify(this.executor).schedule(flush.capture(), eq(100l), eq(TimeUnit.MILLISECONDS));
+		verify(this.syncRoot, never()).sync(any(Collection.class));
+		flush.getValue().run();
+		verify(this.syncRoot).sync(Arrays.asList("/apps/test/a.txt", "/apps/test/b.txt"));
+	}
+
+	@Test
+	public void testOnEventEchoes() throws RepositoryException {
+		/* Prepare data: user data is not available. */
+		this.watcher.register(this.syncRoot);
+		final ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+		verify(this.observationManager).addEventListener(listener.capture(), any(JackrabbitEventFilter.class));
+		when(this.syncRoot.isJcrEcho(this.session, "/apps/test/a.txt")).thenReturn(true);
+
+		/* Invoke method. */
+		final EventIterator events = mock(EventIterator.class);
+		when(events.hasNext()).thenReturn(true, true, false);
+		final Event echo = newEvent(Event.NODE_REMOVED, "/apps/test/a.txt", null);
+		final Event removed = newEvent(Event.NODE_REMOVED, "/apps/test/b.txt", null);
+		when(events.nextEvent()).thenReturn(echo, removed);
+		listener.getValue().onEvent(events);
+
+		/* Check its results. */
+		final ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+		verify(this.executor).schedule(flush.capture(), eq(100l), eq(TimeUnit.MILLISECONDS));
+		flush.getValue().run();
+		verify(this.syncRoot).sync(Arrays.asList("/apps/test/b.txt"));
+	}
+
+	@Test
+	public void testUnregister() throws RepositoryException {
+		/* Prepare data. */
+		this.watcher.register(this.syncRoot);
+
+		/* Invoke method. */
+		this.watcher.unregister(this.syncRoot);
+
+		/* Check its results. */
+		verify(this.observationManager).removeEventListener(any(EventListener.class));
+		verify(this.syncRoot).setFilterListener(null);
+		verify(this.session).logout();
+	}
+
+	@Test
+	public void testGetCommonAncestor() {
+		assertEquals("/apps/test", JcrWatcher.getCommonAncestor(Arrays.asList("/apps/test")));
+		assertEquals("/apps", JcrWatcher.getCommonAncestor(Arrays.asList("/apps/test", "/apps/other/x")));
+		assertEquals("/", JcrWatcher.getCommonAncestor(Arrays.asList("/apps/test", "/etc/test")));
+	}
+
+	private Event newEvent(final int type, final String path, final String userData) throws RepositoryException {
+		final Event event = mock(Event.class);
+		when(event.getType()).thenReturn(type);
+		when(event.getPath()).thenReturn(path);
+		when(event.getUserData()).thenReturn(userData);
+		return event;
+	}
+
+}
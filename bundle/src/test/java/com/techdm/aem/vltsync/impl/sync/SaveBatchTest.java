@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SaveBatchTest {
+
+	private final SaveBatch saveBatch = new SaveBatch(100);
+
+	@Test
+	public void testAdditiveIncrease() {
+		/* Invoke method. */
+		this.saveBatch.saved(SaveBatch.MIN_SIZE, 10);
+		this.saveBatch.saved(2 * SaveBatch.MIN_SIZE, 100);
+
+		/* Check its results. */
+		assertEquals(3 * SaveBatch.MIN_SIZE, this.saveBatch.getSize());
+
+		/* Invoke method: a partial batch (end of a sync cycle). */
+		this.saveBatch.saved(1, 10);
+
+		/* Check its results. */
+		assertEquals(3 * SaveBatch.MIN_SIZE, this.saveBatch.getSize());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() {
+		/* Prepare data. */
+		for (int i = 0; i < 7; i++) {
+			this.saveBatch.saved(this.saveBatch.getSize(), 10);
+		}
+		assertEquals(8 * SaveBatch.MIN_SIZE, this.saveBatch.getSize());
+
+		/* Invoke method. */
+		this.saveBatch.saved(this.saveBatch.getSize(), 500);
+
+		/* Check its results. */
+		assertEquals(4 * SaveBatch.MIN_SIZE, this.saveBatch.getSize());
+
+		/* Invoke method: even a partial batch that took too long. */
+		this.saveBatch.saved(1, 500);
+		this.saveBatch.saved(1, 500);
+		this.saveBatch.saved(1, 500);
+
+		/* Check its results. */
+		assertEquals(SaveBatch.MIN_SIZE, this.saveBatch.getSize());
+	}
+
+	@Test
+	public void testMaxSize() {
+		/* Invoke method. */
+		for (int i = 0; i < SaveBatch.MAX_SIZE; i++) {
+			this.saveBatch.saved(this.saveBatch.getSize(), 0);
+		}
+
+		/* Check its results. */
+		assertEquals(SaveBatch.MAX_SIZE, this.saveBatch.getSize());
+	}
+
+}
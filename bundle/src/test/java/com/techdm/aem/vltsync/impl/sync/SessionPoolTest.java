@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionPoolTest {
+
+	private SlingRepository repository;
+
+	private Session session1;
+
+	private Session session2;
+
+	private SessionPool sessionPool;
+
+	@Before
+	public void setUp() throws RepositoryException {
+		this.session1 = mock(Session.class);
+		this.session2 = mock(Session.class);
+		when(this.session1.isLive()).thenReturn(true);
+		when(this.session2.isLive()).thenReturn(true);
+		this.repository = mock(SlingRepository.class);
+		when(this.repository.loginAdministrative(null)).thenReturn(this.session1, this.session2);
+
+		this.sessionPool = new SessionPool(this.repository, 60000);
+	}
+
+	@Test
+	public void testAcquireRelease() throws RepositoryException {
+		/* Invoke method. */
+		final Session first = this.sessionPool.acquire();
+		this.sessionPool.release(first);
+		final Session second = this.sessionPool.acquire();
+
+		/* Check its results. */
+		assertSame(this.session1, first);
+		assertSame(first, second);
+		verify(this.session1).refresh(false);
+		verify(this.session1, never()).logout();
+		verify(this.repository, times(1)).loginAdministrative(null);
+		assertEquals(1, this.sessionPool.getHits());
+		assertEquals(1, this.sessionPool.getMisses());
+
+		/* Invoke method: both sessions in use. */
+		final Session third = this.sessionPool.acquire();
+		this.sessionPool.release(second);
+		this.sessionPool.release(third);
+		this.sessionPool.release(third);
+
+		/* Check its results. */
+		assertNotSame(second, third);
+		assertEquals(2, this.sessionPool.getIdleCount());
+		assertEquals(2, this.sessionPool.getMisses());
+	}
+
+	@Test
+	public void testInvalidate() throws RepositoryException {
+		/* Prepare data. */
+		final Session session = this.sessionPool.acquire();
+
+		/* Invoke method. */
+		this.sessionPool.invalidate(session);
+
+		/* Check its results. */
+		verify(this.session1).logout();
+		assertEquals(1, this.sessionPool.getInvalidations());
+		assertSame(this.session2, this.sessionPool.acquire());
+	}
+
+	@Test
+	public void testAcquireBrokenSession() throws RepositoryException {
+		/* Prepare data. */
+		this.sessionPool.release(this.sessionPool.acquire());
+		doThrow(new RepositoryException("broken")).when(this.session1).refresh(false);
+
+		/* Invoke method. */
+		final Session session = this.sessionPool.acquire();
+
+		/* Check its results. */
+		assertSame(this.session2, session);
+		verify(this.session1).logout();
+		assertEquals(1, this.sessionPool.getInvalidations());
+	}
+
+	@Test
+	public void testExpire() throws RepositoryException {
+		/* Prepare data. */
+		this.sessionPool.release(this.sessionPool.acquire());
+
+		/* Invoke method. */
+		this.sessionPool.expire(System.currentTimeMillis());
+
+		/* Check its results. */
+		assertEquals(1, this.sessionPool.getIdleCount());
+
+		/* Invoke method. */
+		this.sessionPool.expire(System.currentTimeMillis() + 60001);
+
+		/* Check its results. */
+		assertEquals(0, this.sessionPool.getIdleCount());
+		verify(this.session1).logout();
+	}
+
+	@Test
+	public void testClose() throws RepositoryException {
+		/* Prepare data. */
+		final Session session = this.sessionPool.acquire();
+		this.sessionPool.release(this.sessionPool.acquire());
+
+		/* Invoke method. */
+		this.sessionPool.close();
+		this.sessionPool.release(session);
+
+		/* Check its results. */
+		verify(this.session1).logout();
+		verify(this.session2).logout();
+		assertEquals(0, this.sessionPool.getIdleCount());
+	}
+
+}
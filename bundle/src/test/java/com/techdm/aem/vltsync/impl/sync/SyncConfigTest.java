@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncConfigTest {
+
+	private File baseDir;
+
+	private File file;
+
+	private SyncConfig config;
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+
+		this.file = new File(this.baseDir, SyncConfig.FILENAME);
+		this.config = new SyncConfig(this.baseDir);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testReload() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.file, "disabled=true\nsync-once=jcr2fs\nsync-log=my.log\n"
+				+ "sync-once.FS2JCR=/content/a, /content/b\nsync-once-bulk=true\n");
+
+		/* Invoke method. */
+		assertTrue(this.config.reloadIfModified());
+
+		/* Check its results. */
+		assertEquals(true, this.config.isDisabled());
+		assertEquals(SyncMode.JCR2FS, this.config.getSyncOnce());
+		assertEquals("my.log", this.config.getSyncLog());
+		assertEquals(SyncMode.FS2JCR, this.config.getMergeTieBreak());
+		assertEquals(true, this.config.isSyncOnceBulk());
+		final Map<String, SyncMode> expected = new LinkedHashMap<String, SyncMode>();
+		expected.put("/content/a", SyncMode.FS2JCR);
+		expected.put("/content/b", SyncMode.FS2JCR);
+		assertEquals(expected, this.config.getSyncOncePaths());
+		assertEquals(false, this.config.reloadIfModified());
+	}
+
+	@Test
+	public void testSetSyncOncePaths() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.file, "# comment\ndisabled=false\nsync-once=\nsync-once.JCR2FS=/old\n");
+		final Map<String, SyncMode> paths = new LinkedHashMap<String, SyncMode>();
+		paths.put("/content/a", SyncMode.FS2JCR);
+		paths.put("/content/b", SyncMode.JCR2FS);
+		paths.put("/content/c", SyncMode.FS2JCR);
+
+		/* Invoke method. */
+		this.config.setSyncOncePaths(paths);
+
+		/* Check its results. */
+		assertEquals("# comment\ndisabled=false\nsync-once=\nsync-once.JCR2FS=/content/b\n"
+				+ "sync-once.FS2JCR=/content/a,/content/c\nsync-once.MERGE=\n", FileUtils.readFileToString(this.file));
+	}
+
+	@Test
+	public void testClearSyncOnce() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.file, "disabled=false\nsync-once=FS2JCR\nsync-once.JCR2FS=/a\n");
+		this.config.reloadIfModified();
+
+		/* Invoke method. */
+		this.config.clearSyncOnce();
+
+		/* Check its results. */
+		assertEquals("disabled=false\nsync-once=\nsync-once.JCR2FS=\n", FileUtils.readFileToString(this.file));
+		assertEquals(null, this.config.getSyncOnce());
+		assertTrue(this.config.getSyncOncePaths().isEmpty());
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncCursorTest {
+
+	private File baseDir;
+
+	private File file;
+
+	private SyncCursor cursor = new SyncCursor();
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+		this.file = new File(this.baseDir, SyncCursor.FILENAME);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testStoreAndLoad() throws IOException {
+		/* Prepare data. */
+		this.cursor.set(1500000000000l, Arrays.asList("/apps/test", "/etc/test"));
+
+		/* Invoke method. */
+		this.cursor.store(this.file);
+		final SyncCursor loaded = new SyncCursor();
+
+		/* Check its results. */
+		assertTrue(loaded.load(this.file));
+		assertEquals(1500000000000l, loaded.getTimestamp());
+		assertEquals(Arrays.asList("/apps/test", "/etc/test"), loaded.getRoots());
+		assertFalse(new File(this.baseDir, SyncCursor.FILENAME + ".tmp").exists());
+	}
+
+	@Test
+	public void testLoadMissing() throws IOException {
+		/* Invoke method. */
+		final boolean loaded = this.cursor.load(this.file);
+
+		/* Check its results. */
+		assertFalse(loaded);
+		assertEquals(-1, this.cursor.getTimestamp());
+		assertEquals(Collections.emptyList(), this.cursor.getRoots());
+	}
+
+	@Test(expected = IOException.class)
+	public void testLoadCorrupted() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.file, "timestamp=yesterday\n");
+
+		/* Invoke method. */
+		this.cursor.load(this.file);
+	}
+
+}
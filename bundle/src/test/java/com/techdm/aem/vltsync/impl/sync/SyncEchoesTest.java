@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SyncEchoesTest {
+
+	private final SyncEchoes echoes = new SyncEchoes(60000);
+
+	@Test
+	public void testIsEcho() {
+		/* Prepare data. */
+		this.echoes.put("/apps/test/a.txt", SyncMode.JCR2FS, new SyncEntry(false, 1000000l, 1).withHash(1));
+
+		/* Invoke method / Check its results. */
+		assertTrue(this.echoes.isEcho("/apps/test/a.txt", SyncMode.JCR2FS, new SyncEntry(false, 1000000l, 1)));
+		assertTrue(this.echoes.isEcho("/apps/test/a.txt", SyncMode.JCR2FS, new SyncEntry(false, 1000000l, 1)));
+		assertFalse(this.echoes.isEcho("/apps/test/a.txt", SyncMode.FS2JCR, new SyncEntry(false, 1000000l, 1)));
+		assertFalse(this.echoes.isEcho("/apps/test/a.txt", SyncMode.JCR2FS,
+				new SyncEntry(false, 1000000l, 1).withHash(2)));
+		assertFalse(this.echoes.isEcho("/apps/test/b.txt", SyncMode.JCR2FS, new SyncEntry(false, 1000000l, 1)));
+		assertEquals(2, this.echoes.getSuppressed());
+	}
+
+	@Test
+	public void testChangedAfterWrite() {
+		/* Prepare data. */
+		this.echoes.put("/apps/test/a.txt", SyncMode.FS2JCR, new SyncEntry(false, 1000000l, 1));
+
+		/* Invoke method. */
+		final boolean echo = this.echoes.isEcho("/apps/test/a.txt", SyncMode.FS2JCR,
+				new SyncEntry(false, 2000000l, 1));
+
+		/* Check its results: changed back, it is still a change. */
+		assertFalse(echo);
+		assertFalse(this.echoes.isEcho("/apps/test/a.txt", SyncMode.FS2JCR, new SyncEntry(false, 1000000l, 1)));
+		assertEquals(0, this.echoes.size());
+	}
+
+	@Test
+	public void testRemovalsAndDirectories() {
+		/* Prepare data. */
+		this.echoes.put("/apps/test/a.txt", SyncMode.JCR2FS, null);
+		this.echoes.put("/apps/test/dir", SyncMode.JCR2FS, new SyncEntry(true, 0, 0));
+
+		/* Invoke method / Check its results. */
+		assertTrue(this.echoes.isEcho("/apps/test/a.txt", SyncMode.JCR2FS, null));
+		assertFalse(this.echoes.isEcho("/apps/test/dir", SyncMode.JCR2FS, new SyncEntry(true, 0, 0)));
+	}
+
+	@Test
+	public void testExpiry() {
+		/* Prepare data. */
+		final SyncEchoes echoes = new SyncEchoes(0);
+		echoes.put("/apps/test/a.txt", SyncMode.JCR2FS, null);
+
+		/* Invoke method / Check its results. */
+		assertFalse(echoes.isEcho("/apps/test/a.txt", SyncMode.JCR2FS, null));
+		assertEquals(0, echoes.size());
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junitx.util.PrivateAccessor;
+
+public class SyncEngineImplTest {
+
+	private SyncEngineImpl syncEngine = new SyncEngineImpl();
+
+	private File baseDir;
+
+	@Before
+	public void setUp() throws IOException, NoSuchFieldException, RepositoryException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+
+		final SlingRepository repository = mock(SlingRepository.class);
+		when(repository.loginAdministrative(null)).thenReturn(mock(Session.class, RETURNS_DEEP_STUBS));
+		PrivateAccessor.setField(this.syncEngine, "repository", repository);
+		final Map<String, Object> props = new HashMap<String, Object>();
+		/* Nothing but the first sync of each root runs in background. */
+		props.put(SyncEngineImpl.PROP_SYNC_INTERVAL, 3600000l);
+		props.put(SyncEngineImpl.PROP_JCR_WATCH, false);
+		props.put(SyncEngineImpl.PROP_STATISTICS_INTERVAL, 0l);
+		this.syncEngine.activate(props);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.syncEngine.deactivate();
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testAddRemoveSyncRoot() throws IOException {
+		/* Prepare data. */
+		final File root1 = createSyncRoot("root1");
+		final File root2 = createSyncRoot("root2");
+
+		/* Invoke method. */
+		this.syncEngine.addSyncRoot(root1);
+		this.syncEngine.addSyncRoot(root2);
+		this.syncEngine.addSyncRoot(root1);
+
+		/* Check its results. */
+		assertEquals(new LinkedHashSet<File>(Arrays.asList(root1, root2)), this.syncEngine.getSyncRoots());
+
+		/* Invoke method. */
+		this.syncEngine.removeSyncRoot(root1);
+		this.syncEngine.removeSyncRoot(root1);
+
+		/* Check its results. */
+		assertEquals(new LinkedHashSet<File>(Arrays.asList(root2)), this.syncEngine.getSyncRoots());
+		assertEquals(Long.valueOf(0), this.syncEngine.getWatchStatistics().get("queue.depth"));
+		assertEquals(Long.valueOf(0), this.syncEngine.getSessionStatistics().get("invalidations"));
+		this.syncEngine.logStatistics();
+	}
+
+	@Test
+	public void testStartOnFirstSyncRoot() throws NoSuchFieldException {
+		/* Check its results. */
+		assertNull(PrivateAccessor.getField(this.syncEngine, "executor"));
+		assertNull(PrivateAccessor.getField(this.syncEngine, "watcher"));
+
+		/* Invoke method. */
+		this.syncEngine.addSyncRoot(new File(this.baseDir, "root1"));
+
+		/* Check its results. */
+		assertNotNull(PrivateAccessor.getField(this.syncEngine, "executor"));
+		assertNotNull(PrivateAccessor.getField(this.syncEngine, "watcher"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAddSyncRootInactive() {
+		/* Prepare data. */
+		this.syncEngine.deactivate();
+
+		/* Invoke method. */
+		this.syncEngine.addSyncRoot(new File(this.baseDir, "root1"));
+	}
+
+	@Test
+	public void testDeactivate() {
+		/* Prepare data. */
+		this.syncEngine.addSyncRoot(new File(this.baseDir, "root1"));
+
+		/* Invoke method. */
+		this.syncEngine.deactivate();
+
+		/* Check its results. */
+		assertTrue(this.syncEngine.getSyncRoots().isEmpty());
+	}
+
+	/*
+	 * A disabled root: its first sync returns before acquiring a session, so
+	 * the counters don't depend on when it runs.
+	 */
+	private File createSyncRoot(final String name) throws IOException {
+		final File syncRoot = new File(this.baseDir, name);
+		FileUtils.writeStringToFile(new File(syncRoot, SyncConfig.FILENAME), "disabled=true\n");
+		return syncRoot;
+	}
+
+}
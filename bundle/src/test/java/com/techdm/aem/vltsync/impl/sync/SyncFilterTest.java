@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncFilterTest {
+
+	private File baseDir;
+
+	private SyncFilter filter;
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+
+		this.filter = new SyncFilter(this.baseDir);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testRoots() throws IOException {
+		/* Prepare data. */
+		writeFilter("<filter root=\"/apps/test/\"/>", "<filter root=\"/apps/test/components\"/>",
+				"<filter root=\"/etc/test\"/>", "<filter root=\"/apps/test\"><exclude pattern=\".*\"/></filter>",
+				"<filter root=\"/apps/other\"/>");
+
+		/* Invoke method. */
+		assertTrue(this.filter.reloadIfModified());
+
+		/* Check its results. */
+		assertEquals(Arrays.asList("/apps/test", "/apps/other", "/etc/test"), this.filter.getRoots());
+		assertTrue(this.filter.contains("/apps/test"));
+		assertTrue(this.filter.contains("/apps/test/components/page"));
+		assertTrue(this.filter.contains("/etc/test/a.txt"));
+		assertFalse(this.filter.contains("/apps"));
+		assertFalse(this.filter.contains("/apps/testing"));
+		assertFalse(this.filter.contains("/"));
+		assertFalse(this.filter.reloadIfModified());
+	}
+
+	@Test
+	public void testRules() throws IOException {
+		/* Prepare data. */
+		writeFilter("<filter root=\"/content/dam\">",
+				"<exclude pattern=\"/content/dam/.*/jcr:content/renditions(/.*)?\"/>",
+				"<include pattern=\"/content/dam/.*/renditions/original\"/>", "</filter>",
+				"<filter root=\"/content/site\"><include pattern=\"/content/site/en(/.*)?\"/></filter>");
+
+		/* Invoke method. */
+		this.filter.reloadIfModified();
+
+		/* Check its results: the last matching rule wins. */
+		assertTrue(this.filter.contains("/content/dam/a.png"));
+		assertFalse(this.filter.contains("/content/dam/a.png/jcr:content/renditions"));
+		assertFalse(this.filter.contains("/content/dam/a.png/jcr:content/renditions/thumbnail.png"));
+		assertTrue(this.filter.contains("/content/dam/a.png/jcr:content/renditions/original"));
+		assertTrue(this.filter.contains("/content/site/en/page"));
+		assertFalse(this.filter.contains("/content/site/fr"));
+
+		/* Check its results: folders which may hold included items. */
+		assertTrue(this.filter.isTraversed("/content/dam/a.png/jcr:content/renditions"));
+		assertTrue(this.filter.isTraversed("/content/site"));
+		assertFalse(this.filter.isTraversed("/content/site/fr"));
+		assertFalse(this.filter.isTraversed("/content/other"));
+	}
+
+	@Test
+	public void testFirstCoveringSet() throws IOException {
+		/* Prepare data. */
+		writeFilter("<filter root=\"/apps/x/y\"><exclude pattern=\".*/foo\"/></filter>",
+				"<filter root=\"/apps/x\"/>", "<filter root=\"/apps/x/z\"><exclude pattern=\".*/bar\"/></filter>");
+
+		/* Invoke method. */
+		this.filter.reloadIfModified();
+
+		/* Check its results: only the first declared set covering a path applies. */
+		assertEquals(Arrays.asList("/apps/x"), this.filter.getRoots());
+		assertFalse(this.filter.contains("/apps/x/y/foo"));
+		assertTrue(this.filter.contains("/apps/x/y/other"));
+		assertTrue(this.filter.contains("/apps/x/z/bar"));
+		assertFalse(this.filter.isTraversed("/apps/x/y/foo"));
+	}
+
+	@Test
+	public void testNoFilter() throws IOException {
+		/* Invoke method. */
+		this.filter.reloadIfModified();
+
+		/* Check its results. */
+		assertTrue(this.filter.getRoots().isEmpty());
+		assertFalse(this.filter.contains("/apps"));
+	}
+
+	private void writeFilter(final String... filters) throws IOException {
+		final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<workspaceFilter version=\"1.0\">\n");
+		for (String filter : filters) {
+			xml.append(filter).append("\n");
+		}
+		xml.append("</workspaceFilter>\n");
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncFilter.FILENAME), xml.toString());
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncIndexTest {
+
+	private File baseDir;
+
+	private File file;
+
+	private SyncIndex index = new SyncIndex();
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+
+		this.file = new File(this.baseDir, SyncIndex.FILENAME);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testStoreLoad() throws IOException {
+		/* Prepare data. */
+		this.index.put("/apps/test", new SyncEntry(true, 0, 0), new SyncEntry(true, 0, 0));
+		this.index.put("/apps/test/a b.txt", new SyncEntry(false, 1000, 10, 1234), new SyncEntry(false, 1000, 10, 1234));
+		this.index.put("/apps/test/c.txt", new SyncEntry(false, 2000, 20), null);
+		assertTrue(this.index.isDirty());
+
+		/* Invoke method. */
+		this.index.store(this.file);
+		final SyncIndex loaded = new SyncIndex();
+		assertTrue(loaded.load(this.file));
+
+		/* Check its results. */
+		assertFalse(this.index.isDirty());
+		assertFalse(loaded.isDirty());
+		assertEquals(3, loaded.size());
+		assertEquals(true, loaded.get("/apps/test").getFs().isDirectory());
+		assertEquals(1234, loaded.get("/apps/test/a b.txt").getJcr().getHash());
+		assertEquals(new SyncEntry(false, 2000, 20), loaded.get("/apps/test/c.txt").getFs());
+		assertEquals(false, loaded.get("/apps/test/c.txt").getFs().hasHash());
+		assertNull(loaded.get("/apps/test/c.txt").getJcr());
+		assertFalse(new File(this.baseDir, SyncIndex.FILENAME + ".tmp").exists());
+	}
+
+	@Test
+	public void testLoadMissingOrUnknown() throws IOException {
+		/* Prepare data. */
+		this.index.put("/apps/test", new SyncEntry(true, 0, 0), new SyncEntry(true, 0, 0));
+
+		/* Invoke method. */
+		assertFalse(this.index.load(this.file));
+		FileUtils.writeStringToFile(this.file, "something else\n");
+		assertFalse(this.index.load(this.file));
+
+		/* Check its results. */
+		assertEquals(0, this.index.size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testLoadCorrupted() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(this.file, "# vlt-sync-index 1\nf,x,1,2\td\t/apps\n");
+
+		/* Invoke method. */
+		this.index.load(this.file);
+	}
+
+	@Test
+	public void testRemoveTree() {
+		/* Prepare data. */
+		this.index.put("/apps/test", new SyncEntry(true, 0, 0), new SyncEntry(true, 0, 0));
+		this.index.put("/apps/test/a", new SyncEntry(true, 0, 0), new SyncEntry(true, 0, 0));
+		this.index.put("/apps/test/a/b", new SyncEntry(true, 0, 0), new SyncEntry(true, 0, 0));
+		this.index.put("/apps/test2", new SyncEntry(true, 0, 0), new SyncEntry(true, 0, 0));
+
+		/* Invoke method. */
+		this.index.removeTree("/apps/test");
+
+		/* Check its results. */
+		assertEquals(1, this.index.size());
+		assertEquals(true, this.index.getEntries().containsKey("/apps/test2"));
+	}
+
+}
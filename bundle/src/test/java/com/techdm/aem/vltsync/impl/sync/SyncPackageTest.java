@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.vault.fs.api.VaultInputSource;
+import org.apache.jackrabbit.vault.fs.api.WorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.config.DefaultWorkspaceFilter;
+import org.apache.jackrabbit.vault.fs.io.Archive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncPackageTest {
+
+	private File baseDir;
+
+	private WorkspaceFilter filter;
+
+	private Archive archive;
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+
+		this.filter = new DefaultWorkspaceFilter();
+		this.archive = new SyncPackage.LocalArchive(this.baseDir, this.filter);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.archive.close();
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testLocalArchive() throws IOException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/a.txt"), "a");
+		FileUtils.writeStringToFile(new File(this.baseDir, "apps/test/a.txt~"), "backup");
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncConfig.FILENAME), "disabled=false");
+		new File(this.baseDir, ".git").mkdir();
+
+		/* Invoke method. */
+		this.archive.open(true);
+
+		/* Check its results. */
+		final Archive.Entry jcrRoot = this.archive.getJcrRoot();
+		assertSame(jcrRoot, this.archive.getRoot().getChild("jcr_root"));
+		assertEquals(names("apps"), names(jcrRoot));
+		assertEquals(names("a.txt"), names(jcrRoot.getChild("apps").getChild("test")));
+		assertNull(jcrRoot.getChild(SyncConfig.FILENAME));
+		assertNull(this.archive.getEntry("jcr_root/apps/missing"));
+
+		final Archive.Entry file = this.archive.getEntry("jcr_root/apps/test/a.txt");
+		final VaultInputSource source = this.archive.getInputSource(file);
+		assertEquals(1, source.getContentLength());
+		final InputStream in = this.archive.openInputStream(file);
+		try {
+			assertEquals("a", IOUtils.toString(in));
+		} finally {
+			in.close();
+		}
+		assertNull(this.archive.openInputStream(jcrRoot));
+	}
+
+	@Test(expected = IOException.class)
+	public void testLocalArchiveMissing() throws IOException {
+		/* Prepare data. */
+		this.archive = new SyncPackage.LocalArchive(new File(this.baseDir, "missing"), this.filter);
+
+		/* Invoke method. */
+		this.archive.open(true);
+	}
+
+	private static Set<String> names(final String... names) {
+		final Set<String> set = new TreeSet<String>();
+		for (String name : names) {
+			set.add(name);
+		}
+		return set;
+	}
+
+	private static Set<String> names(final Archive.Entry entry) {
+		final Set<String> set = new TreeSet<String>();
+		for (Archive.Entry child : entry.getChildren()) {
+			set.add(child.getName());
+		}
+		return set;
+	}
+
+}
@@ -0,0 +1,840 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.UnsupportedRepositoryOperationException;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.testing.mock.jcr.MockJcr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junitx.util.PrivateAccessor;
+
+public class SyncRootTest {
+
+	private File baseDir;
+
+	private Session session;
+
+	private SlingRepository repository;
+
+	private SyncRoot syncRoot;
+
+	@Before
+	public void setUp() throws IOException, RepositoryException {
+		this.baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		this.baseDir.delete();
+		this.baseDir.mkdir();
+
+		this.session = spy(MockJcr.newSession());
+		doNothing().when(this.session).logout();
+		/* The mock session cannot move nodes. */
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(final InvocationOnMock invocation) throws Throwable {
+				final String from = (String) invocation.getArguments()[0];
+				final String to = (String) invocation.getArguments()[1];
+				copyNode(SyncRootTest.this.session.getNode(from),
+						SyncRootTest.this.session.getNode(SyncTransfer.getParentPath(to)), to.substring(to.lastIndexOf('/') + 1));
+				SyncRootTest.this.session.getNode(from).remove();
+				return null;
+			}
+		}).when(this.session).move(anyString(), anyString());
+		this.repository = mock(SlingRepository.class);
+		when(this.repository.loginAdministrative(null)).thenReturn(this.session);
+
+		this.session.getRootNode().addNode("apps", SyncTransfer.NT_FOLDER);
+
+		writeFilter("/apps/test");
+		writeConfig("");
+		this.syncRoot = new SyncRoot(this.baseDir, this.repository);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.syncRoot.stop();
+		FileUtils.deleteDirectory(this.baseDir);
+	}
+
+	@Test
+	public void testSyncOnceFs2Jcr() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/js/main.js", "alert(1);");
+		writeFile("apps/test/_jcr_content/readme.txt", "readme");
+		writeFile("apps/other/ignored.txt", "out of the filter");
+		writeFile("apps/test/.vlt-sync.log", "control file");
+		writeConfig("FS2JCR");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("alert(1);", readNode("/apps/test/js/main.js"));
+		assertEquals("readme", readNode("/apps/test/jcr:content/readme.txt"));
+		assertFalse(this.session.nodeExists("/apps/other"));
+		assertFalse(this.session.nodeExists("/apps/test/.vlt-sync.log"));
+		assertTrue(FileUtils.readFileToString(new File(this.baseDir, SyncConfig.FILENAME)).contains("sync-once=\n"));
+		assertTrue(FileUtils.readFileToString(new File(this.baseDir, ".vlt-sync.log"))
+				.contains(SyncLog.SYNC_ONCE_COMPLETED));
+	}
+
+	@Test
+	public void testSetInterval() {
+		/* Prepare data. */
+		final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+		final ScheduledFuture<?> timer = mock(ScheduledFuture.class);
+		doReturn(timer).when(executor).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(),
+				eq(TimeUnit.MILLISECONDS));
+		this.syncRoot.start(executor, 300000);
+
+		/* Invoke method. */
+		this.syncRoot.setInterval(1000);
+
+		/* Check its results. */
+		verify(timer).cancel(false);
+		verify(executor).scheduleWithFixedDelay(any(Runnable.class), eq(0l), eq(300000l), eq(TimeUnit.MILLISECONDS));
+		verify(executor).scheduleWithFixedDelay(any(Runnable.class), eq(1000l), eq(1000l), eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testSyncSavesBursts() throws IOException, RepositoryException {
+		/* Prepare data. */
+		doReturn(true).when(this.session).hasPendingChanges();
+		writeFile("apps/test/single.txt", "single");
+		this.syncRoot.sync();
+		verify(this.session, times(1)).save();
+		for (int i = 0; i < 2 * SaveBatch.MIN_SIZE; i++) {
+			writeFile("apps/test/burst/" + i + ".txt", "burst");
+		}
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results: a full batch and the rest of the cycle. */
+		assertEquals(2 * SaveBatch.MIN_SIZE, this.session.getNode("/apps/test/burst").getNodes().getSize());
+		verify(this.session, times(3)).save();
+	}
+
+	@Test
+	public void testSyncReusesSession() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/a.txt", "a");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		verify(this.repository, times(1)).loginAdministrative(null);
+		verify(this.session, times(1)).refresh(false);
+		assertEquals(1, this.syncRoot.getSessionPool().getHits());
+
+		/* Invoke method: a failed cycle. */
+		doThrow(new RepositoryException("failed")).when(this.session).nodeExists(anyString());
+		writeFile("apps/test/b.txt", "b");
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals(1, this.syncRoot.getSessionPool().getInvalidations());
+		assertEquals(0, this.syncRoot.getSessionPool().getIdleCount());
+	}
+
+	@Test
+	public void testSyncOnceSkipsSameContent() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		addFileNode(test, "same.txt", "same", 1000000l);
+		addFileNode(test, "changed.txt", "old", 1000000l);
+		writeFile("apps/test/same.txt", "same");
+		writeFile("apps/test/changed.txt", "new");
+		writeConfig("FS2JCR");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals(1000000l, getJcrLastModified("/apps/test/same.txt"));
+		assertEquals("new", readNode("/apps/test/changed.txt"));
+		final String log = FileUtils.readFileToString(new File(this.baseDir, ".vlt-sync.log"));
+		assertFalse(log.contains("/apps/test/same.txt"));
+		assertTrue(log.contains("/apps/test/changed.txt"));
+
+		/* Invoke method: the index took the JCR side as it is. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("same", FileUtils.readFileToString(new File(this.baseDir, "apps/test/same.txt")));
+		assertEquals(1000000l, getJcrLastModified("/apps/test/same.txt"));
+	}
+
+	@Test
+	public void testSyncIgnoresTempFiles() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/a.txt", "a");
+		writeFile("apps/test/a.txt~", "backup");
+		writeFile("apps/test/.a.txt.swp", "swap");
+		writeFile("apps/test/4913", "write test");
+		writeFile("apps/test/.#a.txt", "lock");
+		writeFile("apps/test/a.txt___jb_tmp___", "safe write");
+		writeConfig("FS2JCR");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("a", readNode("/apps/test/a.txt"));
+		assertEquals(1, this.session.getNode("/apps/test").getNodes().getSize());
+	}
+
+	@Test
+	public void testSyncOnceJcr2Fs() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		addFileNode(test.addNode("css", SyncTransfer.NT_FOLDER), "main.css", "body {}", 1000000l);
+		test.addNode("page", "cq:Page");
+		writeFile("apps/test/stale.txt", "stale");
+		writeConfig("JCR2FS");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		final File css = new File(this.baseDir, "apps/test/css/main.css");
+		assertEquals("body {}", FileUtils.readFileToString(css));
+		assertEquals(1000000l, css.lastModified());
+		assertFalse(new File(this.baseDir, "apps/test/page").exists());
+		assertFalse(new File(this.baseDir, "apps/test/stale.txt").exists());
+	}
+
+	@Test
+	public void testSyncLeavesUnsupportedNodesAlone() throws IOException, RepositoryException {
+		/* Prepare data: a component, serialized by FileVault. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		final Node components = test.addNode("components", SyncTransfer.NT_FOLDER);
+		components.addNode("foo", "cq:Component").setProperty("jcr:title", "Foo");
+		writeFile("apps/test/components/foo/foo.html", "<div>foo</div>");
+		writeFile("apps/test/components/foo/.content.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<jcr:root xmlns:jcr=\"http://www.jcp.org/jcr/1.0\" jcr:title=\"Foo\"/>");
+		writeFile("apps/test/components/foo/_cq_dialog/.content.xml", "<jcr:root/>");
+		writeFile("apps/test/components/bar.xml", "<jcr:root jcr:primaryType=\"cq:Component\"/>");
+		writeFile("apps/test/components/data.xml", "<data/>");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+		this.syncRoot.sync();
+
+		/* Check its results: neither replaced nor filled with its serialization. */
+		final Node foo = this.session.getNode("/apps/test/components/foo");
+		assertEquals("cq:Component", foo.getPrimaryNodeType().getName());
+		assertEquals("Foo", foo.getProperty("jcr:title").getString());
+		assertFalse(foo.hasNodes());
+		assertFalse(this.session.nodeExists("/apps/test/components/bar.xml"));
+		assertEquals("<data/>", readNode("/apps/test/components/data.xml"));
+
+		/* Invoke method: overwrite the filesystem. */
+		writeConfig("JCR2FS");
+		this.syncRoot.sync();
+
+		/* Check its results: the local files are kept. */
+		assertTrue(new File(this.baseDir, "apps/test/components/foo/foo.html").exists());
+		assertTrue(new File(this.baseDir, "apps/test/components/foo/.content.xml").exists());
+		assertTrue(new File(this.baseDir, "apps/test/components/bar.xml").exists());
+		assertEquals("cq:Component", this.session.getNode("/apps/test/components/foo").getPrimaryNodeType()
+				.getName());
+	}
+
+	@Test
+	public void testSyncEchoes() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		addFileNode(test, "a.txt", "a", 1000000l);
+		writeFile("apps/test/b.txt", "b");
+		this.syncRoot.sync();
+
+		/* Check its results: written aside and renamed, with its timestamp. */
+		final File file = new File(this.baseDir, "apps/test/a.txt");
+		assertEquals(1000000l, file.lastModified());
+		final List<String> names = Arrays.asList(new File(this.baseDir, "apps/test").list());
+		Collections.sort(names);
+		assertEquals(Arrays.asList("a.txt", "b.txt"), names);
+		assertTrue(this.syncRoot.isFsEcho("/apps/test/a.txt"));
+		assertTrue(this.syncRoot.isJcrEcho(this.session, "/apps/test/b.txt"));
+		assertFalse(this.syncRoot.isJcrEcho(this.session, "/apps/test/a.txt"));
+
+		/* Invoke method: changed again, by a user. */
+		writeFile("apps/test/a.txt", "a, changed");
+		file.setLastModified(2000000l);
+
+		/* Check its results. */
+		assertFalse(this.syncRoot.isFsEcho("/apps/test/a.txt"));
+	}
+
+	@Test
+	public void testSyncOnceParallelFs2Jcr() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/sub/x.txt", "x");
+		writeFile("apps/test/sub/deeper/y.txt", "y");
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		addFileNode(test, "stale.txt", "stale", 1000000l);
+		writeConfig("FS2JCR");
+		this.syncRoot.setParallelism(4);
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("x", readNode("/apps/test/sub/x.txt"));
+		assertEquals("y", readNode("/apps/test/sub/deeper/y.txt"));
+		assertFalse(this.session.nodeExists("/apps/test/stale.txt"));
+		assertTrue(FileUtils.readFileToString(new File(this.baseDir, ".vlt-sync.log")).contains(
+				SyncLog.SYNC_ONCE_COMPLETED));
+	}
+
+	@Test
+	public void testSyncOnceParallelJcr2Fs() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		for (int i = 0; i < 8; i++) {
+			final Node dir = test.addNode("dir" + i, SyncTransfer.NT_FOLDER);
+			addFileNode(dir, "a.txt", "a" + i, 1000000l);
+			addFileNode(dir.addNode("sub", SyncTransfer.NT_FOLDER), "b.txt", "b" + i, 1000000l);
+		}
+		writeFile("apps/test/stale.txt", "stale");
+		writeConfig("JCR2FS");
+		this.syncRoot.setParallelism(4);
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		for (int i = 0; i < 8; i++) {
+			assertEquals("a" + i, FileUtils.readFileToString(new File(this.baseDir, "apps/test/dir" + i + "/a.txt")));
+			assertEquals("b" + i,
+					FileUtils.readFileToString(new File(this.baseDir, "apps/test/dir" + i + "/sub/b.txt")));
+		}
+		assertFalse(new File(this.baseDir, "apps/test/stale.txt").exists());
+
+		/* Invoke method: nothing changed since. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(FileUtils.readFileToString(new File(this.baseDir, ".vlt-sync.log")).contains(" U /apps"));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSyncOnceBulk() throws Exception {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		addFileNode(test, "a.txt", "a", 1000000l);
+		final SyncPackage syncPackage = mock(SyncPackage.class);
+		doAnswer(new Answer<Void>() {
+			public Void answer(final InvocationOnMock invocation) throws IOException {
+				writeFile("apps/test/a.txt", "a");
+				writeFile("apps/test/.content.xml", "<jcr:root/>");
+				return null;
+			}
+		}).when(syncPackage).exportToFs(eq(this.session), any(File.class), any(List.class));
+		PrivateAccessor.setField(this.syncRoot, "syncPackage", syncPackage);
+		writeConfig("JCR2FS\nsync-once-bulk=true");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		verify(syncPackage).exportToFs(this.session, new File(this.baseDir, SyncFilter.FILENAME),
+				Arrays.asList("/apps/test"));
+		assertTrue(FileUtils.readFileToString(new File(this.baseDir, SyncConfig.FILENAME)).contains("sync-once=\n"));
+		assertTrue(new File(this.baseDir, SyncIndex.FILENAME).isFile());
+
+		/* Invoke method: the export is the new baseline. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(this.session.nodeExists("/apps/test/.content.xml"));
+		assertEquals(1000000l, getJcrLastModified("/apps/test/a.txt"));
+
+		/* Invoke method: incremental syncing resumes. */
+		writeFile("apps/test/a.txt", "changed");
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("changed", readNode("/apps/test/a.txt"));
+	}
+
+	@Test
+	public void testSyncOnceMerge() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		writeFile("apps/test/newer-fs.txt", "fs");
+		new File(this.baseDir, "apps/test/newer-fs.txt").setLastModified(3000000l);
+		addFileNode(test, "newer-fs.txt", "jcr", 1000000l);
+		writeFile("apps/test/newer-jcr.txt", "fs");
+		new File(this.baseDir, "apps/test/newer-jcr.txt").setLastModified(1000000l);
+		addFileNode(test, "newer-jcr.txt", "jcr", 3000000l);
+		writeFile("apps/test/tie.txt", "fs");
+		new File(this.baseDir, "apps/test/tie.txt").setLastModified(2000000l);
+		addFileNode(test, "tie.txt", "jcr", 2000000l);
+		writeFile("apps/test/only-fs.txt", "fs");
+		addFileNode(test, "only-jcr.txt", "jcr", 1000000l);
+		writeConfig("MERGE");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("fs", readNode("/apps/test/newer-fs.txt"));
+		assertEquals("jcr", FileUtils.readFileToString(new File(this.baseDir, "apps/test/newer-jcr.txt")));
+		assertEquals("fs", readNode("/apps/test/tie.txt"));
+		assertEquals("fs", readNode("/apps/test/only-fs.txt"));
+		assertEquals("jcr", FileUtils.readFileToString(new File(this.baseDir, "apps/test/only-jcr.txt")));
+	}
+
+	@Test
+	public void testSyncOnceMergeTieBreakJcr() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		writeFile("apps/test/tie.txt", "fs");
+		new File(this.baseDir, "apps/test/tie.txt").setLastModified(2000000l);
+		addFileNode(test, "tie.txt", "jcr", 2000000l);
+		writeFile("apps/test/type/child.txt", "fs");
+		addFileNode(test, "type", "jcr", 2000000l);
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncConfig.FILENAME),
+				"disabled=false\nsync-once=MERGE\nmerge-tie-break=JCR2FS\n");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("jcr", FileUtils.readFileToString(new File(this.baseDir, "apps/test/tie.txt")));
+		assertEquals("jcr", FileUtils.readFileToString(new File(this.baseDir, "apps/test/type")));
+		assertFalse(this.session.nodeExists("/apps/test/type/child.txt"));
+	}
+
+	@Test
+	public void testSyncChanges() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/a.txt", "a");
+		writeFile("apps/test/b.txt", "b");
+		writeConfig("FS2JCR");
+		this.syncRoot.sync();
+
+		/* Invoke method: filesystem changes. */
+		writeFile("apps/test/a.txt", "a, changed");
+		new File(this.baseDir, "apps/test/a.txt").setLastModified(2000000l);
+		new File(this.baseDir, "apps/test/b.txt").delete();
+		writeFile("apps/test/c/c.txt", "c");
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("a, changed", readNode("/apps/test/a.txt"));
+		assertFalse(this.session.nodeExists("/apps/test/b.txt"));
+		assertEquals("c", readNode("/apps/test/c/c.txt"));
+
+		/* Invoke method: JCR changes. */
+		addFileNode(this.session.getNode("/apps/test"), "d.txt", "d", 3000000l);
+		this.session.getNode("/apps/test/c").remove();
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("d", FileUtils.readFileToString(new File(this.baseDir, "apps/test/d.txt")));
+		assertFalse(new File(this.baseDir, "apps/test/c").exists());
+		assertEquals("a, changed", FileUtils.readFileToString(new File(this.baseDir, "apps/test/a.txt")));
+	}
+
+	@Test
+	public void testSyncMovesFs2Jcr() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/old/a.txt", "a");
+		writeFile("apps/test/old/sub/b.txt", "b");
+		writeConfig("FS2JCR");
+		this.syncRoot.sync();
+
+		final File logFile = new File(this.baseDir, ".vlt-sync.log");
+		final long logLength = logFile.length();
+
+		/* Invoke method. */
+		new File(this.baseDir, "apps/test/old").renameTo(new File(this.baseDir, "apps/test/new"));
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(this.session.nodeExists("/apps/test/old"));
+		assertEquals("a", readNode("/apps/test/new/a.txt"));
+		assertEquals("b", readNode("/apps/test/new/sub/b.txt"));
+		final String log = FileUtils.readFileToString(logFile).substring((int) logLength);
+		assertTrue(log.contains("FS2JCR M /apps/test/old /apps/test/new"));
+		assertFalse(log.contains("/apps/test/new/a.txt"));
+	}
+
+	@Test
+	public void testSyncDoesNotMoveEmptyDirectories() throws IOException, RepositoryException {
+		/* Prepare data. */
+		new File(this.baseDir, "apps/test/empty").mkdirs();
+		writeFile("apps/test/other/a.txt", "a");
+		writeConfig("FS2JCR");
+		this.syncRoot.sync();
+
+		final File logFile = new File(this.baseDir, ".vlt-sync.log");
+		final long logLength = logFile.length();
+
+		/* Invoke method. */
+		new File(this.baseDir, "apps/test/empty").renameTo(new File(this.baseDir, "apps/test/renamed"));
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(this.session.nodeExists("/apps/test/empty"));
+		assertTrue(this.session.nodeExists("/apps/test/renamed"));
+		final String log = FileUtils.readFileToString(logFile).substring((int) logLength);
+		assertFalse(log.contains(" M "));
+		assertTrue(log.contains("FS2JCR A /apps/test/renamed"));
+	}
+
+	@Test
+	public void testCatchUpQueriesEscapedRoots() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFilter("/apps/it's");
+		this.syncRoot.sync();
+		final Workspace workspace = mock(Workspace.class);
+		final QueryManager queryManager = mock(QueryManager.class);
+		final Query query = mock(Query.class, RETURNS_DEEP_STUBS);
+		doReturn(workspace).when(this.session).getWorkspace();
+		when(workspace.getObservationManager()).thenThrow(new UnsupportedRepositoryOperationException());
+		when(workspace.getQueryManager()).thenReturn(queryManager);
+		when(queryManager.createQuery(anyString(), eq(Query.JCR_SQL2))).thenReturn(query);
+		when(query.execute().getNodes().hasNext()).thenReturn(false);
+
+		/* Invoke method. */
+		this.syncRoot.catchUp(this.session, 0);
+
+		/* Check its results. */
+		final ArgumentCaptor<String> statement = ArgumentCaptor.forClass(String.class);
+		verify(queryManager).createQuery(statement.capture(), eq(Query.JCR_SQL2));
+		assertTrue(statement.getValue()
+				.startsWith("SELECT * FROM [nt:resource] AS n WHERE ISDESCENDANTNODE(n, ['/apps/it''s'])"));
+	}
+
+	@Test
+	public void testCatchUpWalksRootsWhenQueryFails() throws IOException, RepositoryException {
+		/* Prepare data. */
+		this.syncRoot.sync();
+		addFileNode(this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER), "a.txt", "a",
+				1000000l);
+		final Workspace workspace = mock(Workspace.class);
+		final QueryManager queryManager = mock(QueryManager.class);
+		doReturn(workspace).when(this.session).getWorkspace();
+		when(workspace.getObservationManager()).thenThrow(new UnsupportedRepositoryOperationException());
+		when(workspace.getQueryManager()).thenReturn(queryManager);
+		when(queryManager.createQuery(anyString(), eq(Query.JCR_SQL2)))
+				.thenThrow(new RuntimeException("traversal limit"));
+
+		/* Invoke method. */
+		this.syncRoot.catchUp(this.session, 0);
+
+		/* Check its results. */
+		assertEquals("a", FileUtils.readFileToString(new File(this.baseDir, "apps/test/a.txt")));
+	}
+
+	@Test
+	public void testSyncMovesJcr2Fs() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		addFileNode(test.addNode("old", SyncTransfer.NT_FOLDER), "a.txt", "a", 1000000l);
+		writeConfig("JCR2FS");
+		this.syncRoot.sync();
+
+		/* Invoke method. */
+		this.session.move("/apps/test/old", "/apps/test/new");
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(new File(this.baseDir, "apps/test/old").exists());
+		assertEquals("a", FileUtils.readFileToString(new File(this.baseDir, "apps/test/new/a.txt")));
+		final String log = FileUtils.readFileToString(new File(this.baseDir, ".vlt-sync.log"));
+		assertTrue(log.contains("JCR2FS M /apps/test/old /apps/test/new"));
+	}
+
+	@Test
+	public void testSyncRemovesTrees() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/tree/a.txt", "a");
+		writeFile("apps/test/tree/sub/b.txt", "b");
+		writeFile("apps/test/c.txt", "c");
+		writeConfig("FS2JCR");
+		this.syncRoot.sync();
+
+		final File logFile = new File(this.baseDir, ".vlt-sync.log");
+		final long logLength = logFile.length();
+
+		/* Invoke method. */
+		FileUtils.deleteDirectory(new File(this.baseDir, "apps/test/tree"));
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(this.session.nodeExists("/apps/test/tree"));
+		assertEquals("c", readNode("/apps/test/c.txt"));
+		final String log = FileUtils.readFileToString(logFile).substring((int) logLength);
+		assertTrue(log.contains("/apps/test/tree"));
+		assertFalse(log.contains("/apps/test/tree/a.txt"));
+	}
+
+	@Test
+	public void testSyncExcludedPaths() throws IOException, RepositoryException {
+		/* Prepare data. */
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncFilter.FILENAME),
+				"<workspaceFilter version=\"1.0\">\n<filter root=\"/apps/test\">\n"
+						+ "<exclude pattern=\".*/renditions(/.*)?\"/>\n</filter>\n</workspaceFilter>\n");
+		writeFile("apps/test/a.txt", "a");
+		writeFile("apps/test/renditions/big.png", "big");
+		writeConfig("FS2JCR");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("a", readNode("/apps/test/a.txt"));
+		assertFalse(this.session.nodeExists("/apps/test/renditions"));
+
+		/* Invoke method: excluded nodes are not removed either. */
+		addFileNode(this.session.getNode("/apps/test").addNode("renditions", SyncTransfer.NT_FOLDER), "jcr.png",
+				"jcr", 1000000l);
+		this.syncRoot.sync(Arrays.asList("/apps/test/renditions/jcr.png"));
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(new File(this.baseDir, "apps/test/renditions/jcr.png").exists());
+		assertTrue(this.session.nodeExists("/apps/test/renditions/jcr.png"));
+		assertTrue(new File(this.baseDir, "apps/test/renditions/big.png").exists());
+	}
+
+	@Test
+	public void testSyncChangedPaths() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/a.txt", "a");
+		writeFile("apps/test/b.txt", "b");
+		writeConfig("FS2JCR");
+		this.syncRoot.sync();
+		writeFile("apps/test/a.txt", "a, changed");
+		new File(this.baseDir, "apps/test/a.txt").setLastModified(2000000l);
+		writeFile("apps/test/b.txt", "b, changed");
+		new File(this.baseDir, "apps/test/b.txt").setLastModified(2000000l);
+
+		/* Invoke method. */
+		this.syncRoot.sync(Arrays.asList("/apps/test/a.txt", "/etc"));
+
+		/* Check its results. */
+		assertEquals("a, changed", readNode("/apps/test/a.txt"));
+		assertEquals("b", readNode("/apps/test/b.txt"));
+
+		/* Invoke method: an ancestor of the filter root. */
+		this.syncRoot.sync(Arrays.asList("/apps"));
+
+		/* Check its results. */
+		assertEquals("b, changed", readNode("/apps/test/b.txt"));
+	}
+
+	@Test
+	public void testSyncOncePaths() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/sub/x.txt", "x");
+		writeFile("apps/test/other.txt", "other");
+		final Node test = this.session.getNode("/apps").addNode("test", SyncTransfer.NT_FOLDER);
+		addFileNode(test.addNode("jcr", SyncTransfer.NT_FOLDER), "y.txt", "y", 1000000l);
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncConfig.FILENAME),
+				"disabled=false\nsync-once=\nsync-once.FS2JCR=/apps/test/sub\nsync-once.JCR2FS=/apps/test/jcr,/etc\n");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("x", readNode("/apps/test/sub/x.txt"));
+		assertFalse(this.session.nodeExists("/apps/test/other.txt"));
+		assertEquals("y", FileUtils.readFileToString(new File(this.baseDir, "apps/test/jcr/y.txt")));
+		assertFalse(new File(this.baseDir, "etc").exists());
+		assertTrue(FileUtils.readFileToString(new File(this.baseDir, SyncConfig.FILENAME))
+				.contains("sync-once.FS2JCR=\n"));
+	}
+
+	@Test
+	public void testWarmRestart() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/a.txt", "a");
+		writeFile("apps/test/b.txt", "b");
+		writeConfig("FS2JCR");
+		this.syncRoot.sync();
+		assertTrue(new File(this.baseDir, SyncIndex.FILENAME).isFile());
+		final long jcrLastModified = getJcrLastModified("/apps/test/a.txt");
+
+		/* Invoke method: restart, with a touched file and a changed one. */
+		this.syncRoot.stop();
+		this.syncRoot = new SyncRoot(this.baseDir, this.repository);
+		new File(this.baseDir, "apps/test/a.txt").setLastModified(jcrLastModified + 60000);
+		writeFile("apps/test/b.txt", "b, changed");
+		new File(this.baseDir, "apps/test/b.txt").setLastModified(jcrLastModified + 60000);
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals(jcrLastModified, getJcrLastModified("/apps/test/a.txt"));
+		assertEquals("b, changed", readNode("/apps/test/b.txt"));
+		assertFalse(FileUtils.readFileToString(new File(this.baseDir, ".vlt-sync.log")).contains(" U /apps/test/a.txt"));
+	}
+
+	@Test
+	public void testCatchUp() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/a.txt", "a");
+		writeFile("apps/test/b.txt", "b");
+		writeConfig("FS2JCR");
+		this.syncRoot.sync();
+		assertTrue(new File(this.baseDir, SyncCursor.FILENAME).isFile());
+
+		/* Invoke method: restart, with JCR changes found by a query only. */
+		this.syncRoot.stop();
+		this.syncRoot = new SyncRoot(this.baseDir, this.repository);
+		final Node test = this.session.getNode("/apps/test");
+		addFileNode(test, "c.txt", "c", System.currentTimeMillis() + 60000);
+		test.getNode("b.txt").remove();
+		addFileNode(test, "b.txt", "b, changed", System.currentTimeMillis() + 60000);
+		MockJcr.setQueryResult(this.session, Arrays.asList(test.getNode("c.txt/jcr:content")));
+		writeFile("apps/test/d.txt", "d");
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("c", FileUtils.readFileToString(new File(this.baseDir, "apps/test/c.txt")));
+		assertEquals("d", readNode("/apps/test/d.txt"));
+		assertEquals("b", FileUtils.readFileToString(new File(this.baseDir, "apps/test/b.txt")));
+
+		/* Invoke method: the next full sync. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertEquals("b, changed", FileUtils.readFileToString(new File(this.baseDir, "apps/test/b.txt")));
+	}
+
+	@Test
+	public void testSyncDisabled() throws IOException, RepositoryException {
+		/* Prepare data. */
+		writeFile("apps/test/a.txt", "a");
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncConfig.FILENAME), "disabled=true\nsync-once=FS2JCR\n");
+
+		/* Invoke method. */
+		this.syncRoot.sync();
+
+		/* Check its results. */
+		assertFalse(this.session.nodeExists("/apps/test/a.txt"));
+	}
+
+	private void writeFilter(final String... roots) throws IOException {
+		final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<workspaceFilter version=\"1.0\">\n");
+		for (String root : roots) {
+			xml.append("\t<filter root=\"").append(root).append("\"/>\n");
+		}
+		xml.append("</workspaceFilter>\n");
+		FileUtils.writeStringToFile(new File(this.baseDir, SyncFilter.FILENAME), xml.toString());
+	}
+
+	private void writeConfig(final String syncOnce) throws IOException {
+		final File file = new File(this.baseDir, SyncConfig.FILENAME);
+		FileUtils.writeStringToFile(file, "disabled=false\nsync-once=" + syncOnce + "\n");
+		/* Make sure it is seen as modified. */
+		file.setLastModified(System.currentTimeMillis() + (long) (Math.random() * 100000));
+	}
+
+	private void writeFile(final String relativePath, final String content) throws IOException {
+		FileUtils.writeStringToFile(new File(this.baseDir, relativePath), content);
+	}
+
+	private String readNode(final String path) throws RepositoryException, IOException {
+		final Node content = this.session.getNode(path).getNode(SyncTransfer.JCR_CONTENT);
+		return IOUtils.toString(content.getProperty(SyncTransfer.JCR_DATA).getBinary().getStream());
+	}
+
+	private long getJcrLastModified(final String path) throws RepositoryException {
+		return this.session.getNode(path).getNode(SyncTransfer.JCR_CONTENT).getProperty(SyncTransfer.JCR_LASTMODIFIED)
+				.getDate().getTimeInMillis();
+	}
+
+	private void copyNode(final Node node, final Node parent, final String name) throws RepositoryException {
+		final Node copy = parent.addNode(name, node.getPrimaryNodeType().getName());
+		for (PropertyIterator i = node.getProperties(); i.hasNext();) {
+			final Property property = i.nextProperty();
+			if (!property.getName().equals("jcr:primaryType")) {
+				copy.setProperty(property.getName(), property.getValue());
+			}
+		}
+		for (NodeIterator i = node.getNodes(); i.hasNext();) {
+			final Node child = i.nextNode();
+			copyNode(child, copy, child.getName());
+		}
+	}
+
+	private void addFileNode(final Node parent, final String name, final String content, final long lastModified)
+			throws RepositoryException {
+		final Node file = parent.addNode(name, SyncTransfer.NT_FILE);
+		final Node resource = file.addNode(SyncTransfer.JCR_CONTENT, "nt:resource");
+		resource.setProperty(SyncTransfer.JCR_DATA,
+				this.session.getValueFactory().createBinary(new ByteArrayInputStream(content.getBytes())));
+		final Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(lastModified);
+		resource.setProperty(SyncTransfer.JCR_LASTMODIFIED, calendar);
+	}
+
+}
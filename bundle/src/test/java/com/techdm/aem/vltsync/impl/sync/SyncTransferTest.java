@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Daniel Henrique Alves Lima
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.techdm.aem.vltsync.impl.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sling.testing.mock.jcr.MockJcr;
+import org.junit.Test;
+
+public class SyncTransferTest {
+
+	@Test
+	public void testToPlatformName() {
+		assertEquals("_jcr_content", SyncTransfer.toPlatformName("jcr:content"));
+		assertEquals("main.js", SyncTransfer.toPlatformName("main.js"));
+		assertEquals("__jcr_content", SyncTransfer.toPlatformName("_jcr_content"));
+	}
+
+	@Test
+	public void testToJcrName() {
+		assertEquals("jcr:content", SyncTransfer.toJcrName("_jcr_content"));
+		assertEquals("main.js", SyncTransfer.toJcrName("main.js"));
+		assertEquals("_jcr_content", SyncTransfer.toJcrName("__jcr_content"));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		final String[] names = { "jcr:content", "cq:dialog", "_cq_dialog", "a_b_c", "rep:policy", "x*y" };
+		for (String name : names) {
+			assertEquals(name, SyncTransfer.toJcrName(SyncTransfer.toPlatformName(name)));
+		}
+	}
+
+	@Test
+	public void testGetParentPathAndName() {
+		assertEquals("/apps/test", SyncTransfer.getParentPath("/apps/test/a.txt"));
+		assertEquals("/", SyncTransfer.getParentPath("/apps"));
+		assertEquals("a.txt", SyncTransfer.getName("/apps/test/a.txt"));
+	}
+
+	@Test
+	public void testLargeFileRoundTrip() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final File baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		baseDir.delete();
+		baseDir.mkdir();
+		try {
+			final byte[] content = new byte[3 * 1024 * 1024 + 17];
+			new Random(42).nextBytes(content);
+			final CRC32 checksum = new CRC32();
+			checksum.update(content);
+			final File source = new File(baseDir, "apps/test/video.mp4");
+			FileUtils.writeByteArrayToFile(source, content);
+			final SyncTransfer transfer = new SyncTransfer(baseDir);
+			final Session session = MockJcr.newSession();
+
+			/* Invoke method. */
+			final SyncEntry jcrEntry = transfer.writeToJcr(session, "/apps/test/video.mp4", source);
+			final File target = new File(baseDir, "apps/copy/video.mp4");
+			final SyncEntry fsEntry = transfer.writeToFs(session.getNode("/apps/test/video.mp4"), target);
+
+			/* Check its results. */
+			assertEquals(checksum.getValue(), transfer.getFsHash(source));
+			assertEquals(checksum.getValue(), jcrEntry.getHash());
+			assertEquals(checksum.getValue(), fsEntry.getHash());
+			assertEquals(content.length, fsEntry.getSize());
+			assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(target)));
+		} finally {
+			FileUtils.deleteDirectory(baseDir);
+		}
+	}
+
+	@Test
+	public void testGetSameContentEntry() throws IOException, RepositoryException {
+		/* Prepare data. */
+		final File baseDir = File.createTempFile(getClass().getName(), "_tmp");
+		baseDir.delete();
+		baseDir.mkdir();
+		try {
+			final SyncTransfer transfer = new SyncTransfer(baseDir);
+			final Session session = MockJcr.newSession();
+			final File file = new File(baseDir, "apps/test/a.txt");
+			FileUtils.writeStringToFile(file, "abc");
+			file.setLastModified(1000000l);
+			final SyncEntry jcrEntry = transfer.writeToJcr(session, "/apps/test/a.txt", file);
+
+			/* Invoke method and check its results: touched. */
+			file.setLastModified(2000000l);
+			assertEquals(jcrEntry, transfer.getSameContentEntry(session, "/apps/test/a.txt", file));
+			assertEquals(jcrEntry.getHash(),
+					transfer.getSameContentEntry(session, "/apps/test/a.txt", file).getHash());
+
+			/* Invoke method and check its results: changed. */
+			FileUtils.writeStringToFile(file, "abd");
+			assertNull(transfer.getSameContentEntry(session, "/apps/test/a.txt", file));
+			FileUtils.writeStringToFile(file, "abcd");
+			assertNull(transfer.getSameContentEntry(session, "/apps/test/a.txt", file));
+			assertNull(transfer.getSameContentEntry(session, "/apps/test/b.txt", file));
+		} finally {
+			FileUtils.deleteDirectory(baseDir);
+		}
+	}
+
+	@Test
+	public void testGetSyncPath() throws RepositoryException {
+		/* Prepare data. */
+		final Session session = MockJcr.newSession();
+		final Node test = session.getRootNode().addNode("apps", SyncTransfer.NT_FOLDER).addNode("test",
+				SyncTransfer.NT_FOLDER);
+		test.addNode("a.txt", SyncTransfer.NT_FILE).addNode(SyncTransfer.JCR_CONTENT, "nt:resource");
+
+		/* Invoke method and check its results. */
+		assertEquals("/apps/test", SyncTransfer.getSyncPath(session, "/apps/test"));
+		assertEquals("/apps/test/a.txt", SyncTransfer.getSyncPath(session, "/apps/test/a.txt/jcr:content"));
+		assertEquals("/apps/test/b.txt", SyncTransfer.getSyncPath(session, "/apps/test/b.txt"));
+		assertEquals("/apps/test/a.txt", SyncTransfer.getSyncPath(session, "/apps/test/a.txt/removed"));
+	}
+
+}